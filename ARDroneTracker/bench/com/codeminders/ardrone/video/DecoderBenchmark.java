@@ -0,0 +1,460 @@
+package com.codeminders.ardrone.video;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.codeminders.ardrone.simulator.SyntheticVideoSource;
+
+/**
+ * Benchmarks of the video decoder, end to end and stage by stage. Like JMH
+ * each benchmark is first run for a while to warm up and then for a fixed
+ * time; for every picture size of the corpus it reports operations per
+ * second, bytes allocated per operation and the median and 99th percentile
+ * time of one operation. One operation handles one picture:
+ *
+ * <ul>
+ * <li>bits: reads the whole datagram through {@link BitReader}, 16 bits at a
+ * time</li>
+ * <li>vlc: reads the headers and run/level codes of every slice, as for
+ * slices outside of the region of interest, without inverse transform</li>
+ * <li>idct: inverse transform of every coded block of the picture</li>
+ * <li>compose: turns a picture's worth of macroblocks into pixels</li>
+ * <li>decode: {@link BufferedVideoImage#addImageStream(ByteBuffer)}</li>
+ * </ul>
+ *
+ * Datagrams are copied into one buffer before each operation, outside of the
+ * timed part, as the video reader passes them to the decoder. Without frame
+ * files or directories of them the benchmarks run on synthetic video of
+ * every size {@link VideoEncoder} supports.
+ *
+ * Usage: DecoderBenchmark [-warmup ms] [-time ms] [-format RGB565|ARGB8888]
+ * [frame.bin|directory ...]
+ */
+public class DecoderBenchmark
+{
+    private static final int   WARMUP_MS         = 1000;
+    private static final int   MEASURED_MS       = 3000;
+    private static final int   SYNTHETIC_FRAMES  = 16;
+    private static final int[] SYNTHETIC_SIZES   = { 176, 144, 320, 240, 352, 288, 640, 480 };
+    private static final int   BUCKET_NS         = 100;
+    private static final int   HISTOGRAM_BUCKETS = 1000000;
+
+    /**
+     * Keeps the results of the benchmarks from being optimized away.
+     */
+    static volatile int        sink;
+
+    /**
+     * Allocation counters, or null if the JVM has none.
+     */
+    private static com.sun.management.ThreadMXBean threads;
+
+    private final int          warmupMillis;
+    private final int          measuredMillis;
+    private final boolean      fullColor;
+
+    /**
+     * Operation times in buckets of BUCKET_NS, allocated up front so that
+     * measuring allocates nothing. Longer times go into the last bucket.
+     */
+    private final int[]        histogram         = new int[HISTOGRAM_BUCKETS];
+
+    /**
+     * One operation of a benchmark. setUp is not timed.
+     */
+    private static abstract class Operation
+    {
+        void setUp(int index)
+        {
+        }
+
+        abstract void run(int index);
+    }
+
+    /**
+     * A datagram of the corpus, with what the stages after the one reading
+     * it need.
+     */
+    private static class Frame
+    {
+        final ByteBuffer data;
+        final int        width;
+        final int        height;
+
+        short[][]        blocks;
+        byte[]           blockTypes;
+        int              codedBlocks;
+
+        /**
+         * Holds the transformed macroblocks of the last slice.
+         */
+        SliceDecoder     composer;
+
+        Frame(ByteBuffer data, int width, int height)
+        {
+            this.data = data;
+            this.width = width;
+            this.height = height;
+        }
+
+        /**
+         * Keeps the coefficients of the coded macroblocks of the slice the
+         * decoder has just read.
+         */
+        void addSlice(SliceDecoder decoder, boolean[] empty)
+        {
+            for(int column = 0; column < empty.length; column++)
+            {
+                if(empty[column])
+                    continue;
+                for(int i = 0; i < 6; i++)
+                {
+                    blockTypes[codedBlocks] = (byte) decoder.copyPendingBlock(column, i, blocks[codedBlocks]);
+                    codedBlocks++;
+                }
+            }
+        }
+    }
+
+    private DecoderBenchmark(int warmupMillis, int measuredMillis, boolean fullColor)
+    {
+        this.warmupMillis = warmupMillis;
+        this.measuredMillis = measuredMillis;
+        this.fullColor = fullColor;
+    }
+
+    public static void main(String[] args)
+    {
+        int warmup = WARMUP_MS;
+        int time = MEASURED_MS;
+        BufferedVideoImage.PixelFormat format = BufferedVideoImage.PixelFormat.RGB565;
+        List<File> files = new ArrayList<File>();
+
+        try
+        {
+            for(int i = 0; i < args.length; i++)
+            {
+                if(args[i].equals("-warmup"))
+                    warmup = Integer.parseInt(args[++i]);
+                else if(args[i].equals("-time"))
+                    time = Integer.parseInt(args[++i]);
+                else if(args[i].equals("-format"))
+                    format = BufferedVideoImage.PixelFormat.valueOf(args[++i]);
+                else if(args[i].startsWith("-"))
+                    throw new IllegalArgumentException(args[i]);
+                else
+                    addFiles(new File(args[i]), files);
+            }
+        } catch(RuntimeException e)
+        {
+            System.err.println("Usage: DecoderBenchmark [-warmup ms] [-time ms] [-format RGB565|ARGB8888] "
+                    + "[frame.bin|directory ...]");
+            System.exit(2);
+        }
+
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if(bean instanceof com.sun.management.ThreadMXBean)
+            threads = (com.sun.management.ThreadMXBean) bean;
+
+        try
+        {
+            Map<String, List<Frame>> corpus = files.isEmpty() ? createCorpus() : readCorpus(files);
+
+            DecoderBenchmark benchmark = new DecoderBenchmark(warmup, time,
+                    format == BufferedVideoImage.PixelFormat.ARGB8888);
+            System.err.println("size      benchmark       ops/s      B/op   p50 us   p99 us");
+            for(Map.Entry<String, List<Frame>> entry : corpus.entrySet())
+                benchmark.run(entry.getKey(), entry.getValue(), format);
+        } catch(IOException e)
+        {
+            e.printStackTrace();
+            System.exit(2);
+        }
+    }
+
+    private static void addFiles(File file, List<File> files)
+    {
+        if(!file.isDirectory())
+        {
+            files.add(file);
+            return;
+        }
+
+        File[] entries = file.listFiles();
+        if(entries == null)
+            return;
+        Arrays.sort(entries);
+        for(File entry : entries)
+        {
+            if(entry.isFile() && entry.getName().endsWith(".bin"))
+                files.add(entry);
+        }
+    }
+
+    private static Map<String, List<Frame>> createCorpus()
+    {
+        Map<String, List<Frame>> corpus = new LinkedHashMap<String, List<Frame>>();
+        for(int i = 0; i < SYNTHETIC_SIZES.length; i += 2)
+        {
+            SyntheticVideoSource source = new SyntheticVideoSource(SYNTHETIC_SIZES[i], SYNTHETIC_SIZES[i + 1], 0.5);
+            for(int f = 0; f < SYNTHETIC_FRAMES; f++)
+                addFrame(corpus, source.nextFrame());
+        }
+        return corpus;
+    }
+
+    private static Map<String, List<Frame>> readCorpus(List<File> files) throws IOException
+    {
+        Map<String, List<Frame>> corpus = new LinkedHashMap<String, List<Frame>>();
+        for(File file : files)
+            addFrame(corpus, readFrame(file));
+        return corpus;
+    }
+
+    private static ByteBuffer readFrame(File file) throws IOException
+    {
+        byte[] data = new byte[(int) file.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try
+        {
+            in.readFully(data);
+        } finally
+        {
+            in.close();
+        }
+        return ByteBuffer.wrap(data);
+    }
+
+    /**
+     * Sorts the datagram in by its picture size and reads it once through
+     * the stages, keeping what the later stages start from.
+     */
+    private static void addFrame(Map<String, List<Frame>> corpus, ByteBuffer data)
+    {
+        BufferedVideoImage image = new BufferedVideoImage();
+        image.addImageStream(data);
+        Frame frame = new Frame(data, image.getWidth(), image.getHeight());
+
+        int macroBlocks = (frame.width >> 4) * (frame.height >> 4);
+        frame.blocks = new short[macroBlocks * 6][64];
+        frame.blockTypes = new byte[macroBlocks * 6];
+
+        SliceDecoder decoder = new SliceDecoder();
+        decoder.setWidth(frame.width);
+        decodeSlices(decoder, data, new boolean[frame.width >> 4], false, frame);
+
+        frame.composer = new SliceDecoder();
+        frame.composer.setWidth(frame.width);
+        decodeSlices(frame.composer, data, new boolean[frame.width >> 4], true, null);
+
+        String size = frame.width + "x" + frame.height;
+        List<Frame> frames = corpus.get(size);
+        if(frames == null)
+        {
+            frames = new ArrayList<Frame>();
+            corpus.put(size, frames);
+        }
+        frames.add(frame);
+    }
+
+    /**
+     * Reads the slices of a picture the way {@link BufferedVideoImage} does,
+     * transforming the coded blocks or only reading them. Returns the number
+     * of slices.
+     */
+    private static int decodeSlices(SliceDecoder decoder, ByteBuffer stream, boolean[] empty, boolean transform,
+            Frame capture)
+    {
+        BitReader reader = decoder.reader;
+        reader.reset(stream);
+
+        int slice = 0;
+        while(reader.hasRemaining())
+        {
+            reader.align();
+            int code = reader.read(22);
+            if((code & ~0x1F) != 32)
+                continue;
+            if((code & 0x1F) == 0x1F)
+                break;
+
+            if(slice++ == 0)
+            {
+                // Format, resolution and picture type
+                reader.read(8);
+                decoder.quantizerMode = reader.read(5);
+                // Frame index
+                reader.read(32);
+            } else
+            {
+                decoder.quantizerMode = reader.read(5);
+            }
+
+            decoder.decodeMacroBlocks(empty, 0, true, transform);
+            if(capture != null)
+                capture.addSlice(decoder, empty);
+        }
+        return slice;
+    }
+
+    private void run(String size, final List<Frame> frames, BufferedVideoImage.PixelFormat format)
+    {
+        int largest = 0;
+        for(Frame frame : frames)
+            largest = Math.max(largest, frame.data.remaining());
+        final ByteBuffer stream = ByteBuffer.allocate(largest);
+
+        final Frame first = frames.get(0);
+        final int count = frames.size();
+
+        measure(size, "bits", new Operation()
+        {
+            final BitReader reader = new BitReader();
+            long            bits;
+
+            void setUp(int index)
+            {
+                ByteBuffer data = frames.get(index % count).data;
+                copy(data, stream);
+                bits = data.remaining() * 8L;
+            }
+
+            void run(int index)
+            {
+                reader.reset(stream);
+                int sum = 0;
+                for(long left = bits; left >= 16; left -= 16)
+                    sum += reader.read(16);
+                sink = sum;
+            }
+        });
+
+        final SliceDecoder decoder = new SliceDecoder();
+        decoder.setWidth(first.width);
+        final boolean[] empty = new boolean[first.width >> 4];
+        measure(size, "vlc", new Operation()
+        {
+            void setUp(int index)
+            {
+                copy(frames.get(index % count).data, stream);
+            }
+
+            void run(int index)
+            {
+                sink = decodeSlices(decoder, stream, empty, false, null);
+            }
+        });
+
+        final short[] data = new short[64];
+        measure(size, "idct", new Operation()
+        {
+            void run(int index)
+            {
+                Frame frame = frames.get(index % count);
+                for(int i = 0; i < frame.codedBlocks; i++)
+                    decoder.inverseTransform(frame.blocks[i], frame.blockTypes[i], data);
+                sink = data[0];
+            }
+        });
+
+        final int[] pixels = new int[first.width * first.height];
+        final int slices = first.height >> 4;
+        measure(size, "compose", new Operation()
+        {
+            void run(int index)
+            {
+                SliceDecoder composer = frames.get(index % count).composer;
+                for(int slice = 0; slice < slices; slice++)
+                    composer.composeImageSlice(pixels, slice, fullColor);
+                sink = pixels[0];
+            }
+        });
+
+        final BufferedVideoImage image = new BufferedVideoImage();
+        image.setPixelFormat(format);
+        measure(size, "decode", new Operation()
+        {
+            void setUp(int index)
+            {
+                copy(frames.get(index % count).data, stream);
+            }
+
+            void run(int index)
+            {
+                image.addImageStream(stream);
+                sink = image.getFrameIndex();
+            }
+        });
+    }
+
+    private void measure(String size, String name, Operation operation)
+    {
+        long warmupEnd = System.nanoTime() + warmupMillis * 1000000L;
+        int index = 0;
+        while(System.nanoTime() < warmupEnd)
+        {
+            operation.setUp(index);
+            operation.run(index++);
+        }
+
+        Arrays.fill(histogram, 0);
+        int count = 0;
+        long total = 0;
+        long thread = Thread.currentThread().getId();
+        long allocatedBefore = threads != null ? threads.getThreadAllocatedBytes(thread) : 0;
+        long end = System.nanoTime() + measuredMillis * 1000000L;
+
+        while(true)
+        {
+            operation.setUp(index);
+            long start = System.nanoTime();
+            operation.run(index++);
+            long now = System.nanoTime();
+
+            histogram[(int) Math.min((now - start) / BUCKET_NS, histogram.length - 1)]++;
+            total += now - start;
+            count++;
+            if(now >= end)
+                break;
+        }
+
+        long allocated = threads != null ? (threads.getThreadAllocatedBytes(thread) - allocatedBefore) / count : -1;
+
+        System.err.println(String.format("%-9s %-9s %11.1f %9s %8.1f %8.1f", size, name, count * 1e9 / total,
+                allocated < 0 ? "n/a" : String.valueOf(allocated), getPercentile(count, 0.5) / 1e3,
+                getPercentile(count, 0.99) / 1e3));
+    }
+
+    /**
+     * Time in nanoseconds below which the given fraction of the last
+     * measured operations finished.
+     */
+    private long getPercentile(int count, double fraction)
+    {
+        long rank = (long) Math.ceil(count * fraction);
+        long seen = 0;
+        for(int i = 0; i < histogram.length; i++)
+        {
+            seen += histogram[i];
+            if(seen >= rank)
+                return (i + 1) * BUCKET_NS;
+        }
+        return histogram.length * BUCKET_NS;
+    }
+
+    private static void copy(ByteBuffer frame, ByteBuffer stream)
+    {
+        stream.clear();
+        stream.put(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+        stream.clear();
+    }
+}
@@ -21,6 +21,9 @@ import com.codeminders.ardrone.ARDrone.VideoChannel;
 import com.codeminders.ardrone.DroneStatusChangeListener;
 import com.codeminders.ardrone.NavData;
 import com.codeminders.ardrone.NavDataListener;
+import com.codeminders.ardrone.vision.TargetObservation;
+import com.codeminders.ardrone.vision.VisionPipeline;
+import com.codeminders.ardrone.vision.VisionStages;
 
 import java.awt.event.ActionEvent;
 
@@ -172,12 +175,15 @@ public class ARTracker extends javax.swing.JFrame implements DroneStatusChangeLi
                     float vertical_speed = 0f;
                     float angular_speed = 0f;
                     
-                    if( processedVideoStreamPanel.isTargetFound() )
+                    // one snapshot of the tracker's result for the whole iteration
+                    TargetObservation target = processedVideoStreamPanel.getObservation();
+                    
+                    if( target.isFound() )
                     {
                     	left_right_tilt = 0f;
-                        front_back_tilt = getFrontBackTilt();
-                        vertical_speed = getVerticalSpeed();
-                        angular_speed = getAngularSpeed();
+                        front_back_tilt = getFrontBackTilt(target);
+                        vertical_speed = getVerticalSpeed(target);
+                        angular_speed = getAngularSpeed(target);
                     }
                     
                     //
@@ -189,9 +195,11 @@ public class ARTracker extends javax.swing.JFrame implements DroneStatusChangeLi
             			msg += String.format( "angular speed:  %.3f \n", angular_speed );
             			msg += String.format( "vertical speed: %.3f \n", vertical_speed );
             			msg += String.format( "f/b tilt:       %.3f \n", front_back_tilt );
-            			msg += String.format( "target:         %.3f, %.3f \n", processedVideoStreamPanel.getTargetX(), processedVideoStreamPanel.getTargetY() );
-            			msg += String.format( "targ extent:    %.3f \n", processedVideoStreamPanel.getTargetExtent() );
-            			msg += String.format( "targ is found:  %s \n", processedVideoStreamPanel.isTargetFound() );
+            			msg += String.format( "target:         %.3f, %.3f \n", target.getX(), target.getY() );
+            			msg += String.format( "targ extent:    %.3f \n", target.getExtent() );
+            			msg += String.format( "targ is found:  %s \n", target.isFound() );
+            			for( VisionPipeline.Timing t : processedVideoStreamPanel.getTracker().getPipeline().getTimings() )
+            				msg += t + "\n";
             			debugLabel.setText( msg );
             		}
             		
@@ -232,7 +240,7 @@ public class ARTracker extends javax.swing.JFrame implements DroneStatusChangeLi
             		// Do some stuff while flying (e.g., re-orientation/movement stuff)
             		if( flying.get() )
             		{	
-            			if( !processedVideoStreamPanel.isTargetFound() )
+            			if( !target.isFound() )
             			{
             				// if unsure of target's location, don't do anything
             				drone.hover();
@@ -386,6 +394,16 @@ public class ARTracker extends javax.swing.JFrame implements DroneStatusChangeLi
     {
         CONTROL_THRESHOLD = sens;
     }
+
+    /**
+     * Changes the stages of target detection, see {@link VisionStages}.
+     *
+     * @throws IllegalArgumentException for a stage there is none of
+     */
+    public void setVisionStages(String stages)
+    {
+        processedVideoStreamPanel.setStages(stages);
+    }
     
     
     //
@@ -502,12 +520,12 @@ public class ARTracker extends javax.swing.JFrame implements DroneStatusChangeLi
     private PIDController pidAngularSpeed;
     private PIDController pidFrontBackTilt;
     
-    private float getVerticalSpeed()
+    private float getVerticalSpeed(TargetObservation target)
     {
     	double MAX = 240;
     	double MIDDLE = MAX/2;
     	
-    	double targetY = processedVideoStreamPanel.getTargetY();
+    	double targetY = target.getY();
     	double delta = targetY - MIDDLE;
     	
     	float speed = (float)(delta / MIDDLE);
@@ -527,9 +545,9 @@ public class ARTracker extends javax.swing.JFrame implements DroneStatusChangeLi
     	return speed;
     }
     
-    private float getAngularSpeed()
+    private float getAngularSpeed(TargetObservation target)
     {
-    	double targetX = processedVideoStreamPanel.getTargetX();
+    	double targetX = target.getX();
     	double actualDelta = targetX - 160;
     	
     	// error = the delta between center of screen and target x position
@@ -563,9 +581,9 @@ public class ARTracker extends javax.swing.JFrame implements DroneStatusChangeLi
     	*/
     }
     
-    private float getFrontBackTilt()
+    private float getFrontBackTilt(TargetObservation target)
     {
-    	double actualExtent = processedVideoStreamPanel.getTargetExtent();
+    	double actualExtent = target.getExtent();
     	double targetExtent = 100;
     	double control = pidFrontBackTilt.control( actualExtent, targetExtent, 0 );
     	control = control;
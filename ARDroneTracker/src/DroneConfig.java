@@ -38,6 +38,7 @@ public class DroneConfig extends javax.swing.JDialog {
         prefs.putInt("control:control_vz_max", maxSpeed.getValue());
         prefs.putInt("control:control_yaw", maxYaw.getValue());
         prefs.putInt("tower:controller_threshold", controllerDeadzone.getValue());
+        prefs.put("tower:vision_stages", visionStages.getText());
         try {
             prefs.flush();
         } catch (BackingStoreException ex) {
@@ -51,6 +52,7 @@ public class DroneConfig extends javax.swing.JDialog {
         maxSpeed.setValue(prefs.getInt("control:control_vz_max", 2000));
         maxYaw.setValue(prefs.getInt("control:control_yaw", 200));
         controllerDeadzone.setValue(prefs.getInt("tower:controller_threshold", 50));
+        visionStages.setText(prefs.get("tower:vision_stages", ProcessedVideoPanel.DEFAULT_STAGES));
         updateAlt(null);
         updateAngle(null);
         updateSpeed(null);
@@ -63,6 +65,11 @@ public class DroneConfig extends javax.swing.JDialog {
     }
 
     public synchronized void updateDrone() {
+        try {
+            tower.setVisionStages(visionStages.getText());
+        } catch (IllegalArgumentException ex) {
+            Logger.getLogger(DroneConfig.class.getName()).error("Bad vision stages: " + ex.getMessage());
+        }
         if (drone == null) {
             return;
         }
@@ -95,12 +102,14 @@ public class DroneConfig extends javax.swing.JDialog {
         maxYaw = new javax.swing.JSlider();
         controllerDeadzoneLabel = new javax.swing.JLabel();
         controllerDeadzone = new javax.swing.JSlider();
+        visionStagesLabel = new javax.swing.JLabel();
+        visionStages = new javax.swing.JTextField();
         cancelButton = new javax.swing.JButton();
         okButton = new javax.swing.JButton();
 
         setDefaultCloseOperation(javax.swing.WindowConstants.DISPOSE_ON_CLOSE);
         setTitle("Configuration");
-        getContentPane().setLayout(new java.awt.GridLayout(6, 2));
+        getContentPane().setLayout(new java.awt.GridLayout(7, 2));
 
         maxAltitudeLabel.setText("Max Altitude");
         getContentPane().add(maxAltitudeLabel);
@@ -160,6 +169,12 @@ public class DroneConfig extends javax.swing.JDialog {
         });
         getContentPane().add(controllerDeadzone);
 
+        visionStagesLabel.setText("Vision Stages");
+        getContentPane().add(visionStagesLabel);
+
+        visionStages.setToolTipText("Comma separated, e.g. classify,open,filter:box,locate,visualise");
+        getContentPane().add(visionStages);
+
         cancelButton.setText("Close");
         cancelButton.addActionListener(new java.awt.event.ActionListener() {
             public void actionPerformed(java.awt.event.ActionEvent evt) {
@@ -231,5 +246,7 @@ public class DroneConfig extends javax.swing.JDialog {
     private javax.swing.JSlider maxYaw;
     private javax.swing.JLabel maxYawLabel;
     private javax.swing.JButton okButton;
+    private javax.swing.JTextField visionStages;
+    private javax.swing.JLabel visionStagesLabel;
     // End of variables declaration//GEN-END:variables
 }
@@ -7,7 +7,7 @@
 
 
 import com.codeminders.ardrone.ARDrone;
-import com.codeminders.ardrone.DroneVideoListener;
+import com.codeminders.ardrone.video.VideoFrameRing;
 import java.awt.Color;
 import java.awt.Font;
 import java.awt.Graphics;
@@ -22,13 +22,19 @@ import java.util.concurrent.atomic.AtomicReference;
  * @author normenhansen
  */
 @SuppressWarnings("serial")
-public class VideoPanel extends javax.swing.JPanel implements DroneVideoListener
+public class VideoPanel extends javax.swing.JPanel
 {
 
     private AtomicReference<BufferedImage> image          = new AtomicReference<BufferedImage>();
     private AtomicBoolean                  preserveAspect = new AtomicBoolean(true);
     private BufferedImage                  noConnection   = new BufferedImage(320, 240, BufferedImage.TYPE_INT_RGB);
 
+    /**
+     * Reads frames from the drone's frame ring. The slot taken last stays
+     * ours, and its image can be painted, until the next one is taken.
+     */
+    private VideoFrameRing.Consumer        frames;
+
     /** Creates new form VideoPanel */
     public VideoPanel()
     {
@@ -42,7 +48,14 @@ public class VideoPanel extends javax.swing.JPanel implements DroneVideoListener
 
     public void setDrone(ARDrone drone)
     {
-        drone.addImageListener(this);
+        frames = drone.getVideoRing().addConsumer(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                repaint();
+            }
+        });
     }
 
     public void setPreserveAspect(boolean preserve)
@@ -50,18 +63,16 @@ public class VideoPanel extends javax.swing.JPanel implements DroneVideoListener
         preserveAspect.set(preserve);
     }
 
-    @Override
-    public void frameReceived(int startX, int startY, int w, int h, int[] rgbArray, int offset, int scansize)
-    {
-        BufferedImage im = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
-        im.setRGB(startX, startY, w, h, rgbArray, offset, scansize);
-        image.set(im);
-        repaint();
-    }
-
     @Override
     public void paintComponent(Graphics g)
     {
+        if(frames != null)
+        {
+            VideoFrameRing.Slot latest = frames.pollLatest();
+            if(latest != null)
+                image.set(latest.getImage());
+        }
+
         Graphics2D g2d = (Graphics2D) g;
         g2d.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
         g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
@@ -3,13 +3,20 @@ package com.codeminders.ardrone;
 
 import java.io.IOException;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Executor;
 
 import org.apache.log4j.Logger;
 
 import com.codeminders.ardrone.NavData.FlyingState;
 import com.codeminders.ardrone.commands.*;
+import com.codeminders.ardrone.video.BufferedVideoImage;
+import com.codeminders.ardrone.video.VideoFrame;
+import com.codeminders.ardrone.video.VideoFrameRing;
+import com.codeminders.ardrone.video.VideoSliceListener;
 
 public class ARDrone
 {
@@ -104,6 +111,12 @@ public class ARDrone
     private static byte[]                   DEFAULT_DRONE_IP  = { (byte) 192, (byte) 168, (byte) 1, (byte) 1 };
 
     private InetAddress                     drone_addr;
+    private int                             navdata_port      = NAVDATA_PORT;
+    private int                             video_port        = VIDEO_PORT;
+    private int                             cmd_port          = CommandSender.CMD_PORT;
+    // Ports navdata and video are received on
+    private int                             local_navdata_port = NAVDATA_PORT;
+    private int                             local_video_port  = VIDEO_PORT;
     private DatagramSocket                  cmd_socket;
     // private Socket control_socket;
 
@@ -113,17 +126,34 @@ public class ARDrone
     private VideoReader                     video_reader;
     private CommandSender                   cmd_sender;
 
-    private Thread                          nav_data_reader_thread;
-    private Thread                          cmd_sending_thread;
-    private Thread                          video_reader_thread;
+    // Shared with other drones, null for the defaults
+    private DroneEventLoop                  event_loop;
+    private CommandScheduler                cmd_scheduler;
+    private Executor                        video_decode_executor;
 
     private boolean                         combinedYawMode   = true;
 
+    private BufferedVideoImage.DecodeMode   video_decode_mode = BufferedVideoImage.DecodeMode.SERIAL;
+    private int[]                           video_region;
+    private boolean                         video_incremental;
+    private volatile VideoFrameRing         video_ring        = new VideoFrameRing();
+
+    // Largest datagram and SO_RCVBUF (0 for the system default) of the
+    // readers
+    private int                             navdata_buffer_size         = NavDataReader.BUFSIZE;
+    private int                             navdata_receive_buffer_size = 0;
+    private int                             video_buffer_size           = VideoReader.BUFSIZE;
+    private int                             video_receive_buffer_size   = 0;
+
     private boolean                         emergencyMode     = true;
     private Object                          emergency_mutex   = new Object();
 
     private List<DroneStatusChangeListener> status_listeners  = new LinkedList<DroneStatusChangeListener>();
-    private List<DroneVideoListener>        image_listeners   = new LinkedList<DroneVideoListener>();
+    private List<VideoFrameMailbox>         video_mailboxes   = new LinkedList<VideoFrameMailbox>();
+    private List<DroneLumaListener>         luma_listeners    = new LinkedList<DroneLumaListener>();
+    private List<DroneVideoListener>        thumb_listeners   = new LinkedList<DroneVideoListener>();
+    private List<VideoSliceListener>        slice_listeners   = new LinkedList<VideoSliceListener>();
+    private List<VideoPacketListener>       packet_listeners  = new LinkedList<VideoPacketListener>();
     private List<NavDataListener>           navdata_listeners = new LinkedList<NavDataListener>();
 
     public ARDrone() throws UnknownHostException
@@ -136,27 +166,330 @@ public class ARDrone
         this.drone_addr = drone_addr;
     }
 
-    public void addImageListener(DroneVideoListener l)
+    /**
+     * For drones not using the standard ports, such as several simulated ones
+     * on one host. The local ports are the ports navdata and video are
+     * received on; they have to differ between drones of one process.
+     */
+    public ARDrone(InetAddress drone_addr, int navdata_port, int video_port, int cmd_port, int local_navdata_port,
+            int local_video_port)
     {
-        synchronized(image_listeners)
+        this(drone_addr);
+        this.navdata_port = navdata_port;
+        this.video_port = video_port;
+        this.cmd_port = cmd_port;
+        this.local_navdata_port = local_navdata_port;
+        this.local_video_port = local_video_port;
+    }
+
+    public InetAddress getDroneAddress()
+    {
+        return drone_addr;
+    }
+
+    /**
+     * Image listeners are called on a thread of their own with the latest
+     * frame, see {@link VideoFrameMailbox}. The pixel array belongs to the
+     * frame and is reused once the listener returns.
+     */
+    public void addImageListener(final DroneVideoListener l)
+    {
+        addVideoMailbox(new VideoFrameMailbox(l, new VideoFrameListener()
         {
-            image_listeners.add(l);
-        }
+            public void frameReceived(VideoFrame frame)
+            {
+                l.frameReceived(0, 0, frame.getWidth(), frame.getHeight(), frame.getPixels(), 0, frame.getWidth());
+            }
+        }));
     }
 
     public void removeImageListener(DroneVideoListener l)
     {
-        synchronized(image_listeners)
+        removeVideoMailbox(l);
+    }
+
+    public void clearImageListeners()
+    {
+        clearVideoMailboxes(DroneVideoListener.class);
+    }
+
+    /**
+     * Frame listeners are called on a thread of their own with the latest
+     * frame, see {@link VideoFrameMailbox}.
+     */
+    public void addFrameListener(VideoFrameListener l)
+    {
+        addVideoMailbox(new VideoFrameMailbox(l, l));
+    }
+
+    public void removeFrameListener(VideoFrameListener l)
+    {
+        removeVideoMailbox(l);
+    }
+
+    public void clearFrameListeners()
+    {
+        clearVideoMailboxes(VideoFrameListener.class);
+    }
+
+    /**
+     * Sets the largest navdata datagram taken whole and the socket receive
+     * buffer (SO_RCVBUF, 0 for the system default) used from the next
+     * connect on.
+     */
+    public void setNavDataBufferSizes(int buffer_size, int receive_buffer_size)
+    {
+        navdata_buffer_size = buffer_size;
+        navdata_receive_buffer_size = receive_buffer_size;
+    }
+
+    /**
+     * Sets the largest video datagram taken whole and the socket receive
+     * buffer (SO_RCVBUF, 0 for the system default) used from the next
+     * connect on. A larger receive buffer rides out decoding hiccups.
+     */
+    public void setVideoBufferSizes(int buffer_size, int receive_buffer_size)
+    {
+        video_buffer_size = buffer_size;
+        video_receive_buffer_size = receive_buffer_size;
+    }
+
+    /**
+     * Sets the loop the readers of the next connect receive on, or null for
+     * {@link DroneEventLoop#getDefault()}, which all drones share.
+     */
+    public void setEventLoop(DroneEventLoop loop)
+    {
+        event_loop = loop;
+    }
+
+    public DroneEventLoop getEventLoop()
+    {
+        return event_loop;
+    }
+
+    /**
+     * Sets the scheduler commands are sent by from the next connect on, or
+     * null for {@link CommandScheduler#getDefault()}, which all drones share.
+     */
+    public void setCommandScheduler(CommandScheduler scheduler)
+    {
+        cmd_scheduler = scheduler;
+    }
+
+    /**
+     * Sets the executor video frames are decoded on from the next connect on,
+     * or null for a bounded pool shared by all drones. See
+     * {@link VideoReader#setDecodeExecutor(Executor)}.
+     */
+    public void setVideoDecodeExecutor(Executor executor)
+    {
+        video_decode_executor = executor;
+    }
+
+    /**
+     * Navdata reader of the current connection, for its datagram counters,
+     * or null when not connected.
+     */
+    public DataReader getNavDataReader()
+    {
+        return nav_data_reader;
+    }
+
+    /**
+     * Video reader of the current connection, for its datagram counters, or
+     * null when not connected.
+     */
+    public VideoReader getVideoReader()
+    {
+        return video_reader;
+    }
+
+    /**
+     * Ring the video frames are published to while it has consumers. Its
+     * consumers read the decoded pixels in place, without the copying and
+     * the threads of image and frame listeners.
+     */
+    public VideoFrameRing getVideoRing()
+    {
+        return video_ring;
+    }
+
+    /**
+     * Replaces the video frame ring, e.g. by one with more slots or another
+     * lag policy. Consumers of the old ring get no more frames.
+     */
+    public void setVideoRing(VideoFrameRing ring)
+    {
+        video_ring = ring;
+    }
+
+    /**
+     * Returns the mailbox feeding the given image or frame listener, which
+     * counts the frames it delivered and dropped, or null if the listener is
+     * not registered.
+     */
+    public VideoFrameMailbox getVideoMailbox(Object l)
+    {
+        synchronized(video_mailboxes)
         {
-            image_listeners.remove(l);
+            for(VideoFrameMailbox mailbox : video_mailboxes)
+            {
+                if(mailbox.getListener() == l)
+                    return mailbox;
+            }
+            return null;
         }
     }
 
-    public void clearImageListeners()
+    private void addVideoMailbox(VideoFrameMailbox mailbox)
+    {
+        synchronized(video_mailboxes)
+        {
+            video_mailboxes.add(mailbox);
+        }
+        mailbox.start();
+    }
+
+    private void removeVideoMailbox(Object l)
+    {
+        synchronized(video_mailboxes)
+        {
+            for(Iterator<VideoFrameMailbox> i = video_mailboxes.iterator(); i.hasNext();)
+            {
+                VideoFrameMailbox mailbox = i.next();
+                if(mailbox.getListener() == l)
+                {
+                    i.remove();
+                    mailbox.close();
+                    return;
+                }
+            }
+        }
+    }
+
+    private void clearVideoMailboxes(Class<?> type)
     {
-        synchronized(image_listeners)
+        synchronized(video_mailboxes)
         {
-            image_listeners.clear();
+            for(Iterator<VideoFrameMailbox> i = video_mailboxes.iterator(); i.hasNext();)
+            {
+                VideoFrameMailbox mailbox = i.next();
+                if(type.isInstance(mailbox.getListener()))
+                {
+                    i.remove();
+                    mailbox.close();
+                }
+            }
+        }
+    }
+
+    public void addLumaListener(DroneLumaListener l)
+    {
+        synchronized(luma_listeners)
+        {
+            luma_listeners.add(l);
+        }
+    }
+
+    public void removeLumaListener(DroneLumaListener l)
+    {
+        synchronized(luma_listeners)
+        {
+            luma_listeners.remove(l);
+        }
+    }
+
+    public void clearLumaListeners()
+    {
+        synchronized(luma_listeners)
+        {
+            luma_listeners.clear();
+        }
+    }
+
+    /**
+     * Thumbnail listeners get frames of an eighth of the video size, built
+     * from the DC coefficients of the stream only, which costs a fraction
+     * of decoding full frames.
+     */
+    public void addThumbnailListener(DroneVideoListener l)
+    {
+        synchronized(thumb_listeners)
+        {
+            thumb_listeners.add(l);
+        }
+    }
+
+    public void removeThumbnailListener(DroneVideoListener l)
+    {
+        synchronized(thumb_listeners)
+        {
+            thumb_listeners.remove(l);
+        }
+    }
+
+    public void clearThumbnailListeners()
+    {
+        synchronized(thumb_listeners)
+        {
+            thumb_listeners.clear();
+        }
+    }
+
+    /**
+     * Slice listeners get each video frame slice by slice while it is being
+     * decoded, ahead of the frame listeners.
+     */
+    public void addSliceListener(VideoSliceListener l)
+    {
+        synchronized(slice_listeners)
+        {
+            slice_listeners.add(l);
+        }
+    }
+
+    public void removeSliceListener(VideoSliceListener l)
+    {
+        synchronized(slice_listeners)
+        {
+            slice_listeners.remove(l);
+        }
+    }
+
+    public void clearSliceListeners()
+    {
+        synchronized(slice_listeners)
+        {
+            slice_listeners.clear();
+        }
+    }
+
+    /**
+     * Packet listeners get the video datagrams as they arrive, before they
+     * are decoded, e.g. to record them.
+     */
+    public void addVideoPacketListener(VideoPacketListener l)
+    {
+        synchronized(packet_listeners)
+        {
+            packet_listeners.add(l);
+        }
+    }
+
+    public void removeVideoPacketListener(VideoPacketListener l)
+    {
+        synchronized(packet_listeners)
+        {
+            packet_listeners.remove(l);
+        }
+    }
+
+    public void clearVideoPacketListeners()
+    {
+        synchronized(packet_listeners)
+        {
+            packet_listeners.clear();
         }
     }
 
@@ -277,17 +610,25 @@ public class ARDrone
             cmd_socket = new DatagramSocket();
             // control_socket = new Socket(drone_addr, CONTROL_PORT);
 
-            cmd_sender = new CommandSender(cmd_queue, this, drone_addr, cmd_socket);
-            cmd_sending_thread = new Thread(cmd_sender);
-            cmd_sending_thread.start();
+            cmd_sender = new CommandSender(cmd_queue, this, drone_addr, cmd_port, cmd_socket);
+            (cmd_scheduler != null ? cmd_scheduler : CommandScheduler.getDefault()).add(cmd_sender);
 
-            nav_data_reader = new NavDataReader(this, drone_addr, NAVDATA_PORT);
-            nav_data_reader_thread = new Thread(nav_data_reader);
-            nav_data_reader_thread.start();
+            DroneEventLoop loop = event_loop != null ? event_loop : DroneEventLoop.getDefault();
 
-            video_reader = new VideoReader(this, drone_addr, VIDEO_PORT);
-            video_reader_thread = new Thread(video_reader);
-            video_reader_thread.start();
+            // Navdata is handled on the loop thread: parsing it and queueing
+            // commands is cheap
+            nav_data_reader = new NavDataReader(this, drone_addr, navdata_port, local_navdata_port,
+                    navdata_buffer_size, navdata_receive_buffer_size);
+            nav_data_reader.start(loop);
+
+            video_reader = new VideoReader(this, drone_addr, video_port, local_video_port, video_buffer_size,
+                    video_receive_buffer_size);
+            video_reader.setDecodeExecutor(video_decode_executor);
+            video_reader.setDecodeMode(video_decode_mode);
+            video_reader.setIncrementalUpdate(video_incremental);
+            if(video_region != null)
+                video_reader.setRegionOfInterest(video_region[0], video_region[1], video_region[2], video_region[3]);
+            video_reader.start(loop);
 
             changeState(State.CONNECTING);
 
@@ -552,6 +893,49 @@ public class ARDrone
         this.combinedYawMode = combinedYawMode;
     }
 
+    /**
+     * Chooses between decoding the slices of each video frame one after the
+     * other on the video reader thread (the default) and in parallel.
+     */
+    public void setVideoDecodeMode(BufferedVideoImage.DecodeMode mode)
+    {
+        video_decode_mode = mode;
+        if(video_reader != null)
+            video_reader.setDecodeMode(mode);
+    }
+
+    /**
+     * With incremental updates the macroblocks a video frame does not code
+     * keep the pixels of the previous frame instead of being decoded again.
+     * {@link VideoFrame#getDirtyMacroBlocks()} tells VideoFrameListeners
+     * which parts of a frame changed.
+     */
+    public void setVideoIncrementalUpdate(boolean enabled)
+    {
+        video_incremental = enabled;
+        if(video_reader != null)
+            video_reader.setIncrementalUpdate(enabled);
+    }
+
+    /**
+     * Decode only the part of the video frames overlapping the given
+     * rectangle, e.g. around a tracked target. Frames delivered to
+     * VideoFrameListeners tell which part of them is fresh.
+     */
+    public void setVideoRegionOfInterest(int x, int y, int width, int height)
+    {
+        video_region = new int[] { x, y, width, height };
+        if(video_reader != null)
+            video_reader.setRegionOfInterest(x, y, width, height);
+    }
+
+    public void clearVideoRegionOfInterest()
+    {
+        video_region = null;
+        if(video_reader != null)
+            video_reader.clearRegionOfInterest();
+    }
+
     public void setConfigOption(String name, String value) throws IOException
     {
         cmd_queue.add(new ConfigureCommand(name, value));
@@ -576,13 +960,137 @@ public class ARDrone
         cmd_queue.add(new FlatTrimCommand());
     }
 
-    // Callback used by VideoReciver
+    /**
+     * Calls the image listeners right away on the calling thread, bypassing
+     * their mailboxes.
+     */
     public void videoFrameReceived(int startX, int startY, int w, int h, int[] rgbArray, int offset, int scansize)
     {
-        synchronized(image_listeners)
+        synchronized(video_mailboxes)
+        {
+            for(VideoFrameMailbox mailbox : video_mailboxes)
+            {
+                if(mailbox.getListener() instanceof DroneVideoListener)
+                    ((DroneVideoListener) mailbox.getListener()).frameReceived(startX, startY, w, h, rgbArray,
+                            offset, scansize);
+            }
+        }
+    }
+
+    /**
+     * Callback used by VideoReciver. Leaves the frame in the mailbox of every
+     * image and frame listener and returns without waiting for them.
+     */
+    public void videoFrameReceived(VideoFrame frame)
+    {
+        synchronized(video_mailboxes)
+        {
+            for(VideoFrameMailbox mailbox : video_mailboxes)
+                mailbox.post(frame);
+        }
+    }
+
+    /**
+     * Callback used by VideoReciver for the luma plane of a frame.
+     */
+    public void videoLumaReceived(int w, int h, byte[] luma)
+    {
+        synchronized(luma_listeners)
+        {
+            for(DroneLumaListener l : luma_listeners)
+                l.lumaFrameReceived(w, h, luma);
+        }
+    }
+
+    /**
+     * Callback used by VideoReciver for thumbnails. As with full frames, the
+     * pixel array is reused once the listeners return.
+     */
+    public void videoThumbnailReceived(int w, int h, int[] rgbArray)
+    {
+        synchronized(thumb_listeners)
+        {
+            for(DroneVideoListener l : thumb_listeners)
+                l.frameReceived(0, 0, w, h, rgbArray, 0, w);
+        }
+    }
+
+    /**
+     * Callback used by VideoReciver for every decoded slice.
+     */
+    public void videoSliceDecoded(int frameIndex, int slice, int firstRow, int endRow, int width, int[] pixels,
+            byte[] luma)
+    {
+        synchronized(slice_listeners)
+        {
+            for(VideoSliceListener l : slice_listeners)
+                l.sliceDecoded(frameIndex, slice, firstRow, endRow, width, pixels, luma);
+        }
+    }
+
+    /**
+     * Hands a video datagram to the packet listeners, leaving the position
+     * and limit of the buffer as they were. Runs on the event loop thread.
+     */
+    void videoPacketReceived(ByteBuffer packet)
+    {
+        synchronized(packet_listeners)
+        {
+            if(packet_listeners.isEmpty())
+                return;
+
+            long time = System.nanoTime();
+            int position = packet.position();
+            int limit = packet.limit();
+            for(VideoPacketListener l : packet_listeners)
+            {
+                l.videoPacketReceived(time, packet);
+                packet.limit(limit).position(position);
+            }
+        }
+    }
+
+    /**
+     * Tells VideoReader whether anyone wants RGB frames.
+     */
+    boolean hasColorVideoListeners()
+    {
+        synchronized(video_mailboxes)
+        {
+            return !video_mailboxes.isEmpty();
+        }
+    }
+
+    /**
+     * Tells VideoReader whether anyone wants the luma plane.
+     */
+    boolean hasLumaListeners()
+    {
+        synchronized(luma_listeners)
+        {
+            return !luma_listeners.isEmpty();
+        }
+    }
+
+    /**
+     * Tells VideoReader whether anyone wants slices.
+     */
+    boolean hasSliceListeners()
+    {
+        synchronized(slice_listeners)
+        {
+            return !slice_listeners.isEmpty();
+        }
+    }
+
+    /**
+     * Tells VideoReader whether anyone wants thumbnails.
+     */
+    boolean hasThumbnailListeners()
+    {
+        synchronized(thumb_listeners)
         {
-            for(DroneVideoListener l : image_listeners)
-                l.frameReceived(startX, startY, w, h, rgbArray, offset, scansize);
+            return !thumb_listeners.isEmpty();
         }
     }
 
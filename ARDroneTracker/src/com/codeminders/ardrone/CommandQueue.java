@@ -10,6 +10,9 @@ public class CommandQueue
 {
     private LinkedList<DroneCommand> data;
     private int                      maxSize;
+    private CommandScheduler         scheduler;
+    // When the sticky command at the head is due again, for poll()
+    private long                     sticky_due;
     @SuppressWarnings("unused")
     private Logger                   log = Logger.getLogger(getClass().getName());
 
@@ -43,6 +46,52 @@ public class CommandQueue
         }
     }
 
+    /**
+     * Returns the next command due at the given time, or null. Does not wait:
+     * a sticky command is returned again only {@link DroneCommand#getStickyRate()}
+     * milliseconds after it was last returned, as {@link #take()} does by
+     * sleeping.
+     */
+    public synchronized DroneCommand poll(long now)
+    {
+        DroneCommand res = data.peekLast();
+        if(res == null)
+            return null;
+
+        if(res.isSticky())
+        {
+            if(res.getStickyCounter() > 0 && now < sticky_due)
+                return null;
+            res.incrementStickyCounter();
+            sticky_due = now + res.getStickyRate();
+            return res;
+        }
+
+        return data.pollLast();
+    }
+
+    /**
+     * Time at which {@link #poll(long)} returns a command again, or
+     * Long.MAX_VALUE if the queue is empty.
+     */
+    public synchronized long getNextDue(long now)
+    {
+        DroneCommand res = data.peekLast();
+        if(res == null)
+            return Long.MAX_VALUE;
+        if(res.isSticky() && res.getStickyCounter() > 0)
+            return sticky_due;
+        return now;
+    }
+
+    /**
+     * Scheduler to wake up when commands are added.
+     */
+    synchronized void setScheduler(CommandScheduler scheduler)
+    {
+        this.scheduler = scheduler;
+    }
+
     public synchronized void add(DroneCommand cmd)
     {
         Iterator<DroneCommand> i = data.iterator();
@@ -88,6 +137,9 @@ public class CommandQueue
         {
             // TODO: trim
         }
+
+        // Replacing a command makes it due as well
+        wakeScheduler();
     }
 
     public synchronized int size()
@@ -101,4 +153,10 @@ public class CommandQueue
         notify();
     }
 
+    private void wakeScheduler()
+    {
+        if(scheduler != null)
+            scheduler.wakeup();
+    }
+
 }
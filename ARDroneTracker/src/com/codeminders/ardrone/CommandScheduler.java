@@ -0,0 +1,143 @@
+package com.codeminders.ardrone;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sends the queued commands of any number of drones on one thread. The
+ * thread sleeps until a command is queued or a sticky command is due again.
+ */
+public class CommandScheduler implements Runnable
+{
+    private static CommandScheduler   default_scheduler;
+
+    private final List<CommandSender> senders = new ArrayList<CommandSender>();
+    private Thread                    thread;
+    private boolean                   woken;
+    private boolean                   done;
+    private long                      sent_rounds;
+
+    /**
+     * Returns the scheduler shared by all drones that are not given one,
+     * starting it on first use.
+     */
+    public static synchronized CommandScheduler getDefault()
+    {
+        if(default_scheduler == null)
+        {
+            default_scheduler = new CommandScheduler();
+            default_scheduler.start();
+        }
+        return default_scheduler;
+    }
+
+    public synchronized void start()
+    {
+        if(thread != null)
+            return;
+
+        thread = new Thread(this, "Drone commands");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Ends the scheduler. Commands still queued are not sent.
+     */
+    public synchronized void stop()
+    {
+        done = true;
+        notifyAll();
+    }
+
+    /**
+     * Starts sending the commands queued for the sender, until it takes a
+     * {@link com.codeminders.ardrone.commands.QuitCommand}.
+     */
+    public void add(CommandSender sender)
+    {
+        sender.getQueue().setScheduler(this);
+        synchronized(this)
+        {
+            senders.add(sender);
+            wakeup();
+        }
+    }
+
+    private synchronized void remove(CommandSender sender)
+    {
+        senders.remove(sender);
+    }
+
+    /**
+     * Number of times the scheduler went through its senders.
+     */
+    public synchronized long getRoundCount()
+    {
+        return sent_rounds;
+    }
+
+    synchronized void wakeup()
+    {
+        woken = true;
+        notifyAll();
+    }
+
+    public void run()
+    {
+        while(true)
+        {
+            CommandSender[] current;
+            synchronized(this)
+            {
+                if(done)
+                    return;
+                woken = false;
+                current = senders.toArray(new CommandSender[senders.size()]);
+                sent_rounds++;
+            }
+
+            long now = System.currentTimeMillis();
+            long next = Long.MAX_VALUE;
+            for(int i = 0; i < current.length; i++)
+            {
+                CommandSender sender = current[i];
+                try
+                {
+                    long due = sender.send(now);
+                    if(due < 0)
+                        remove(sender);
+                    else if(due < next)
+                        next = due;
+                } catch(IOException e)
+                {
+                    remove(sender);
+                    sender.failed(e);
+                }
+            }
+
+            synchronized(this)
+            {
+                try
+                {
+                    if(!woken && !done)
+                    {
+                        if(next == Long.MAX_VALUE)
+                        {
+                            wait();
+                        } else
+                        {
+                            long delay = next - System.currentTimeMillis();
+                            if(delay > 0)
+                                wait(delay);
+                        }
+                    }
+                } catch(InterruptedException e)
+                {
+                    // Only stop() ends the scheduler
+                }
+            }
+        }
+    }
+}
@@ -1,4 +1,3 @@
-
 package com.codeminders.ardrone;
 
 import java.io.IOException;
@@ -8,59 +7,78 @@ import org.apache.log4j.Logger;
 
 import com.codeminders.ardrone.commands.*;
 
-public class CommandSender implements Runnable
+/**
+ * Sends the commands queued for one drone. Driven by a
+ * {@link CommandScheduler}, which serves the senders of all drones on one
+ * thread.
+ */
+public class CommandSender
 {
-    private static final int CMD_PORT = 5556;
+    static final int         CMD_PORT = 5556;
 
     private CommandQueue     cmd_queue;
     private ARDrone          drone;
     private InetAddress      drone_addr;
+    private int              cmd_port;
     private DatagramSocket   cmd_socket;
     private int              sequence = 1;
 
     private Logger           log      = Logger.getLogger(getClass().getName());
 
     public CommandSender(CommandQueue cmd_queue, ARDrone drone, InetAddress drone_addr, DatagramSocket cmd_socket)
+    {
+        this(cmd_queue, drone, drone_addr, CMD_PORT, cmd_socket);
+    }
+
+    public CommandSender(CommandQueue cmd_queue, ARDrone drone, InetAddress drone_addr, int cmd_port,
+            DatagramSocket cmd_socket)
     {
         this.cmd_queue = cmd_queue;
         this.drone = drone;
         this.drone_addr = drone_addr;
+        this.cmd_port = cmd_port;
         this.cmd_socket = cmd_socket;
     }
 
-    @Override
-    public void run()
+    CommandQueue getQueue()
+    {
+        return cmd_queue;
+    }
+
+    /**
+     * Sends every command due at the given time.
+     * 
+     * @return when the next command is due, Long.MAX_VALUE if none is queued,
+     *         or -1 once a {@link QuitCommand} was taken
+     */
+    long send(long now) throws IOException
     {
-        while(true)
+        DroneCommand c;
+        while((c = cmd_queue.poll(now)) != null)
         {
-            try
+            if(c instanceof QuitCommand)
             {
-                DroneCommand c = cmd_queue.take();
-                if(c instanceof QuitCommand)
-                {
-                    // Terminating
-                    break;
-                }
+                // Terminating
+                return -1;
+            }
 
-                if(c instanceof ATCommand)
-                {
-                    ATCommand cmd = (ATCommand) c;
-                    //if(!(c instanceof KeepAliveCommand) && !(c instanceof MoveCommand) && !(c instanceof HoverCommand) && c.getStickyCounter()==0)
-                        log.debug("Q[" + cmd_queue.size() + "]Sending AT command " + c);
-                    byte[] pdata = cmd.getPacket(sequence++); // TODO: pass
-                                                              // sequence number
-                    DatagramPacket p = new DatagramPacket(pdata, pdata.length, drone_addr, CMD_PORT);
-                    cmd_socket.send(p);
-                }
-            } catch(InterruptedException e)
-            {
-                // ignoring
-            } catch(IOException e)
+            if(c instanceof ATCommand)
             {
-                drone.changeToErrorState(e);
-                break;
+                ATCommand cmd = (ATCommand) c;
+                //if(!(c instanceof KeepAliveCommand) && !(c instanceof MoveCommand) && !(c instanceof HoverCommand) && c.getStickyCounter()==0)
+                    log.debug("Q[" + cmd_queue.size() + "]Sending AT command " + c);
+                byte[] pdata = cmd.getPacket(sequence++); // TODO: pass
+                                                          // sequence number
+                DatagramPacket p = new DatagramPacket(pdata, pdata.length, drone_addr, cmd_port);
+                cmd_socket.send(p);
             }
         }
+        return cmd_queue.getNextDue(now);
+    }
+
+    void failed(IOException e)
+    {
+        drone.changeToErrorState(e);
     }
 
 }
@@ -7,32 +7,78 @@ import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.DatagramChannel;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
-import java.util.Iterator;
-import java.util.Set;
 
-public abstract class DataReader implements Runnable {
+/**
+ * Receives the datagrams of one drone port on a {@link DroneEventLoop}.
+ */
+public abstract class DataReader implements DroneEventLoop.Handler {
 	
     private static final int RECONNECT_TIMEOUT = 1000;
-    private static final int MAX_TMEOUT = 5;
+
+    /**
+     * Largest UDP payload. Datagrams are always read whole, so that the
+     * bytes beyond buffer_size can be counted.
+     */
+    private static final int MAX_DATAGRAM_SIZE = 65507;
 
     protected DatagramChannel  channel;
     ARDrone                    drone;
-    protected Selector         selector;
-    private boolean            done;
+    private DroneEventLoop     loop;
+    private SelectionKey       key;
+    private volatile boolean   done;
     private InetAddress        drone_addr;
 	private int                data_port;
+	private int                local_port;
     
 	private long               timeOfLastMessage = 0;
 	private int                buffer_size;
+	private int                receive_buffer_size;
+
+	/**
+	 * Reused for every datagram. Handlers get a view limited to
+	 * buffer_size bytes.
+	 */
+	private ByteBuffer         inbuf;
+
+	// Written by the loop thread only
+	private volatile long      wakeups;
+	private volatile long      datagrams;
+	private volatile int       max_datagrams_per_wakeup;
+	private volatile long      truncated_datagrams;
+	private volatile long      truncated_bytes;
 	
 	
     public DataReader(ARDrone drone, InetAddress drone_addr, int data_port, int buffer_size) throws ClosedChannelException, IOException {
+        this(drone, drone_addr, data_port, buffer_size, 0);
+    }
+
+    /**
+     * Opens the channel. Nothing is received before {@link #start(DroneEventLoop)}.
+     *
+     * @param buffer_size largest datagram handed on whole; the rest of
+     *            larger ones is cut off and counted
+     * @param receive_buffer_size SO_RCVBUF of the socket, 0 for the system
+     *            default
+     */
+    public DataReader(ARDrone drone, InetAddress drone_addr, int data_port, int buffer_size, int receive_buffer_size)
+            throws ClosedChannelException, IOException {
+        this(drone, drone_addr, data_port, data_port, buffer_size, receive_buffer_size);
+    }
+
+    /**
+     * @param data_port port of the drone
+     * @param local_port port to receive on. Drones sharing a host need
+     *            different ones.
+     */
+    public DataReader(ARDrone drone, InetAddress drone_addr, int data_port, int local_port, int buffer_size,
+            int receive_buffer_size) throws ClosedChannelException, IOException {
         super();
         this.drone = drone;
         this.drone_addr = drone_addr;
         this.data_port = data_port;
+        this.local_port = local_port;
         this.buffer_size = buffer_size;
+        this.receive_buffer_size = receive_buffer_size;
         
         connect();
     }
@@ -41,21 +87,15 @@ public abstract class DataReader implements Runnable {
         
         channel = DatagramChannel.open();
         channel.configureBlocking(false);
-        channel.socket().bind(new InetSocketAddress(data_port));
+        if (receive_buffer_size > 0)
+            channel.socket().setReceiveBufferSize(receive_buffer_size);
+        channel.socket().bind(new InetSocketAddress(local_port));
         channel.connect(new InetSocketAddress(drone_addr, data_port));
-
-        selector = Selector.open();
-        channel.register(selector, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
     }
 
     private void disconnect() {
-        try {
-            if (selector.isOpen())
-                selector.close();
-        } catch (IOException iox) 
-        {
-            // Ignore
-        }
+        if (key != null)
+            key.cancel();
 
         if (!channel.socket().isClosed()) {
             channel.socket().close();
@@ -69,57 +109,163 @@ public abstract class DataReader implements Runnable {
             // Ignore
         }
     }
-    
-    @Override
-    public void run()
+
+    /**
+     * Starts receiving on the given loop.
+     */
+    public void start(DroneEventLoop loop)
     {
-        try
-        {
-            ByteBuffer inbuf = ByteBuffer.allocate(buffer_size);
-            done = false;
-            while(!done)
-            {
-                selector.select(MAX_TMEOUT);
-                if(done)
-                {
-                    disconnect();
-                    break;
-                }
-                Set readyKeys = selector.selectedKeys();
-                Iterator iterator = readyKeys.iterator();
-                
-                if (!iterator.hasNext()) {
-                    if (timeOfLastMessage > 0 && System.currentTimeMillis() - timeOfLastMessage > RECONNECT_TIMEOUT ) {
-                        disconnect();
-                        try {
-                            connect();
-                        } catch (Exception e) {
-                            // ignore
-                        }
-                        timeOfLastMessage = System.currentTimeMillis();
-                    }
-                }
-                while(iterator.hasNext())
-                {
-                    timeOfLastMessage = System.currentTimeMillis();
-                    SelectionKey key = (SelectionKey) iterator.next();
-                    iterator.remove();
-                    handleReceivedMessageKey(key, inbuf);
+        this.loop = loop;
+        loop.execute(new Runnable() {
+            public void run() {
+                if (done)
+                    return;
+                try {
+                    inbuf = ByteBuffer.allocateDirect(Math.max(buffer_size, MAX_DATAGRAM_SIZE));
+                    register();
+                } catch (Exception e) {
+                    failed(e);
                 }
             }
-        } catch(Exception e)
-        {
-            drone.changeToErrorState(e);
+        });
+    }
+
+    private void register() throws ClosedChannelException {
+        key = loop.register(channel, SelectionKey.OP_READ | SelectionKey.OP_WRITE, this);
+    }
+
+    public void handleKey(SelectionKey key) throws Exception
+    {
+        timeOfLastMessage = System.currentTimeMillis();
+        if (key.isWritable())
+            sendTrigger();
+        else if (key.isReadable())
+            readAll(inbuf);
+    }
+
+    /**
+     * Reconnects when the drone has gone quiet.
+     */
+    public void tick(long now) throws Exception
+    {
+        if (timeOfLastMessage > 0 && now - timeOfLastMessage > RECONNECT_TIMEOUT) {
+            disconnect();
+            // Let the old channel really close before binding its port again
+            loop.flushCancelledKeys();
+            try {
+                connect();
+                register();
+            } catch (Exception e) {
+                // ignore, retried after the next timeout
+            }
+            timeOfLastMessage = now;
+        }
+    }
+
+    public void failed(Exception e)
+    {
+        drone.changeToErrorState(e);
+    }
+
+    /**
+     * Asks the drone to start sending.
+     */
+    private void sendTrigger() throws IOException {
+        byte[] trigger_bytes = {0x01, 0x00, 0x00, 0x00};
+        ByteBuffer trigger_buf = ByteBuffer.allocate(trigger_bytes.length);
+        trigger_buf.put(trigger_bytes);
+        trigger_buf.flip();
+        channel.write(trigger_buf);
+        key.interestOps(SelectionKey.OP_READ);
+    }
+
+    /**
+     * Handles every datagram waiting in the socket, not just the first, so
+     * that a slow wake-up does not leave datagrams to pile up.
+     */
+    private void readAll(ByteBuffer inbuf) throws Exception {
+        int count = 0;
+        while (true) {
+            inbuf.clear();
+            if (channel.read(inbuf) <= 0)
+                break;
+            count++;
+
+            int len = inbuf.position();
+            if (len > buffer_size) {
+                truncated_datagrams++;
+                truncated_bytes += len - buffer_size;
+                len = buffer_size;
+            }
+
+            inbuf.flip();
+            inbuf.limit(len);
+            handlePacket(inbuf);
         }
 
+        wakeups++;
+        datagrams += count;
+        if (count > max_datagrams_per_wakeup)
+            max_datagrams_per_wakeup = count;
     }
 
-    abstract void handleReceivedMessageKey(SelectionKey key, ByteBuffer inbuf) throws Exception;
+    /**
+     * Handles one datagram, found between the position and the limit of the
+     * buffer. The buffer is reused for the next datagram.
+     */
+    abstract void handlePacket(ByteBuffer packet) throws Exception;
+
+    /**
+     * Number of times the loop woke up the reader to read datagrams.
+     */
+    public long getWakeupCount() {
+        return wakeups;
+    }
 
+    public long getDatagramCount() {
+        return datagrams;
+    }
+
+    public double getAverageDatagramsPerWakeup() {
+        long w = wakeups;
+        return w == 0 ? 0 : (double) datagrams / w;
+    }
+
+    public int getMaxDatagramsPerWakeup() {
+        return max_datagrams_per_wakeup;
+    }
+
+    /**
+     * Number of datagrams larger than the buffer size, which were cut off.
+     */
+    public long getTruncatedDatagramCount() {
+        return truncated_datagrams;
+    }
+
+    /**
+     * Number of bytes cut off datagrams larger than the buffer size.
+     */
+    public long getTruncatedByteCount() {
+        return truncated_bytes;
+    }
+
+    /**
+     * Closes the channel. Can be called from any thread.
+     */
     public void stop()
     {
         done = true;
-        selector.wakeup();
+        if (loop == null) {
+            disconnect();
+            return;
+        }
+
+        loop.execute(new Runnable() {
+            public void run() {
+                loop.remove(DataReader.this);
+                disconnect();
+            }
+        });
     }
 	
 }
\ No newline at end of file
@@ -0,0 +1,231 @@
+package com.codeminders.ardrone;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Serves the channels of any number of drones with one selector on one
+ * thread. Handlers run on that thread and must not block: they read what is
+ * ready and hand anything heavy, such as decoding video, to threads of their
+ * own. The loop sleeps in select until a channel is ready, waking up every
+ * {@link #TICK} milliseconds so handlers can notice silent channels.
+ */
+public class DroneEventLoop implements Runnable
+{
+    /**
+     * Channel user registered with the loop. All methods are called on the
+     * loop thread.
+     */
+    interface Handler
+    {
+        /**
+         * The channel registered with this handler is ready.
+         */
+        void handleKey(SelectionKey key) throws Exception;
+
+        /**
+         * Called about every {@link DroneEventLoop#TICK} milliseconds.
+         */
+        void tick(long now) throws Exception;
+
+        /**
+         * One of the other methods threw.
+         */
+        void failed(Exception e);
+    }
+
+    /**
+     * Longest time the loop sleeps, in milliseconds.
+     */
+    public static final int       TICK     = 100;
+
+    private static DroneEventLoop default_loop;
+
+    private final Logger          log      = Logger.getLogger(getClass().getName());
+    private final Selector        selector;
+    private final List<Runnable>  tasks    = new ArrayList<Runnable>();
+    private final List<Handler>   handlers = new ArrayList<Handler>();
+    private Thread                thread;
+    private volatile boolean      done;
+    private volatile long         wakeups;
+
+    public DroneEventLoop() throws IOException
+    {
+        selector = Selector.open();
+    }
+
+    /**
+     * Returns the loop shared by all drones that are not given one, starting
+     * it on first use.
+     */
+    public static synchronized DroneEventLoop getDefault() throws IOException
+    {
+        if(default_loop == null)
+        {
+            default_loop = new DroneEventLoop();
+            default_loop.start();
+        }
+        return default_loop;
+    }
+
+    public synchronized void start()
+    {
+        if(thread != null)
+            return;
+
+        thread = new Thread(this, "Drone I/O");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Ends the loop and closes its selector. Channels are left open.
+     */
+    public void stop()
+    {
+        done = true;
+        selector.wakeup();
+    }
+
+    /**
+     * Number of times the loop woke up, whether for ready channels, tasks or
+     * ticks.
+     */
+    public long getWakeupCount()
+    {
+        return wakeups;
+    }
+
+    /**
+     * Runs the task on the loop thread, after the handlers of the current
+     * round of ready channels. Can be called from any thread, including the
+     * loop thread.
+     */
+    void execute(Runnable task)
+    {
+        synchronized(tasks)
+        {
+            tasks.add(task);
+        }
+        selector.wakeup();
+    }
+
+    /**
+     * Registers a channel and its handler. Loop thread only.
+     */
+    SelectionKey register(SelectableChannel channel, int ops, Handler handler) throws ClosedChannelException
+    {
+        if(!handlers.contains(handler))
+            handlers.add(handler);
+        return channel.register(selector, ops, handler);
+    }
+
+    /**
+     * Stops ticking the handler. Its keys have to be cancelled by the caller.
+     * Loop thread only, from a task.
+     */
+    void remove(Handler handler)
+    {
+        handlers.remove(handler);
+    }
+
+    /**
+     * Deregisters cancelled keys right away, so that their channels really
+     * close and their ports can be bound again. Loop thread only, outside of
+     * {@link Handler#handleKey(SelectionKey)}.
+     */
+    void flushCancelledKeys() throws IOException
+    {
+        selector.selectNow();
+    }
+
+    public void run()
+    {
+        long last_tick = System.currentTimeMillis();
+        try
+        {
+            while(!done)
+            {
+                selector.select(TICK);
+                wakeups++;
+
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while(iterator.hasNext())
+                {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    Handler handler = (Handler) key.attachment();
+                    try
+                    {
+                        if(key.isValid())
+                            handler.handleKey(key);
+                    } catch(Exception e)
+                    {
+                        handler.failed(e);
+                    }
+                }
+
+                runTasks();
+
+                long now = System.currentTimeMillis();
+                if(now - last_tick >= TICK)
+                {
+                    last_tick = now;
+                    for(int i = 0; i < handlers.size(); i++)
+                    {
+                        Handler handler = handlers.get(i);
+                        try
+                        {
+                            handler.tick(now);
+                        } catch(Exception e)
+                        {
+                            handler.failed(e);
+                        }
+                    }
+                }
+            }
+        } catch(IOException e)
+        {
+            log.error("Drone event loop failed", e);
+        } finally
+        {
+            try
+            {
+                selector.close();
+            } catch(IOException e)
+            {
+                // Ignore
+            }
+        }
+    }
+
+    private void runTasks()
+    {
+        while(true)
+        {
+            Runnable task;
+            synchronized(tasks)
+            {
+                if(tasks.isEmpty())
+                    return;
+                task = tasks.remove(0);
+            }
+
+            try
+            {
+                task.run();
+            } catch(RuntimeException e)
+            {
+                log.error("Drone event loop task failed", e);
+            }
+        }
+    }
+}
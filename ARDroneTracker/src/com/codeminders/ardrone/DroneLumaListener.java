@@ -0,0 +1,11 @@
+package com.codeminders.ardrone;
+
+public interface DroneLumaListener
+{
+    /**
+     * Luma (Y) plane of a video frame, one unsigned byte per pixel in rows of
+     * w pixels. The array is reused for the next frame, so it is only valid
+     * during this call.
+     */
+    void lumaFrameReceived(int w, int h, byte[] luma);
+}
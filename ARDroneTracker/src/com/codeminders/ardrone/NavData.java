@@ -149,7 +149,15 @@ public class NavData
 
     public static NavData createFromData(byte[] buf) throws NavDataFormatException
     {
-        log.debug("Parsing navdata len=" + buf.length);
+        return createFromData(buf, buf.length);
+    }
+
+    /**
+     * Parses the first <code>length</code> bytes of the array.
+     */
+    public static NavData createFromData(byte[] buf, int length) throws NavDataFormatException
+    {
+        log.debug("Parsing navdata len=" + length);
         NavData data = new NavData();
         data.mode = NavData.Mode.BOOTSTRAP; // Assume we are in bootstrap
 
@@ -173,7 +181,7 @@ public class NavData
         offset += 4;
 
         // Read options
-        while(offset < buf.length)
+        while(offset < length)
         {
             int option_tag = byteArrayToShort(buf, offset);
             offset += 2;
@@ -4,42 +4,45 @@ package com.codeminders.ardrone;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.nio.ByteBuffer;
-import java.nio.channels.SelectionKey;
 
 public class NavDataReader extends DataReader {
     
-    private static final int BUFSIZE = 4096;
+    public static final int BUFSIZE = 4096;
+
+    /**
+     * Navdata is parsed from a heap copy of the datagram, reused for every
+     * datagram.
+     */
+    private final byte[]    packet;
 
     public NavDataReader(ARDrone drone, InetAddress drone_addr, int navdata_port) throws IOException
     {
-        super(drone, drone_addr, navdata_port, BUFSIZE);
+        this(drone, drone_addr, navdata_port, BUFSIZE, 0);
+    }
+
+    public NavDataReader(ARDrone drone, InetAddress drone_addr, int navdata_port, int buffer_size,
+            int receive_buffer_size) throws IOException
+    {
+        this(drone, drone_addr, navdata_port, navdata_port, buffer_size, receive_buffer_size);
+    }
+
+    public NavDataReader(ARDrone drone, InetAddress drone_addr, int navdata_port, int local_port, int buffer_size,
+            int receive_buffer_size) throws IOException
+    {
+        super(drone, drone_addr, navdata_port, local_port, buffer_size, receive_buffer_size);
+        packet = new byte[buffer_size];
     }
 
 
     @Override
-    void handleReceivedMessageKey(SelectionKey key, ByteBuffer inbuf) throws Exception 
+    void handlePacket(ByteBuffer inbuf) throws Exception 
     {
-        
-        if(key.isWritable())
-        {
-            byte[] trigger_bytes = {0x01, 0x00, 0x00, 0x00};
-            ByteBuffer trigger_buf = ByteBuffer.allocate(trigger_bytes.length);
-            trigger_buf.put(trigger_bytes);
-            trigger_buf.flip();
-            channel.write(trigger_buf);
-            channel.register(selector, SelectionKey.OP_READ);
-        } else if(key.isReadable())
-        {
-            inbuf.clear();
-            int len = channel.read(inbuf);
-            byte[] packet = new byte[len];
-            inbuf.flip();
-            inbuf.get(packet, 0, len);
-
-            NavData nd = NavData.createFromData(packet);
-
-            drone.navDataReceived(nd);
-        }
+        int len = inbuf.remaining();
+        inbuf.get(packet, 0, len);
+
+        NavData nd = NavData.createFromData(packet, len);
+
+        drone.navDataReceived(nd);
     }
 
 }
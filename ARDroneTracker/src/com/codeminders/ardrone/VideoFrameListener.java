@@ -0,0 +1,13 @@
+package com.codeminders.ardrone;
+
+import com.codeminders.ardrone.video.VideoFrame;
+
+public interface VideoFrameListener
+{
+    /**
+     * The frame is only valid during this call unless the listener calls
+     * {@link VideoFrame#retain()}, in which case it has to call
+     * {@link VideoFrame#release()} when finished with it.
+     */
+    void frameReceived(VideoFrame frame);
+}
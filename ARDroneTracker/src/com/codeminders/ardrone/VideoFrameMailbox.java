@@ -0,0 +1,179 @@
+package com.codeminders.ardrone;
+
+import org.apache.log4j.Logger;
+
+import com.codeminders.ardrone.video.VideoFrame;
+
+/**
+ * Hands video frames to one listener on a thread of its own. The mailbox
+ * holds a single frame: a frame arriving before the listener has taken the
+ * previous one replaces it, so a slow listener sees fewer frames but never
+ * holds up the video reader.
+ */
+public class VideoFrameMailbox implements Runnable
+{
+    private static final Logger      log = Logger.getLogger(VideoFrameMailbox.class.getName());
+
+    private final Object             listener;
+    private final VideoFrameListener target;
+    private final Thread             worker;
+
+    private VideoFrame               frame;
+    private long                     posted_at;
+    private boolean                  closed;
+
+    private long                     delivered;
+    private long                     dropped;
+    private long                     last_lag;
+    private long                     max_lag;
+    private long                     total_lag;
+
+    /**
+     * @param listener the listener as registered, used to find the mailbox
+     *            again
+     * @param target calls the listener with a frame
+     */
+    VideoFrameMailbox(Object listener, VideoFrameListener target)
+    {
+        this.listener = listener;
+        this.target = target;
+        worker = new Thread(this, "Video listener " + listener.getClass().getSimpleName());
+        worker.setDaemon(true);
+    }
+
+    void start()
+    {
+        worker.start();
+    }
+
+    public Object getListener()
+    {
+        return listener;
+    }
+
+    /**
+     * Leaves the frame for the listener, replacing any frame it has not
+     * taken yet. The mailbox holds its own reference to the frame.
+     */
+    void post(VideoFrame new_frame)
+    {
+        new_frame.retain();
+
+        VideoFrame replaced;
+        synchronized(this)
+        {
+            if(closed)
+            {
+                replaced = new_frame;
+            } else
+            {
+                replaced = frame;
+                if(replaced != null)
+                    dropped++;
+                frame = new_frame;
+                posted_at = System.nanoTime();
+                notifyAll();
+            }
+        }
+
+        if(replaced != null)
+            replaced.release();
+    }
+
+    /**
+     * Stops the worker once the listener returns from the current frame and
+     * drops the frame waiting for it, if any.
+     */
+    void close()
+    {
+        VideoFrame left;
+        synchronized(this)
+        {
+            closed = true;
+            left = frame;
+            frame = null;
+            notifyAll();
+        }
+
+        if(left != null)
+            left.release();
+    }
+
+    public void run()
+    {
+        while(true)
+        {
+            VideoFrame next;
+            synchronized(this)
+            {
+                while(frame == null && !closed)
+                {
+                    try
+                    {
+                        wait();
+                    } catch(InterruptedException e)
+                    {
+                        // Only close() ends the worker
+                    }
+                }
+                if(closed)
+                    return;
+
+                next = frame;
+                frame = null;
+
+                last_lag = System.nanoTime() - posted_at;
+                total_lag += last_lag;
+                if(last_lag > max_lag)
+                    max_lag = last_lag;
+                delivered++;
+            }
+
+            try
+            {
+                target.frameReceived(next);
+            } catch(RuntimeException e)
+            {
+                log.error("Video listener failed", e);
+            } finally
+            {
+                next.release();
+            }
+        }
+    }
+
+    /**
+     * Number of frames handed to the listener.
+     */
+    public synchronized long getDeliveredFrames()
+    {
+        return delivered;
+    }
+
+    /**
+     * Number of frames replaced by a newer one before the listener got to
+     * them.
+     */
+    public synchronized long getDroppedFrames()
+    {
+        return dropped;
+    }
+
+    /**
+     * Time the last delivered frame waited in the mailbox, in nanoseconds.
+     */
+    public synchronized long getLastLag()
+    {
+        return last_lag;
+    }
+
+    public synchronized long getMaxLag()
+    {
+        return max_lag;
+    }
+
+    public synchronized long getAverageLag()
+    {
+        return delivered == 0 ? 0 : total_lag / delivered;
+    }
+}
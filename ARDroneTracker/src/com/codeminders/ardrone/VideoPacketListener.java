@@ -0,0 +1,14 @@
+package com.codeminders.ardrone;
+
+import java.nio.ByteBuffer;
+
+public interface VideoPacketListener
+{
+    /**
+     * A raw video datagram, between the position and the limit of the
+     * buffer, received at the given {@link System#nanoTime()}. Called on the
+     * event loop thread before the datagram is decoded, so it has to be
+     * quick. The buffer is only valid during this call.
+     */
+    void videoPacketReceived(long time, ByteBuffer packet);
+}
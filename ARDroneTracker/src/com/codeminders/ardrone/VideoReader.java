@@ -4,48 +4,301 @@ package com.codeminders.ardrone;
 import java.io.IOException;
 import java.net.*;
 import java.nio.ByteBuffer;
-import java.nio.channels.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import com.codeminders.ardrone.video.*;
 
-public class VideoReader extends DataReader {
+/**
+ * Receives video datagrams on the event loop and decodes them on a decode
+ * executor, so a slow frame never holds up navdata. Only the newest datagram
+ * waits for the decoder; one arriving before the decoder took the previous
+ * one replaces it. Frames of one reader are decoded one at a time, in order.
+ */
+public class VideoReader extends DataReader implements Runnable {
     /**
      * Image data buffer. It should be big enough to hold single full frame
      * (encoded).
      */
-    private static final int BUFSIZE = 100 * 1024;
-  
+    public static final int BUFSIZE = 100 * 1024;
+
+    private static Executor default_decode_executor;
+
+    /**
+     * The decoder lives as long as the reader, so its slice buffers are reused
+     * from frame to frame. Decoded pixels go to the drone's frame ring and to
+     * frames taken from the pool, for whichever has readers.
+     */
+    private final BufferedVideoImage decoder    = new BufferedVideoImage();
+    private final VideoFramePool     frame_pool = new VideoFramePool();
+
+    /**
+     * x, y, width and height of the region of interest, or null for whole
+     * frames. Replaced as a whole so the reader thread never sees half an
+     * update.
+     */
+    private volatile int[]           region;
+
+    private Executor                 decode_executor;
+    private final Object             frame_lock = new Object();
+
+    /**
+     * Filled on the loop thread, swapped with decode_buffer when the decoder
+     * takes it.
+     */
+    private ByteBuffer               pending_buffer;
+    private ByteBuffer               decode_buffer;
+    private boolean                  frame_pending;
+    // A datagram was replaced since the decoder last took one
+    private boolean                  frame_replaced;
+    // Submitted to the executor and not finished yet
+    private boolean                  decode_scheduled;
+    private boolean                  decoding_done;
+    private volatile long            dropped_frames;
+
+    private final VideoSliceListener slice_forwarder = new VideoSliceListener()
+    {
+        public void sliceDecoded(int frameIndex, int slice, int firstRow, int endRow, int width, int[] pixels,
+                byte[] luma)
+        {
+            drone.videoSliceDecoded(frameIndex, slice, firstRow, endRow, width, pixels, luma);
+        }
+    };
 
     public VideoReader(ARDrone drone, InetAddress drone_addr, int video_port) throws IOException
     {
-        super(drone, drone_addr, video_port, BUFSIZE);
+        this(drone, drone_addr, video_port, BUFSIZE, 0);
+    }
+
+    public VideoReader(ARDrone drone, InetAddress drone_addr, int video_port, int buffer_size,
+            int receive_buffer_size) throws IOException
+    {
+        this(drone, drone_addr, video_port, video_port, buffer_size, receive_buffer_size);
+    }
+
+    public VideoReader(ARDrone drone, InetAddress drone_addr, int video_port, int local_port, int buffer_size,
+            int receive_buffer_size) throws IOException
+    {
+        super(drone, drone_addr, video_port, local_port, buffer_size, receive_buffer_size);
+        pending_buffer = ByteBuffer.allocate(buffer_size);
+        decode_buffer = ByteBuffer.allocate(buffer_size);
+    }
+
+    /**
+     * Sets the executor frames are decoded on, or null for a pool shared by
+     * all readers, with one daemon thread per processor. Set before
+     * {@link #start(DroneEventLoop)}. It must not be the executor parallel
+     * slice decoding runs on, as decoding a frame waits for its slices.
+     */
+    public void setDecodeExecutor(Executor executor)
+    {
+        decode_executor = executor;
+    }
+
+    @Override
+    public void start(DroneEventLoop loop)
+    {
+        if(decode_executor == null)
+            decode_executor = getDefaultDecodeExecutor();
+        super.start(loop);
+    }
+
+    @Override
+    public void stop()
+    {
+        super.stop();
+        synchronized(frame_lock)
+        {
+            decoding_done = true;
+        }
+    }
+
+    private static synchronized Executor getDefaultDecodeExecutor()
+    {
+        if(default_decode_executor == null)
+        {
+            default_decode_executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                    new ThreadFactory()
+                    {
+                        public Thread newThread(Runnable r)
+                        {
+                            Thread thread = new Thread(r, "Video decoder");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+        }
+        return default_decode_executor;
+    }
+
+    /**
+     * Number of datagrams replaced by a newer one before the decoder got to
+     * them.
+     */
+    public long getDroppedFrameCount()
+    {
+        return dropped_frames;
+    }
+
+    public void setPixelFormat(BufferedVideoImage.PixelFormat format)
+    {
+        decoder.setPixelFormat(format);
+    }
+
+    public void setDecodeMode(BufferedVideoImage.DecodeMode mode)
+    {
+        decoder.setDecodeMode(mode);
     }
 
+    /**
+     * See {@link BufferedVideoImage#setIncrementalUpdate(boolean)}. The frame
+     * after a datagram that was replaced before it was decoded is always
+     * decoded in full, as the frame it would update was never decoded.
+     */
+    public void setIncrementalUpdate(boolean enabled)
+    {
+        decoder.setIncrementalUpdate(enabled);
+    }
+
+    /**
+     * Only decode the macroblocks overlapping the given rectangle from the
+     * next frame on; see {@link VideoFrame#getValidX()} for the part of the
+     * frame that is fresh. Can be called from any thread.
+     */
+    public void setRegionOfInterest(int x, int y, int width, int height)
+    {
+        region = new int[] { x, y, width, height };
+    }
+
+    public void clearRegionOfInterest()
+    {
+        region = null;
+    }
+
+    /**
+     * Leaves the datagram for the decoder. Runs on the loop thread.
+     */
     @Override
-    void handleReceivedMessageKey(SelectionKey key, ByteBuffer inbuf)
-            throws Exception {
-        
-        if(key.isWritable())
-        {
-            byte[] trigger_bytes = { 0x01, 0x00, 0x00, 0x00 };
-            ByteBuffer trigger_buf = ByteBuffer.allocate(trigger_bytes.length);
-            trigger_buf.put(trigger_bytes);
-            trigger_buf.flip();
-            channel.write(trigger_buf);
-            channel.register(selector, SelectionKey.OP_READ);
-        } else if(key.isReadable())
-        {
-            inbuf.clear();
-            int len = channel.read(inbuf);
-            if(len > 0)
+    void handlePacket(ByteBuffer inbuf) throws Exception
+    {
+        drone.videoPacketReceived(inbuf);
+
+        boolean submit;
+        synchronized(frame_lock)
+        {
+            if(frame_pending)
+            {
+                dropped_frames++;
+                frame_replaced = true;
+            }
+            pending_buffer.clear();
+            pending_buffer.put(inbuf);
+            pending_buffer.flip();
+            frame_pending = true;
+
+            submit = !decode_scheduled;
+            decode_scheduled = true;
+        }
+
+        if(submit)
+            decode_executor.execute(this);
+    }
+
+    /**
+     * Decodes the datagram left by {@link #handlePacket(ByteBuffer)}. Runs on
+     * the decode executor, which gets the reader again if another datagram
+     * arrived meanwhile, so that readers of other drones get their turn.
+     */
+    public void run()
+    {
+        boolean replaced;
+        synchronized(frame_lock)
+        {
+            if(!frame_pending || decoding_done)
+            {
+                decode_scheduled = false;
+                return;
+            }
+
+            ByteBuffer b = decode_buffer;
+            decode_buffer = pending_buffer;
+            pending_buffer = b;
+            frame_pending = false;
+            replaced = frame_replaced;
+            frame_replaced = false;
+        }
+
+        try
+        {
+            if(replaced)
+                decoder.discardPreviousFrame();
+            decode(decode_buffer);
+        } catch(Exception e)
+        {
+            synchronized(frame_lock)
+            {
+                decode_scheduled = false;
+            }
+            drone.changeToErrorState(e);
+            return;
+        }
+
+        boolean submit;
+        synchronized(frame_lock)
+        {
+            submit = frame_pending && !decoding_done;
+            decode_scheduled = submit;
+        }
+
+        if(submit)
+            decode_executor.execute(this);
+    }
+
+    private void decode(ByteBuffer inbuf) throws Exception
+    {
+        // Only produce what is subscribed to. Without any listeners
+        // frames are still decoded to colour, as before.
+        boolean luma = drone.hasLumaListeners();
+        boolean thumbnail = drone.hasThumbnailListeners();
+        decoder.setLumaEnabled(luma);
+        decoder.setThumbnailEnabled(thumbnail);
+        boolean frames = drone.hasColorVideoListeners();
+        VideoFrameRing ring = drone.getVideoRing();
+        boolean ring_consumers = ring.hasConsumers();
+        decoder.setColorEnabled((!luma && !thumbnail) || frames || ring_consumers);
+        decoder.setFramePool(frames ? frame_pool : null);
+        decoder.setFrameRing(ring_consumers ? ring : null);
+        decoder.setSliceListener(drone.hasSliceListeners() ? slice_forwarder : null);
+
+        int[] r = region;
+        if(r != null)
+            decoder.setRegionOfInterest(r[0], r[1], r[2], r[3]);
+        else
+            decoder.clearRegionOfInterest();
+
+        decoder.addImageStream(inbuf);
+        VideoFrame frame = decoder.takeFrame();
+        if(frame != null)
+        {
+            try
             {
-                inbuf.flip();
-                final BufferedVideoImage vi = new BufferedVideoImage();
-                vi.addImageStream(inbuf);
-                drone.videoFrameReceived(0, 0, vi.getWidth(), vi.getHeight(), vi.getJavaPixelData(), 0, vi.getWidth());
+                drone.videoFrameReceived(frame);
+            } finally
+            {
+                // Back to the pool once the mailboxes are done with it
+                frame.release();
             }
         }
-        
+
+        byte[] luma_data = decoder.getLumaData();
+        if(luma_data != null)
+            drone.videoLumaReceived(decoder.getWidth(), decoder.getHeight(), luma_data);
+
+        int[] thumbnail_data = decoder.getThumbnailData();
+        if(thumbnail_data != null)
+            drone.videoThumbnailReceived(decoder.getThumbnailWidth(), decoder.getThumbnailHeight(),
+                    thumbnail_data);
     }
 
 }
@@ -0,0 +1,615 @@
+package com.codeminders.ardrone.simulator;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import com.codeminders.ardrone.NavData.NavDataTag;
+
+/**
+ * Plays a drone on three UDP ports, so that {@link com.codeminders.ardrone.ARDrone}
+ * can be run without hardware. Like a drone it starts streaming navdata and
+ * video to whoever sends a datagram to the navdata or video port, and flies
+ * a {@link FlightModel} according to the AT commands sent to its command
+ * port. Navdata is sent in bootstrap mode, header only, until demo navdata
+ * is configured.
+ *
+ * Navdata and video rates can be set far beyond the real ones to find out
+ * where the client falls behind; the counters tell what was sent and how
+ * many AT commands went missing on the way.
+ *
+ * To talk to a simulator on the same host, give the drone object local
+ * ports other than the simulator's, e.g.
+ * <code>new ARDrone(InetAddress.getByName("127.0.0.1"), 5554, 5555, 5556, 6554, 6555)</code>.
+ */
+public class DroneSimulator implements Runnable
+{
+    /**
+     * Navdata datagrams per second a drone sends in demo mode.
+     */
+    public static final double   NAVDATA_RATE     = 15;
+
+    /**
+     * Video frames per second a drone sends.
+     */
+    public static final double   VIDEO_RATE       = 15;
+
+    /**
+     * The drone reports a communication problem and hovers when it got no
+     * command for this many milliseconds.
+     */
+    public static final int      WATCHDOG_TIMEOUT = 2000;
+
+    private static final int     NAVDATA_HEADER   = 0x55667788;
+    private static final int     ACK_CONTROL_MODE = 5;
+
+    private final Logger         log              = Logger.getLogger(getClass().getName());
+
+    private final InetAddress    address;
+    private final int            navdata_port;
+    private final int            video_port;
+    private final int            command_port;
+    private final FlightModel    flight           = new FlightModel();
+
+    private Selector             selector;
+    private DatagramChannel      navdata;
+    private DatagramChannel      video;
+    private DatagramChannel      commands;
+    private Thread               thread;
+    private volatile boolean     done;
+
+    private volatile VideoSource video_source     = new SyntheticVideoSource(320, 240, 0.5);
+    private volatile double      navdata_rate     = NAVDATA_RATE;
+    private volatile double      video_rate       = VIDEO_RATE;
+
+    private final ByteBuffer     navdata_buffer   = ByteBuffer.allocate(128).order(ByteOrder.LITTLE_ENDIAN);
+    private final ByteBuffer     receive_buffer   = ByteBuffer.allocate(65536);
+    private SocketAddress        navdata_client;
+    private SocketAddress        video_client;
+
+    private final Map<String, String> config = new HashMap<String, String>();
+
+    // Read and written on the simulator thread only
+    private boolean              demo;
+    private boolean              control_received;
+    private int                  navdata_sequence = 1;
+    private int                  last_sequence;
+    private long                 last_command_time;
+
+    private volatile long        command_count;
+    private volatile long        lost_commands;
+    private volatile long        stale_commands;
+    private volatile long        unknown_commands;
+    private volatile long        navdata_count;
+    private volatile long        video_count;
+    private volatile long        late_datagrams;
+
+    public DroneSimulator(InetAddress address, int navdata_port, int video_port, int command_port)
+    {
+        this.address = address;
+        this.navdata_port = navdata_port;
+        this.video_port = video_port;
+        this.command_port = command_port;
+    }
+
+    /**
+     * Binds the ports and starts the simulator thread.
+     */
+    public synchronized void start() throws IOException
+    {
+        if(thread != null)
+            return;
+
+        selector = Selector.open();
+        navdata = open(navdata_port);
+        video = open(video_port);
+        commands = open(command_port);
+
+        thread = new Thread(this, "Drone simulator " + navdata_port);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private DatagramChannel open(int port) throws IOException
+    {
+        DatagramChannel channel = DatagramChannel.open();
+        channel.configureBlocking(false);
+        channel.socket().bind(new InetSocketAddress(address, port));
+        channel.register(selector, SelectionKey.OP_READ);
+        return channel;
+    }
+
+    /**
+     * Stops the simulator and closes its ports.
+     */
+    public void stop()
+    {
+        done = true;
+        if(selector != null)
+            selector.wakeup();
+    }
+
+    /**
+     * Sets the video to stream, or null to send none. Without a source set a
+     * {@link SyntheticVideoSource} at 320x240 is streamed.
+     */
+    public void setVideoSource(VideoSource source)
+    {
+        video_source = source;
+    }
+
+    /**
+     * Sets the navdata datagrams sent per second.
+     */
+    public void setNavDataRate(double rate)
+    {
+        navdata_rate = rate;
+    }
+
+    /**
+     * Sets the video frames sent per second.
+     */
+    public void setVideoRate(double rate)
+    {
+        video_rate = rate;
+    }
+
+    public FlightModel getFlightModel()
+    {
+        return flight;
+    }
+
+    public void run()
+    {
+        long now = System.nanoTime();
+        long last_step = now;
+        long next_navdata = now;
+        long next_video = now;
+        last_command_time = now;
+
+        try
+        {
+            while(!done)
+            {
+                now = System.nanoTime();
+                flight.advance((now - last_step) / 1e9f);
+                last_step = now;
+                if(isCommunicationLost(now))
+                    flight.hover();
+
+                if(now >= next_navdata)
+                {
+                    sendNavData();
+                    next_navdata = next(next_navdata, now, (long) (1e9 / navdata_rate));
+                }
+
+                if(now >= next_video)
+                {
+                    VideoSource source = video_source;
+                    sendVideo(source);
+                    if(source instanceof RecordedVideoSource)
+                        next_video = next(next_video, now, ((RecordedVideoSource) source).getNextInterval());
+                    else
+                        next_video = next(next_video, now, (long) (1e9 / video_rate));
+                }
+
+                long wait = Math.min(next_navdata, next_video) - System.nanoTime();
+                if(wait >= 1000000)
+                    selector.select(wait / 1000000);
+                else
+                    selector.selectNow();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while(keys.hasNext())
+                {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if(key.channel() == commands)
+                        receiveCommands();
+                    else
+                        receiveTrigger((DatagramChannel) key.channel());
+                }
+            }
+        } catch(IOException e)
+        {
+            log.error("Drone simulator failed", e);
+        } finally
+        {
+            close();
+        }
+    }
+
+    /**
+     * Time of the next datagram sent a period after the last one. A simulator
+     * that has fallen more than a period behind skips ahead rather than
+     * sending a burst. With no period at all datagrams are sent as fast as
+     * possible.
+     */
+    private long next(long scheduled, long now, long period)
+    {
+        long next = scheduled + period;
+        if(next <= now && period > 0)
+        {
+            late_datagrams++;
+            next = now + period;
+        }
+        return next;
+    }
+
+    private boolean isCommunicationLost(long now)
+    {
+        return now - last_command_time > WATCHDOG_TIMEOUT * 1000000L;
+    }
+
+    private void close()
+    {
+        try
+        {
+            selector.close();
+            navdata.close();
+            video.close();
+            commands.close();
+        } catch(IOException e)
+        {
+            // Ignore
+        }
+    }
+
+    /**
+     * A drone streams to whoever sends a datagram to its navdata or video
+     * port.
+     */
+    private void receiveTrigger(DatagramChannel channel) throws IOException
+    {
+        SocketAddress client;
+        while(true)
+        {
+            receive_buffer.clear();
+            client = channel.receive(receive_buffer);
+            if(client == null)
+                return;
+
+            if(channel == navdata)
+                navdata_client = client;
+            else
+                video_client = client;
+        }
+    }
+
+    private void sendNavData() throws IOException
+    {
+        if(navdata_client == null)
+            return;
+
+        ByteBuffer b = navdata_buffer;
+        b.clear();
+        b.putInt(NAVDATA_HEADER);
+        b.putInt(getState());
+        b.putInt(navdata_sequence++);
+        b.putInt(0);
+
+        if(demo)
+        {
+            b.putShort((short) NavDataTag.NAVDATA_DEMO_TAG.getValue());
+            b.putShort((short) 40);
+            b.putInt(flight.getControlState().ordinal() << 16);
+            b.putInt(Math.round(flight.getBattery()));
+            b.putFloat(flight.getPitch() * 1000);
+            b.putFloat(flight.getRoll() * 1000);
+            b.putFloat(flight.getYaw() * 1000);
+            b.putInt(Math.round(flight.getAltitude() * 1000));
+            b.putFloat(flight.getVx() * 1000);
+            b.putFloat(flight.getVy() * 1000);
+            b.putFloat(flight.getVz() * 1000);
+
+            int checksum = 0;
+            for(int i = 0; i < b.position(); i++)
+                checksum += b.get(i) & 0xFF;
+            b.putShort((short) NavDataTag.NAVDATA_CKS_TAG.getValue());
+            b.putShort((short) 8);
+            b.putInt(checksum);
+        }
+
+        b.flip();
+        navdata.send(b, navdata_client);
+        navdata_count++;
+    }
+
+    private int getState()
+    {
+        int state = (1 << 24) | (1 << 25) | (1 << 26);
+        if(flight.isFlying())
+            state |= 1;
+        if(control_received)
+            state |= 1 << 6;
+        state |= demo ? (1 << 10) : (1 << 11);
+        if(flight.getBattery() < 20)
+            state |= 1 << 15;
+        if(isCommunicationLost(System.nanoTime()))
+            state |= 1 << 30;
+        if(flight.isEmergency())
+            state |= 1 << 31;
+        return state;
+    }
+
+    private void sendVideo(VideoSource source) throws IOException
+    {
+        if(video_client == null || source == null)
+            return;
+
+        video.send(source.nextFrame(), video_client);
+        video_count++;
+    }
+
+    private void receiveCommands() throws IOException
+    {
+        while(true)
+        {
+            receive_buffer.clear();
+            if(commands.receive(receive_buffer) == null)
+                return;
+
+            receive_buffer.flip();
+            String packet = new String(receive_buffer.array(), 0, receive_buffer.limit(), "US-ASCII");
+            for(String command : packet.split("\r"))
+            {
+                if(command.startsWith("AT*"))
+                    handleCommand(command);
+            }
+        }
+    }
+
+    /**
+     * Handles one command of the form AT*NAME=sequence,argument,...
+     */
+    private void handleCommand(String command)
+    {
+        int eq = command.indexOf('=');
+        if(eq < 0)
+        {
+            unknown_commands++;
+            return;
+        }
+
+        String name = command.substring(3, eq);
+        List<String> args = splitArguments(command.substring(eq + 1));
+        int sequence;
+        try
+        {
+            sequence = Integer.parseInt(args.get(0));
+        } catch(NumberFormatException e)
+        {
+            unknown_commands++;
+            return;
+        }
+
+        // Like the drone, ignore old commands unless the client starts over
+        if(sequence == 1)
+        {
+            last_sequence = 0;
+        } else if(sequence <= last_sequence)
+        {
+            stale_commands++;
+            return;
+        }
+        lost_commands += sequence - last_sequence - 1;
+        last_sequence = sequence;
+        last_command_time = System.nanoTime();
+        command_count++;
+
+        try
+        {
+            if(name.equals("REF"))
+            {
+                flight.reference(Integer.parseInt(args.get(1)));
+            } else if(name.equals("PCMD"))
+            {
+                flight.progressiveCommand(Integer.parseInt(args.get(1)), floatArgument(args.get(2)),
+                        floatArgument(args.get(3)), floatArgument(args.get(4)), floatArgument(args.get(5)));
+            } else if(name.equals("CONFIG"))
+            {
+                String key = unquote(args.get(1));
+                String value = unquote(args.get(2));
+                synchronized(config)
+                {
+                    config.put(key, value);
+                }
+                if(key.equals("general:navdata_demo"))
+                    demo = value.equalsIgnoreCase("TRUE");
+                // Until the client acknowledges it
+                control_received = true;
+            } else if(name.equals("CTRL"))
+            {
+                if(Integer.parseInt(args.get(1)) == ACK_CONTROL_MODE)
+                    control_received = false;
+            } else if(!name.equals("COMWDG") && !name.equals("FTRIM") && !name.equals("LED")
+                    && !name.equals("ANIM"))
+            {
+                unknown_commands++;
+            }
+        } catch(RuntimeException e)
+        {
+            // Malformed arguments
+            log.debug("Bad AT command " + command, e);
+            unknown_commands++;
+        }
+    }
+
+    /**
+     * Splits at the commas outside quotes.
+     */
+    private static List<String> splitArguments(String s)
+    {
+        List<String> res = new ArrayList<String>();
+        boolean quoted = false;
+        int start = 0;
+        for(int i = 0; i < s.length(); i++)
+        {
+            char c = s.charAt(i);
+            if(c == '"')
+            {
+                quoted = !quoted;
+            } else if(c == ',' && !quoted)
+            {
+                res.add(s.substring(start, i));
+                start = i + 1;
+            }
+        }
+        res.add(s.substring(start));
+        return res;
+    }
+
+    private static String unquote(String s)
+    {
+        if(s.length() >= 2 && s.startsWith("\"") && s.endsWith("\""))
+            return s.substring(1, s.length() - 1);
+        return s;
+    }
+
+    /**
+     * Floats are sent as the int with the same bits.
+     */
+    private static float floatArgument(String s)
+    {
+        return Float.intBitsToFloat(Integer.parseInt(s));
+    }
+
+    /**
+     * Configuration value last sent by the client, or null.
+     */
+    public String getConfig(String key)
+    {
+        synchronized(config)
+        {
+            return config.get(key);
+        }
+    }
+
+    /**
+     * Number of AT commands taken.
+     */
+    public long getCommandCount()
+    {
+        return command_count;
+    }
+
+    /**
+     * Number of AT commands missing, going by their sequence numbers.
+     */
+    public long getLostCommandCount()
+    {
+        return lost_commands;
+    }
+
+    /**
+     * Number of AT commands ignored for arriving after a newer one.
+     */
+    public long getStaleCommandCount()
+    {
+        return stale_commands;
+    }
+
+    public long getUnknownCommandCount()
+    {
+        return unknown_commands;
+    }
+
+    public long getNavDataCount()
+    {
+        return navdata_count;
+    }
+
+    public long getVideoFrameCount()
+    {
+        return video_count;
+    }
+
+    /**
+     * Number of datagrams sent late because the simulator could not keep up
+     * with its rates.
+     */
+    public long getLateDatagramCount()
+    {
+        return late_datagrams;
+    }
+
+    /**
+     * Usage: DroneSimulator [-address A] [-ports P] [-speed N] [-navdata RATE]
+     * [-video RATE] [frame.bin ... | segment.vpk ...]
+     *
+     * Binds ports P to P + 2 (5554 to 5556 by default) of address A (the
+     * loopback address by default), and replays the given raw video
+     * datagrams, or streams synthetic video if none are given. Segments
+     * recorded by {@link com.codeminders.ardrone.util.VideoPacketRecorder}
+     * are replayed at their own pace rather than the video rate. Rates are
+     * per second, speed multiplies both. Prints what the drone does every
+     * second.
+     */
+    public static void main(String[] args)
+    {
+        try
+        {
+            InetAddress address = InetAddress.getByName("127.0.0.1");
+            int port = 5554;
+            double speed = 1;
+            double navdata_rate = NAVDATA_RATE;
+            double video_rate = VIDEO_RATE;
+            List<File> files = new ArrayList<File>();
+
+            for(int i = 0; i < args.length; i++)
+            {
+                if(args[i].equals("-address"))
+                    address = InetAddress.getByName(args[++i]);
+                else if(args[i].equals("-ports"))
+                    port = Integer.parseInt(args[++i]);
+                else if(args[i].equals("-speed"))
+                    speed = Double.parseDouble(args[++i]);
+                else if(args[i].equals("-navdata"))
+                    navdata_rate = Double.parseDouble(args[++i]);
+                else if(args[i].equals("-video"))
+                    video_rate = Double.parseDouble(args[++i]);
+                else
+                    files.add(new File(args[i]));
+            }
+
+            DroneSimulator sim = new DroneSimulator(address, port, port + 1, port + 2);
+            sim.setNavDataRate(navdata_rate * speed);
+            sim.setVideoRate(video_rate * speed);
+            File[] video = files.toArray(new File[files.size()]);
+            if(video.length > 0 && video[0].getName().endsWith(".vpk"))
+                sim.setVideoSource(new RecordedVideoSource(speed, video));
+            else if(video.length > 0)
+                sim.setVideoSource(new FileVideoSource(video));
+            sim.start();
+
+            FlightModel f = sim.getFlightModel();
+            while(true)
+            {
+                Thread.sleep(1000);
+                System.err.println(String.format(
+                        "%s alt %.2f x %.2f y %.2f yaw %.0f | navdata %d video %d late %d | commands %d lost %d",
+                        f.getControlState(), f.getAltitude(), f.getX(), f.getY(), f.getYaw(), sim.getNavDataCount(),
+                        sim.getVideoFrameCount(), sim.getLateDatagramCount(), sim.getCommandCount(),
+                        sim.getLostCommandCount()));
+            }
+        } catch(Exception e)
+        {
+            e.printStackTrace();
+            System.exit(2);
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.codeminders.ardrone.simulator;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Replays raw video datagrams saved one per file, over and over.
+ */
+public class FileVideoSource implements VideoSource
+{
+    private final ByteBuffer[] frames;
+    private int                next;
+
+    public FileVideoSource(File... files) throws IOException
+    {
+        if(files.length == 0)
+            throw new IllegalArgumentException("No frames to replay");
+
+        frames = new ByteBuffer[files.length];
+        for(int i = 0; i < files.length; i++)
+            frames[i] = read(files[i]);
+    }
+
+    private static ByteBuffer read(File f) throws IOException
+    {
+        byte[] data = new byte[(int) f.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(f));
+        try
+        {
+            in.readFully(data);
+        } finally
+        {
+            in.close();
+        }
+        return ByteBuffer.wrap(data);
+    }
+
+    public ByteBuffer nextFrame()
+    {
+        ByteBuffer frame = frames[next].duplicate();
+        next = (next + 1) % frames.length;
+        return frame;
+    }
+}
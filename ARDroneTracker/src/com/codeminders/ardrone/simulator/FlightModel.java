@@ -0,0 +1,258 @@
+package com.codeminders.ardrone.simulator;
+
+import com.codeminders.ardrone.NavData.CtrlState;
+
+/**
+ * Rough flight dynamics of a drone, driven by the REF and PCMD commands it
+ * gets. Tilting accelerates the drone, drag slows it down, the vertical speed
+ * and the yaw rate follow the commands directly. Good enough to close a
+ * control loop, not to tune one.
+ *
+ * Units are metres, seconds and degrees. Speeds are in the drone's frame:
+ * x forward, y to the right.
+ */
+public class FlightModel
+{
+    private static final float GRAVITY            = 9.81f;
+    private static final float MAX_EULER_ANGLE    = 12;
+    private static final float MAX_VERTICAL_SPEED = 0.7f;
+    private static final float MAX_YAW_RATE       = 100;
+    private static final float TAKEOFF_ALTITUDE   = 1;
+    private static final float TAKEOFF_SPEED      = 0.5f;
+    private static final float ANGLE_TIME         = 0.1f;
+    private static final float DRAG               = 0.5f;
+    private static final float HOVER_DRAG         = 3;
+    // Percent per second, about 12 minutes of flight
+    private static final float BATTERY_DRAIN      = 100f / 720;
+    private static final float MAX_STEP           = 0.005f;
+
+    private CtrlState          ctrl_state        = CtrlState.LANDED;
+    private boolean            emergency;
+    private boolean            last_emergency_bit;
+
+    private boolean            progressive;
+    private float              roll_command;
+    private float              pitch_command;
+    private float              gaz_command;
+    private float              yaw_command;
+
+    private float              pitch;
+    private float              roll;
+    private float              yaw;
+    private float              altitude;
+    private float              vx;
+    private float              vy;
+    private float              vz;
+    private float              x;
+    private float              y;
+    private float              battery           = 100;
+
+    /**
+     * AT*REF: bit 9 asks to take off or, cleared, to land. A rising bit 8
+     * cuts the motors, or clears an emergency.
+     */
+    public synchronized void reference(int value)
+    {
+        boolean emergency_bit = (value & (1 << 8)) != 0;
+        if(emergency_bit && !last_emergency_bit)
+        {
+            emergency = !emergency;
+            if(emergency)
+                cutMotors();
+        }
+        last_emergency_bit = emergency_bit;
+
+        if(emergency)
+            return;
+
+        boolean takeoff = (value & (1 << 9)) != 0;
+        if(takeoff && ctrl_state == CtrlState.LANDED)
+            ctrl_state = CtrlState.TRANS_TAKEOFF;
+        else if(!takeoff && isFlying())
+            ctrl_state = CtrlState.TRANS_LANDING;
+    }
+
+    /**
+     * AT*PCMD. Without bit 0 of the flags the drone hovers; otherwise the
+     * tilts, vertical speed and yaw rate are fractions of their maximum,
+     * from -1 to 1.
+     */
+    public synchronized void progressiveCommand(int flags, float roll, float pitch, float gaz, float yaw)
+    {
+        progressive = (flags & 1) != 0;
+        roll_command = clamp(roll);
+        pitch_command = clamp(pitch);
+        gaz_command = clamp(gaz);
+        yaw_command = clamp(yaw);
+    }
+
+    /**
+     * Makes the drone hover, as when the link to it is lost.
+     */
+    public synchronized void hover()
+    {
+        progressive = false;
+    }
+
+    /**
+     * Moves the model on by the given number of seconds.
+     */
+    public synchronized void advance(float seconds)
+    {
+        while(seconds > 0)
+        {
+            float dt = Math.min(seconds, MAX_STEP);
+            step(dt);
+            seconds -= dt;
+        }
+    }
+
+    private void step(float dt)
+    {
+        if(ctrl_state == CtrlState.LANDED || emergency)
+            return;
+
+        battery = Math.max(0, battery - BATTERY_DRAIN * dt);
+
+        float target_pitch = 0;
+        float target_roll = 0;
+        float target_vz = 0;
+        float yaw_rate = 0;
+        float drag = HOVER_DRAG;
+
+        switch(ctrl_state)
+        {
+        case TRANS_TAKEOFF:
+            target_vz = TAKEOFF_SPEED;
+            if(altitude >= TAKEOFF_ALTITUDE)
+                ctrl_state = CtrlState.HOVERING;
+            break;
+
+        case TRANS_LANDING:
+            target_vz = -TAKEOFF_SPEED;
+            break;
+
+        default:
+            if(progressive)
+            {
+                target_pitch = pitch_command * MAX_EULER_ANGLE;
+                target_roll = roll_command * MAX_EULER_ANGLE;
+                target_vz = gaz_command * MAX_VERTICAL_SPEED;
+                yaw_rate = yaw_command * MAX_YAW_RATE;
+                drag = DRAG;
+                ctrl_state = CtrlState.FLYING;
+            } else
+            {
+                ctrl_state = CtrlState.HOVERING;
+            }
+        }
+
+        float follow = Math.min(1, dt / ANGLE_TIME);
+        pitch += (target_pitch - pitch) * follow;
+        roll += (target_roll - roll) * follow;
+        vz += (target_vz - vz) * follow;
+
+        // Nose down, i.e. negative pitch, flies forward
+        vx += (-GRAVITY * (float) Math.tan(Math.toRadians(pitch)) - drag * vx) * dt;
+        vy += (GRAVITY * (float) Math.tan(Math.toRadians(roll)) - drag * vy) * dt;
+
+        double heading = Math.toRadians(yaw);
+        x += (vx * Math.cos(heading) - vy * Math.sin(heading)) * dt;
+        y += (vx * Math.sin(heading) + vy * Math.cos(heading)) * dt;
+
+        yaw += yaw_rate * dt;
+        if(yaw > 180)
+            yaw -= 360;
+        else if(yaw < -180)
+            yaw += 360;
+
+        altitude += vz * dt;
+        if(altitude <= 0)
+        {
+            altitude = 0;
+            if(ctrl_state == CtrlState.TRANS_LANDING)
+                cutMotors();
+        }
+    }
+
+    private void cutMotors()
+    {
+        ctrl_state = CtrlState.LANDED;
+        altitude = 0;
+        pitch = roll = 0;
+        vx = vy = vz = 0;
+    }
+
+    private static float clamp(float v)
+    {
+        return Math.max(-1, Math.min(1, v));
+    }
+
+    public synchronized boolean isFlying()
+    {
+        return ctrl_state != CtrlState.LANDED;
+    }
+
+    public synchronized CtrlState getControlState()
+    {
+        return ctrl_state;
+    }
+
+    public synchronized boolean isEmergency()
+    {
+        return emergency;
+    }
+
+    public synchronized float getPitch()
+    {
+        return pitch;
+    }
+
+    public synchronized float getRoll()
+    {
+        return roll;
+    }
+
+    public synchronized float getYaw()
+    {
+        return yaw;
+    }
+
+    public synchronized float getAltitude()
+    {
+        return altitude;
+    }
+
+    public synchronized float getVx()
+    {
+        return vx;
+    }
+
+    public synchronized float getVy()
+    {
+        return vy;
+    }
+
+    public synchronized float getVz()
+    {
+        return vz;
+    }
+
+    /**
+     * Position relative to the take-off point, x towards the initial heading.
+     */
+    public synchronized float getX()
+    {
+        return x;
+    }
+
+    public synchronized float getY()
+    {
+        return y;
+    }
+
+    public synchronized float getBattery()
+    {
+        return battery;
+    }
+}
@@ -0,0 +1,72 @@
+package com.codeminders.ardrone.simulator;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.codeminders.ardrone.util.VideoPacketReader;
+
+/**
+ * Replays video recorded by {@link com.codeminders.ardrone.util.VideoPacketRecorder},
+ * over and over. The simulator sends the datagrams at the pace they were
+ * recorded at, times the speed, rather than at its video rate.
+ */
+public class RecordedVideoSource implements VideoSource
+{
+    private final VideoPacketReader reader;
+    private final double            speed;
+
+    /**
+     * Whether the reader has already been moved on to the frame the next
+     * {@link #nextFrame()} call returns.
+     */
+    private boolean                 prefetched;
+
+    /**
+     * @param speed 1 for real time, 2 for twice as fast and so on, 0 for as
+     *            fast as possible
+     */
+    public RecordedVideoSource(double speed, File... segments) throws IOException
+    {
+        if(speed < 0)
+            throw new IllegalArgumentException("Negative speed " + speed);
+
+        this.speed = speed;
+        reader = new VideoPacketReader(segments);
+        if(!reader.next())
+            throw new IllegalArgumentException("No datagrams recorded");
+        reader.rewind();
+    }
+
+    public ByteBuffer nextFrame()
+    {
+        if(!prefetched)
+            advance();
+        prefetched = false;
+        return reader.getPacket();
+    }
+
+    /**
+     * Nanoseconds from the frame returned by the last {@link #nextFrame()}
+     * call to the next one, 0 when starting over. Moves on to the next frame,
+     * so the last one has to have been sent.
+     */
+    public long getNextInterval()
+    {
+        long last = reader.getTime();
+        advance();
+        prefetched = true;
+
+        long interval = Math.max(0, reader.getTime() - last);
+        return speed > 0 ? (long) (interval / speed) : 0;
+    }
+
+    private void advance()
+    {
+        if(!reader.next())
+        {
+            reader.rewind();
+            reader.next();
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.codeminders.ardrone.simulator;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import com.codeminders.ardrone.video.VideoEncoder;
+
+/**
+ * Renders and encodes a made-up scene: a flat sky over textured ground that
+ * slowly pans past, and a red ball moving about as a target to track. The
+ * complexity, from 0 to 1, sets how strong the texture is and so how many
+ * coefficients each macroblock needs. Pictures repeat after
+ * {@link #PERIOD} frames.
+ */
+public class SyntheticVideoSource implements VideoSource
+{
+    public static final int    PERIOD     = 256;
+
+    private static final int   SKY_COLOR  = 0x5080C0;
+    private static final int   BALL_COLOR = 0xE02030;
+
+    private final int          width;
+    private final int          height;
+    private final double       complexity;
+    private final VideoEncoder encoder    = new VideoEncoder();
+    private final int[]        pixels;
+
+    /**
+     * Texture wider than the picture, so that the ground can pan.
+     */
+    private final byte[]       texture;
+    private final int          texture_width;
+    private int                frame;
+
+    /**
+     * @param width one of the sizes {@link VideoEncoder} supports
+     */
+    public SyntheticVideoSource(int width, int height, double complexity)
+    {
+        if(!VideoEncoder.isSupportedSize(width, height))
+            throw new IllegalArgumentException("Unsupported picture size " + width + "x" + height);
+
+        this.width = width;
+        this.height = height;
+        this.complexity = Math.max(0, Math.min(1, complexity));
+        pixels = new int[width * height];
+
+        texture_width = width + PERIOD;
+        texture = new byte[texture_width * height];
+        new Random(width * 31 + height).nextBytes(texture);
+    }
+
+    /**
+     * The encoder, to set the quantizer scale or empty macroblocks.
+     */
+    public VideoEncoder getEncoder()
+    {
+        return encoder;
+    }
+
+    public int getWidth()
+    {
+        return width;
+    }
+
+    public int getHeight()
+    {
+        return height;
+    }
+
+    public ByteBuffer nextFrame()
+    {
+        return encoder.encode(render(frame++), width, height);
+    }
+
+    /**
+     * Draws the given frame, returning the RGB pixels, row by row. The array
+     * is reused by the next call.
+     */
+    public int[] render(int frame)
+    {
+        int t = frame % PERIOD;
+        int horizon = height / 3;
+        double amplitude = complexity * 96;
+
+        for(int y = 0; y < horizon * width; y++)
+            pixels[y] = SKY_COLOR;
+
+        for(int y = horizon; y < height; y++)
+        {
+            int shade = 60 + 100 * (y - horizon) / (height - horizon);
+            int row = y * texture_width + t;
+            for(int x = 0; x < width; x++)
+            {
+                int v = shade + (int) (texture[row + x] * amplitude / 128);
+                // Coarse stripes, so that even smooth ground has edges
+                int g = clamp(v + (((x + t) >> 5) & 1) * 20);
+                pixels[y * width + x] = (clamp(v / 2) << 16) | (g << 8) | clamp(v / 3);
+            }
+        }
+
+        double angle = 2 * Math.PI * t / PERIOD;
+        int cx = width / 2 + (int) (width / 3 * Math.cos(angle));
+        int cy = height / 2 + (int) (height / 4 * Math.sin(2 * angle));
+        int radius = height / 10;
+        for(int y = Math.max(0, cy - radius); y < Math.min(height, cy + radius); y++)
+        {
+            for(int x = Math.max(0, cx - radius); x < Math.min(width, cx + radius); x++)
+            {
+                if((x - cx) * (x - cx) + (y - cy) * (y - cy) < radius * radius)
+                    pixels[y * width + x] = BALL_COLOR;
+            }
+        }
+
+        return pixels;
+    }
+
+    private static int clamp(int v)
+    {
+        return v < 0 ? 0 : (v > 255 ? 255 : v);
+    }
+}
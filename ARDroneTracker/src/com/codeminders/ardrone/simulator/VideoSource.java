@@ -0,0 +1,16 @@
+package com.codeminders.ardrone.simulator;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Video the simulator streams, one encoded frame per datagram.
+ */
+public interface VideoSource
+{
+    /**
+     * Returns the next frame, between the position and the limit of the
+     * buffer. The buffer may be reused by the next call.
+     */
+    ByteBuffer nextFrame() throws IOException;
+}
@@ -0,0 +1,262 @@
+package com.codeminders.ardrone.tools;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+
+import com.codeminders.ardrone.ARDrone;
+import com.codeminders.ardrone.VideoFrameListener;
+import com.codeminders.ardrone.VideoFrameMailbox;
+import com.codeminders.ardrone.video.VideoFrame;
+
+/**
+ * Connects 1 to 16 drones simulated on the loopback interface and reports how
+ * the CPU time and the video latency of the process grow with the number of
+ * drones. All drones share the default event loop, command scheduler and
+ * decode pool. Each simulated drone sends video at 30 frames per second and
+ * header-only navdata at 15 per second, and swallows the commands it gets.
+ * Each drone object is steered with a move command per navdata datagram, as
+ * a controller would.
+ *
+ * Latency is the time from sending a video datagram to a frame listener
+ * getting the frame. It is only right while it stays below a frame period;
+ * beyond that frames are dropped, which is reported too.
+ *
+ * Without frame files synthetic 320x240 video is decoded.
+ *
+ * Usage: MultiDroneBenchmark [frame.bin ...]
+ */
+public class MultiDroneBenchmark implements VideoFrameListener
+{
+    private static final int[] DRONE_COUNTS   = { 1, 2, 4, 8, 16 };
+    private static final int   FPS            = 30;
+    private static final int   NAVDATA_EVERY  = 2;
+    private static final int   WARMUP_MS      = 2000;
+    private static final int   MEASURED_MS    = 5000;
+    private static final int   BASE_PORT      = 40000;
+
+    private final ARDrone         drone;
+    private final DatagramChannel navdata;
+    private final DatagramChannel video;
+    private final DatagramChannel commands;
+    private final ByteBuffer      navdata_packet = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+    private final ByteBuffer      command_buffer = ByteBuffer.allocate(4096);
+    private int                   navdata_sequence;
+
+    private volatile long         sent_at;
+    private volatile boolean      measuring;
+    private long[]                lags           = new long[MEASURED_MS * FPS / 1000 * 2];
+    private int                   lag_count;
+    private long                  commands_received;
+
+    /**
+     * Simulates a drone on ports base to base + 2, which the drone object
+     * receives from on ports base + 3 and base + 4.
+     */
+    private MultiDroneBenchmark(int base) throws IOException
+    {
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        drone = new ARDrone(loopback, base, base + 1, base + 2, base + 3, base + 4);
+        drone.addFrameListener(this);
+
+        navdata = open(base, new InetSocketAddress(loopback, base + 3));
+        video = open(base + 1, new InetSocketAddress(loopback, base + 4));
+        commands = open(base + 2, null);
+    }
+
+    private static DatagramChannel open(int port, InetSocketAddress peer) throws IOException
+    {
+        DatagramChannel channel = DatagramChannel.open();
+        channel.configureBlocking(false);
+        channel.socket().bind(new InetSocketAddress("127.0.0.1", port));
+        if(peer != null)
+            channel.connect(peer);
+        return channel;
+    }
+
+    public void frameReceived(VideoFrame frame)
+    {
+        long lag = System.nanoTime() - sent_at;
+        if(!measuring)
+            return;
+
+        synchronized(this)
+        {
+            if(lag_count == lags.length)
+                lags = Arrays.copyOf(lags, lag_count * 2);
+            lags[lag_count++] = lag;
+        }
+    }
+
+    private void sendVideo(ByteBuffer frame) throws IOException
+    {
+        sent_at = System.nanoTime();
+        video.write(frame.duplicate());
+    }
+
+    private void sendNavData() throws IOException
+    {
+        navdata_packet.clear();
+        navdata_packet.putInt(0x55667788).putInt(0).putInt(navdata_sequence++).putInt(0);
+        navdata_packet.flip();
+        navdata.write(navdata_packet);
+    }
+
+    private void receiveCommands() throws IOException
+    {
+        while(true)
+        {
+            command_buffer.clear();
+            if(commands.receive(command_buffer) == null)
+                return;
+            if(measuring)
+                commands_received++;
+        }
+    }
+
+    private long getDroppedFrames()
+    {
+        long dropped = 0;
+        if(drone.getVideoReader() != null)
+            dropped += drone.getVideoReader().getDroppedFrameCount();
+        VideoFrameMailbox mailbox = drone.getVideoMailbox(this);
+        if(mailbox != null)
+            dropped += mailbox.getDroppedFrames();
+        return dropped;
+    }
+
+    private void close() throws IOException
+    {
+        drone.disconnect();
+        navdata.close();
+        video.close();
+        commands.close();
+    }
+
+    public static void main(String[] args)
+    {
+        try
+        {
+            ByteBuffer[] frames = VideoDecoderAllocationTest.readFrames(args);
+
+            System.err.println("drones  frames/s  dropped  cpu %   avg lag ms  p99 lag ms  commands/s");
+            for(int run = 0; run < DRONE_COUNTS.length; run++)
+                run(DRONE_COUNTS[run], BASE_PORT + run * 100, frames);
+        } catch(Exception e)
+        {
+            e.printStackTrace();
+            System.exit(2);
+        }
+        System.exit(0);
+    }
+
+    private static void run(int count, int base, ByteBuffer[] frames) throws Exception
+    {
+        MultiDroneBenchmark[] drones = new MultiDroneBenchmark[count];
+        for(int i = 0; i < count; i++)
+        {
+            drones[i] = new MultiDroneBenchmark(base + i * 5);
+            drones[i].drone.connect();
+        }
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long period = 1000000000L / FPS;
+        long start = System.nanoTime();
+        long measure_start = start + WARMUP_MS * 1000000L;
+        long end = measure_start + MEASURED_MS * 1000000L;
+        long cpu_start = 0;
+        long own_cpu_start = 0;
+        long[] dropped_start = new long[count];
+        boolean measuring = false;
+
+        for(int tick = 0;; tick++)
+        {
+            long now = System.nanoTime();
+            if(now >= end)
+                break;
+
+            if(!measuring && now >= measure_start)
+            {
+                measuring = true;
+                cpu_start = getCpuTime(threads);
+                own_cpu_start = threads.getCurrentThreadCpuTime();
+                for(int i = 0; i < count; i++)
+                {
+                    dropped_start[i] = drones[i].getDroppedFrames();
+                    drones[i].measuring = true;
+                }
+            }
+
+            for(int i = 0; i < count; i++)
+            {
+                drones[i].sendVideo(frames[tick % frames.length]);
+                if(tick % NAVDATA_EVERY == 0)
+                {
+                    drones[i].sendNavData();
+                    drones[i].drone.move(0, 0, 0, 0);
+                }
+                drones[i].receiveCommands();
+            }
+
+            long sleep = start + (tick + 1) * period - System.nanoTime();
+            if(sleep > 0)
+                Thread.sleep(sleep / 1000000, (int) (sleep % 1000000));
+        }
+
+        // The simulated drones run on this thread and are not counted
+        long cpu = getCpuTime(threads) - cpu_start - (threads.getCurrentThreadCpuTime() - own_cpu_start);
+
+        int delivered = 0;
+        long dropped = 0;
+        long commands = 0;
+        long[] lags = new long[0];
+        for(int i = 0; i < count; i++)
+        {
+            MultiDroneBenchmark d = drones[i];
+            d.measuring = false;
+            synchronized(d)
+            {
+                lags = Arrays.copyOf(lags, delivered + d.lag_count);
+                System.arraycopy(d.lags, 0, lags, delivered, d.lag_count);
+                delivered += d.lag_count;
+            }
+            dropped += d.getDroppedFrames() - dropped_start[i];
+            commands += d.commands_received;
+            d.close();
+        }
+        Arrays.sort(lags);
+
+        double seconds = MEASURED_MS / 1000.0;
+        long sum = 0;
+        for(int i = 0; i < lags.length; i++)
+            sum += lags[i];
+
+        System.err.println(String.format("%6d  %8.1f  %7d  %6.1f  %10.2f  %10.2f  %10.1f", count, delivered / seconds,
+                dropped, cpu / (MEASURED_MS * 10000.0), lags.length == 0 ? 0 : sum / (lags.length * 1e6),
+                lags.length == 0 ? 0 : lags[(int) (lags.length * 0.99)] / 1e6, commands / seconds));
+
+        // Let the readers close their channels
+        Thread.sleep(200);
+    }
+
+    /**
+     * CPU time used so far by all live threads, in nanoseconds.
+     */
+    private static long getCpuTime(ThreadMXBean threads)
+    {
+        long total = 0;
+        for(long id : threads.getAllThreadIds())
+        {
+            long time = threads.getThreadCpuTime(id);
+            if(time > 0)
+                total += time;
+        }
+        return total;
+    }
+}
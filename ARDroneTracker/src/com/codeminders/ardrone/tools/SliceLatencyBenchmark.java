@@ -0,0 +1,75 @@
+package com.codeminders.ardrone.tools;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.codeminders.ardrone.video.BufferedVideoImage;
+import com.codeminders.ardrone.video.VideoSliceListener;
+
+/**
+ * Measures how much earlier the pixels of a raw video datagram are available
+ * to a slice listener than to a listener that waits for the whole frame.
+ * Times are counted from the start of decoding.
+ *
+ * Without frame files synthetic 320x240 video is decoded.
+ *
+ * Usage: SliceLatencyBenchmark [frame.bin ...]
+ */
+public class SliceLatencyBenchmark implements VideoSliceListener
+{
+    private static final int WARMUP_ROUNDS   = 2000;
+    private static final int MEASURED_ROUNDS = 5000;
+
+    private long             start;
+    private long             firstSlice;
+    private long             sliceSum;
+    private int              sliceCount;
+
+    public void sliceDecoded(int frameIndex, int slice, int firstRow, int endRow, int width, int[] pixels, byte[] luma)
+    {
+        long now = System.nanoTime() - start;
+        if(slice == 0)
+            firstSlice += now;
+        sliceSum += now;
+        sliceCount++;
+    }
+
+    public static void main(String[] args)
+    {
+        try
+        {
+            ByteBuffer[] frames = VideoDecoderAllocationTest.readFrames(args);
+
+            SliceLatencyBenchmark listener = new SliceLatencyBenchmark();
+            BufferedVideoImage decoder = new BufferedVideoImage();
+            decoder.setSliceListener(listener);
+
+            for(int i = 0; i < WARMUP_ROUNDS; i++)
+                decoder.addImageStream(frames[i % frames.length]);
+
+            listener.firstSlice = 0;
+            listener.sliceSum = 0;
+            listener.sliceCount = 0;
+            long frameSum = 0;
+            for(int i = 0; i < MEASURED_ROUNDS; i++)
+            {
+                listener.start = System.nanoTime();
+                decoder.addImageStream(frames[i % frames.length]);
+                frameSum += System.nanoTime() - listener.start;
+            }
+
+            System.err.println("First slice:    " + micros(listener.firstSlice, MEASURED_ROUNDS) + " us");
+            System.err.println("Average slice:  " + micros(listener.sliceSum, listener.sliceCount) + " us");
+            System.err.println("Complete frame: " + micros(frameSum, MEASURED_ROUNDS) + " us");
+        } catch(IOException e)
+        {
+            e.printStackTrace();
+            System.exit(2);
+        }
+    }
+
+    private static String micros(long nanos, int count)
+    {
+        return String.valueOf(Math.round(nanos / (count * 100.0)) / 10.0);
+    }
+}
@@ -0,0 +1,125 @@
+package com.codeminders.ardrone.tools;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.codeminders.ardrone.simulator.SyntheticVideoSource;
+import com.codeminders.ardrone.video.BufferedVideoImage;
+
+/**
+ * Writes frames of synthetic video as raw video datagrams, one file each, for
+ * the decoder benchmarks and the simulator. Every frame is decoded again to
+ * report how far the pictures are from what was rendered.
+ *
+ * Usage: SyntheticVideoGenerator [-size WxH] [-frames N] [-scale Q]
+ * [-complexity C] [-empty] directory
+ */
+public class SyntheticVideoGenerator
+{
+    public static void main(String[] args)
+    {
+        int width = 320;
+        int height = 240;
+        int count = SyntheticVideoSource.PERIOD;
+        int scale = 1;
+        double complexity = 0.5;
+        boolean empty = false;
+        File directory = null;
+
+        try
+        {
+            for(int i = 0; i < args.length; i++)
+            {
+                if(args[i].equals("-size"))
+                {
+                    String[] size = args[++i].split("x");
+                    width = Integer.parseInt(size[0]);
+                    height = Integer.parseInt(size[1]);
+                } else if(args[i].equals("-frames"))
+                    count = Integer.parseInt(args[++i]);
+                else if(args[i].equals("-scale"))
+                    scale = Integer.parseInt(args[++i]);
+                else if(args[i].equals("-complexity"))
+                    complexity = Double.parseDouble(args[++i]);
+                else if(args[i].equals("-empty"))
+                    empty = true;
+                else
+                    directory = new File(args[i]);
+            }
+        } catch(RuntimeException e)
+        {
+            directory = null;
+        }
+
+        if(directory == null)
+        {
+            System.err.println("Usage: SyntheticVideoGenerator [-size WxH] [-frames N] [-scale Q] "
+                    + "[-complexity C] [-empty] directory");
+            System.exit(2);
+        }
+
+        try
+        {
+            SyntheticVideoSource source = new SyntheticVideoSource(width, height, complexity);
+            source.getEncoder().setQuantizerScale(scale);
+            source.getEncoder().setEmptyMacroBlocks(empty);
+
+            BufferedVideoImage decoder = new BufferedVideoImage();
+            decoder.setPixelFormat(BufferedVideoImage.PixelFormat.ARGB8888);
+
+            directory.mkdirs();
+            long bytes = 0;
+            double psnr = 0;
+            for(int i = 0; i < count; i++)
+            {
+                ByteBuffer frame = source.nextFrame();
+                bytes += frame.remaining();
+                write(frame.duplicate(), new File(directory, String.format("frame-%04d.bin", i)));
+
+                decoder.addImageStream(frame);
+                psnr += getPsnr(source.render(i), decoder.getJavaPixelData(), width * height);
+            }
+
+            System.err.println("Wrote " + count + " frames of " + width + "x" + height + " to " + directory);
+            System.err.println("Average size: " + bytes / Math.max(1, count) + " bytes");
+            System.err.println(String.format("Average PSNR: %.1f dB", psnr / Math.max(1, count)));
+        } catch(Exception e)
+        {
+            e.printStackTrace();
+            System.exit(2);
+        }
+    }
+
+    private static void write(ByteBuffer frame, File file) throws IOException
+    {
+        FileOutputStream out = new FileOutputStream(file);
+        try
+        {
+            out.getChannel().write(frame);
+        } finally
+        {
+            out.close();
+        }
+    }
+
+    /**
+     * Peak signal to noise ratio over the red, green and blue samples.
+     */
+    private static double getPsnr(int[] expected, int[] actual, int count)
+    {
+        double error = 0;
+        for(int i = 0; i < count; i++)
+        {
+            for(int shift = 0; shift < 24; shift += 8)
+            {
+                int d = ((expected[i] >> shift) & 0xFF) - ((actual[i] >> shift) & 0xFF);
+                error += d * d;
+            }
+        }
+        if(error == 0)
+            return Double.POSITIVE_INFINITY;
+        return 10 * Math.log10(255.0 * 255.0 * count * 3 / error);
+    }
+}
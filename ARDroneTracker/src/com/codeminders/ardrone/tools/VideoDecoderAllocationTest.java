@@ -0,0 +1,113 @@
+package com.codeminders.ardrone.tools;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+import com.codeminders.ardrone.simulator.SyntheticVideoSource;
+import com.codeminders.ardrone.video.BufferedVideoImage;
+
+/**
+ * Decodes raw video datagrams over and over on one decoder instance and reports
+ * how many bytes are allocated per frame once the decoder has warmed up. Exits
+ * with status 1 if decoding still allocates. Frames are passed in two buffers
+ * used in turn, as the video reader does.
+ *
+ * Without frame files synthetic 320x240 video is decoded.
+ *
+ * Usage: VideoDecoderAllocationTest [frame.bin ...]
+ */
+public class VideoDecoderAllocationTest
+{
+    private static final int WARMUP_ROUNDS    = 2000;
+    private static final int MEASURED_ROUNDS  = 1000;
+    private static final int SYNTHETIC_FRAMES = 16;
+
+    public static void main(String[] args)
+    {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if(!(bean instanceof com.sun.management.ThreadMXBean))
+        {
+            System.err.println("Thread allocation counters are not supported by this JVM");
+            System.exit(2);
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+
+        try
+        {
+            ByteBuffer[] frames = readFrames(args);
+
+            // The video reader swaps its pending and decode buffers for
+            // every datagram
+            int largest = 0;
+            for(int i = 0; i < frames.length; i++)
+                largest = Math.max(largest, frames[i].remaining());
+            ByteBuffer[] streams = { ByteBuffer.allocate(largest), ByteBuffer.allocate(largest) };
+
+            BufferedVideoImage decoder = new BufferedVideoImage();
+            for(int i = 0; i < WARMUP_ROUNDS; i++)
+                decoder.addImageStream(copy(frames[i % frames.length], streams[i & 1]));
+
+            long thread = Thread.currentThread().getId();
+            long before = threads.getThreadAllocatedBytes(thread);
+            for(int i = 0; i < MEASURED_ROUNDS; i++)
+                decoder.addImageStream(copy(frames[i % frames.length], streams[i & 1]));
+            long after = threads.getThreadAllocatedBytes(thread);
+
+            long perFrame = (after - before) / MEASURED_ROUNDS;
+            System.err.println("Allocated " + perFrame + " bytes per frame (" + decoder.getWidth() + "x"
+                    + decoder.getHeight() + ")");
+            System.exit(perFrame == 0 ? 0 : 1);
+        } catch(IOException e)
+        {
+            e.printStackTrace();
+            System.exit(2);
+        }
+    }
+
+    private static ByteBuffer copy(ByteBuffer frame, ByteBuffer stream)
+    {
+        stream.clear();
+        stream.put(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+        stream.clear();
+        return stream;
+    }
+
+    /**
+     * Reads the frames named on the command line, or encodes synthetic 320x240
+     * frames if there are none.
+     */
+    static ByteBuffer[] readFrames(String[] args) throws IOException
+    {
+        if(args.length == 0)
+        {
+            SyntheticVideoSource source = new SyntheticVideoSource(320, 240, 0.5);
+            ByteBuffer[] frames = new ByteBuffer[SYNTHETIC_FRAMES];
+            for(int i = 0; i < frames.length; i++)
+                frames[i] = source.nextFrame();
+            return frames;
+        }
+
+        ByteBuffer[] frames = new ByteBuffer[args.length];
+        for(int i = 0; i < args.length; i++)
+            frames[i] = readFrame(new File(args[i]));
+        return frames;
+    }
+
+    static ByteBuffer readFrame(File f) throws IOException
+    {
+        byte[] data = new byte[(int) f.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(f));
+        try
+        {
+            in.readFully(data);
+        } finally
+        {
+            in.close();
+        }
+        return ByteBuffer.wrap(data);
+    }
+}
@@ -0,0 +1,94 @@
+package com.codeminders.ardrone.tools;
+
+import java.io.File;
+import java.net.InetAddress;
+
+import com.codeminders.ardrone.ARDrone;
+import com.codeminders.ardrone.util.RecordingSuccessCallback;
+import com.codeminders.ardrone.util.VideoPacketRecorder;
+
+/**
+ * Records the raw video of a drone for the given number of seconds into
+ * segment files for {@link VideoReplayBenchmark} and the simulator. The drone
+ * is only connected to, not flown.
+ *
+ * With -ports P the drone is expected on ports P to P + 2, e.g. a simulator,
+ * and is received from on ports P + 1000 and P + 1001.
+ *
+ * Usage: VideoPacketCapture [-address A] [-ports P] [-seconds N] [-prefix
+ * name] directory
+ */
+public class VideoPacketCapture implements RecordingSuccessCallback
+{
+    public void recordingSuccess(String filename)
+    {
+        System.err.println("Recorded " + filename);
+    }
+
+    public void recordingError(String filename, String err, Throwable ex)
+    {
+        System.err.println("Recording " + filename + " failed: " + err);
+        if(ex != null)
+            ex.printStackTrace();
+    }
+
+    public static void main(String[] args)
+    {
+        String address = "192.168.1.1";
+        int port = 0;
+        int seconds = 10;
+        String prefix = "video";
+        File directory = null;
+
+        try
+        {
+            for(int i = 0; i < args.length; i++)
+            {
+                if(args[i].equals("-address"))
+                    address = args[++i];
+                else if(args[i].equals("-ports"))
+                    port = Integer.parseInt(args[++i]);
+                else if(args[i].equals("-seconds"))
+                    seconds = Integer.parseInt(args[++i]);
+                else if(args[i].equals("-prefix"))
+                    prefix = args[++i];
+                else
+                    directory = new File(args[i]);
+            }
+        } catch(RuntimeException e)
+        {
+            directory = null;
+        }
+
+        if(directory == null)
+        {
+            System.err.println("Usage: VideoPacketCapture [-address A] [-ports P] [-seconds N] [-prefix name] directory");
+            System.exit(2);
+        }
+
+        try
+        {
+            InetAddress drone_addr = InetAddress.getByName(address);
+            ARDrone drone = port == 0 ? new ARDrone(drone_addr) : new ARDrone(drone_addr, port, port + 1, port + 2,
+                    port + 1000, port + 1001);
+
+            directory.mkdirs();
+            VideoPacketRecorder recorder = new VideoPacketRecorder(directory, 0, prefix, new VideoPacketCapture());
+            drone.addVideoPacketListener(recorder);
+
+            drone.connect();
+            recorder.startRecording();
+            Thread.sleep(seconds * 1000L);
+            recorder.finishRecording();
+            drone.disconnect();
+
+            System.err.println("Recorded " + recorder.getPacketCount() + " datagrams, " + recorder.getByteCount()
+                    + " bytes, dropped " + recorder.getDroppedPacketCount());
+        } catch(Exception e)
+        {
+            e.printStackTrace();
+            System.exit(2);
+        }
+        System.exit(0);
+    }
+}
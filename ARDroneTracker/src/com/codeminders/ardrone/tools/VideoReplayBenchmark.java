@@ -0,0 +1,120 @@
+package com.codeminders.ardrone.tools;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import com.codeminders.ardrone.VideoPacketListener;
+import com.codeminders.ardrone.VideoReader;
+import com.codeminders.ardrone.util.VideoPacketPlayer;
+import com.codeminders.ardrone.util.VideoPacketReader;
+import com.codeminders.ardrone.video.BufferedVideoImage;
+
+/**
+ * Decodes recorded video datagrams, as {@link VideoReader} would, at the
+ * pace they were recorded at, a multiple of it, or with speed 0 as fast as
+ * possible, and reports the decode times and how much CPU decoding took.
+ *
+ * Usage: VideoReplayBenchmark [-speed N] [-format RGB565|ARGB8888]
+ * segment.vpk ...
+ */
+public class VideoReplayBenchmark implements VideoPacketListener
+{
+    private final BufferedVideoImage decoder       = new BufferedVideoImage();
+    private final ByteBuffer         stream        = ByteBuffer.allocate(VideoReader.BUFSIZE);
+    private long[]                   decode_times  = new long[1024];
+    private int                      decoded;
+    private long                     failed;
+
+    public void videoPacketReceived(long time, ByteBuffer packet)
+    {
+        stream.clear();
+        stream.put(packet);
+        stream.flip();
+
+        long start = System.nanoTime();
+        try
+        {
+            decoder.addImageStream(stream);
+        } catch(RuntimeException e)
+        {
+            failed++;
+            return;
+        }
+
+        if(decoded == decode_times.length)
+            decode_times = Arrays.copyOf(decode_times, decoded * 2);
+        decode_times[decoded++] = System.nanoTime() - start;
+    }
+
+    public static void main(String[] args)
+    {
+        double speed = 1;
+        BufferedVideoImage.PixelFormat format = BufferedVideoImage.PixelFormat.RGB565;
+        File[] segments = new File[0];
+
+        try
+        {
+            int i = 0;
+            for(; i < args.length && args[i].startsWith("-"); i++)
+            {
+                if(args[i].equals("-speed"))
+                    speed = Double.parseDouble(args[++i]);
+                else if(args[i].equals("-format"))
+                    format = BufferedVideoImage.PixelFormat.valueOf(args[++i]);
+                else
+                    throw new IllegalArgumentException(args[i]);
+            }
+
+            segments = new File[args.length - i];
+            for(int s = 0; s < segments.length; s++)
+                segments[s] = new File(args[i + s]);
+        } catch(RuntimeException e)
+        {
+            segments = new File[0];
+        }
+
+        if(segments.length == 0)
+        {
+            System.err.println("Usage: VideoReplayBenchmark [-speed N] [-format RGB565|ARGB8888] segment.vpk ...");
+            System.exit(2);
+        }
+
+        try
+        {
+            VideoReplayBenchmark benchmark = new VideoReplayBenchmark();
+            benchmark.decoder.setPixelFormat(format);
+
+            VideoPacketPlayer player = new VideoPacketPlayer(new VideoPacketReader(segments), benchmark);
+            player.setSpeed(speed);
+
+            ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            long cpu_start = threads.getCurrentThreadCpuTime();
+            long start = System.nanoTime();
+            player.run();
+            long elapsed = System.nanoTime() - start;
+            long cpu = threads.getCurrentThreadCpuTime() - cpu_start;
+
+            long[] times = Arrays.copyOf(benchmark.decode_times, benchmark.decoded);
+            Arrays.sort(times);
+            long sum = 0;
+            for(long t : times)
+                sum += t;
+
+            System.err.println(String.format("%d datagrams in %.2f s, %d late, %d failed to decode",
+                    player.getPacketCount(), elapsed / 1e9, player.getLatePacketCount(), benchmark.failed));
+            if(times.length > 0)
+                System.err.println(String.format(
+                        "%dx%d: %.1f frames/s, decode avg %.2f ms, p99 %.2f ms, max %.2f ms, cpu %.1f %%",
+                        benchmark.decoder.getWidth(), benchmark.decoder.getHeight(), times.length * 1e9 / elapsed,
+                        sum / (times.length * 1e6), times[(int) (times.length * 0.99)] / 1e6,
+                        times[times.length - 1] / 1e6, cpu * 100.0 / elapsed));
+        } catch(Exception e)
+        {
+            e.printStackTrace();
+            System.exit(2);
+        }
+    }
+}
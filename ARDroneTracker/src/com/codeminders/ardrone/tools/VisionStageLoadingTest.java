@@ -0,0 +1,71 @@
+package com.codeminders.ardrone.tools;
+
+import java.util.Arrays;
+
+import com.codeminders.ardrone.video.BufferedVideoImage.PixelFormat;
+import com.codeminders.ardrone.vision.ColorBlobTracker;
+import com.codeminders.ardrone.vision.TargetObservation;
+import com.codeminders.ardrone.vision.VisionFrame;
+import com.codeminders.ardrone.vision.VisionStage;
+
+/**
+ * Runs a tracker whose pipeline names a stage of this package by class, the
+ * way stages are plugged in from the settings, and checks that the stage
+ * reads what the built in stages left in the frame and that its result is
+ * published. A class that is no stage has to be rejected. Exits with status
+ * 1 on failure.
+ *
+ * Usage: VisionStageLoadingTest
+ */
+public class VisionStageLoadingTest
+{
+    private static final int WIDTH  = 64;
+    private static final int HEIGHT = 48;
+
+    /**
+     * Puts the target at the centre of the matching pixels of the mask.
+     */
+    public static class MaskCentreStage implements VisionStage
+    {
+        public String getName()
+        {
+            return VisionStageLoadingTest.class.getName() + "$MaskCentreStage";
+        }
+
+        public void process(VisionFrame frame)
+        {
+            int count = frame.getMask().count();
+            if(count == 0)
+                return;
+            frame.setTarget(frame.getMask().sumX() / (double) count, frame.getMask().sumY() / (double) count,
+                    Math.sqrt(count), true);
+        }
+    }
+
+    public static void main(String[] args)
+    {
+        ColorBlobTracker tracker = new ColorBlobTracker();
+        tracker.setStages("classify," + MaskCentreStage.class.getName());
+
+        // A square of the target colour in the lower right quarter
+        int[] pixels = new int[WIDTH * HEIGHT];
+        for(int j = 24; j < 40; j++)
+            Arrays.fill(pixels, j * WIDTH + 32, j * WIDTH + 48, 0xFF000000 | ColorBlobTracker.DEFAULT_TARGET);
+
+        TargetObservation o = tracker.process(pixels, WIDTH, HEIGHT, PixelFormat.ARGB8888, 1);
+        boolean ok = o.isFound() && o.getX() == 39.5 && o.getY() == 31.5 && o.getExtent() == 16;
+        System.err.println("Pipeline " + tracker.getPipeline().getStages() + ": " + o);
+
+        try
+        {
+            tracker.setStages("classify,java.lang.String");
+            System.err.println("A class that is no stage was accepted");
+            ok = false;
+        } catch(IllegalArgumentException e)
+        {
+            System.err.println("Rejected: " + e.getMessage() + " (" + e.getCause() + ")");
+        }
+
+        System.exit(ok ? 0 : 1);
+    }
+}
@@ -0,0 +1,82 @@
+package com.codeminders.ardrone.tools;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import com.codeminders.ardrone.video.BufferedVideoImage;
+
+/**
+ * Compares decoding raw video datagrams with the run/level lookup table and
+ * with the bit by bit decoder it replaces. Both must produce the same pixels;
+ * the benchmark exits with status 1 if they do not.
+ *
+ * Without frame files synthetic 320x240 video is decoded.
+ *
+ * Usage: VlcDecoderBenchmark [frame.bin ...]
+ */
+public class VlcDecoderBenchmark
+{
+    private static final int WARMUP_ROUNDS   = 2000;
+    private static final int MEASURED_ROUNDS = 5000;
+
+    public static void main(String[] args)
+    {
+        try
+        {
+            ByteBuffer[] frames = VideoDecoderAllocationTest.readFrames(args);
+
+            BufferedVideoImage bitwise = new BufferedVideoImage();
+            bitwise.setVlcTableEnabled(false);
+            BufferedVideoImage table = new BufferedVideoImage();
+
+            for(int i = 0; i < frames.length; i++)
+            {
+                bitwise.addImageStream(frames[i]);
+                table.addImageStream(frames[i]);
+                if(!Arrays.equals(bitwise.getJavaPixelData(), table.getJavaPixelData()))
+                {
+                    System.err.println("Lookup table output differs for "
+                            + (args.length == 0 ? "synthetic frame " + i : args[i]));
+                    System.exit(1);
+                }
+            }
+
+            double bitwiseRate = measure(bitwise, frames);
+            double tableRate = measure(table, frames);
+
+            System.err.println("Bit by bit:   " + Math.round(bitwiseRate) + " frames/s");
+            System.err.println("Lookup table: " + Math.round(tableRate) + " frames/s");
+            System.err.println("Speedup:      " + Math.round(tableRate / bitwiseRate * 100) / 100.0 + "x");
+
+            long dcOnly = table.getDcOnlyBlockCount();
+            long sparse = table.getSparseBlockCount();
+            long full = table.getFullBlockCount();
+            double blocks = dcOnly + sparse + full;
+            System.err.println("Blocks:       " + percent(dcOnly, blocks) + " DC only, " + percent(sparse, blocks)
+                    + " 4x4, " + percent(full, blocks) + " full inverse transform");
+        } catch(IOException e)
+        {
+            e.printStackTrace();
+            System.exit(2);
+        }
+    }
+
+    private static String percent(long count, double total)
+    {
+        return Math.round(count * 1000 / total) / 10.0 + "%";
+    }
+
+    private static double measure(BufferedVideoImage decoder, ByteBuffer[] frames)
+    {
+        for(int i = 0; i < WARMUP_ROUNDS; i++)
+            decoder.addImageStream(frames[i % frames.length]);
+
+        long start = System.nanoTime();
+        for(int i = 0; i < MEASURED_ROUNDS; i++)
+            decoder.addImageStream(frames[i % frames.length]);
+        long elapsed = System.nanoTime() - start;
+
+        return MEASURED_ROUNDS * 1e9 / elapsed;
+    }
+}
@@ -0,0 +1,152 @@
+package com.codeminders.ardrone.util;
+
+import com.codeminders.ardrone.VideoPacketListener;
+
+/**
+ * Plays recorded video datagrams to a listener, e.g. one that decodes them,
+ * at the pace they were recorded at, a multiple of it, or as fast as the
+ * listener takes them. A listener that falls behind gets the late datagrams
+ * one after the other until it has caught up, so every run sees the same
+ * datagrams.
+ */
+public class VideoPacketPlayer implements Runnable
+{
+    /**
+     * How far behind a datagram has to be to count as late, in nanoseconds.
+     */
+    private static final long         LATE_MARGIN = 1000000;
+
+    private final VideoPacketReader   reader;
+    private final VideoPacketListener listener;
+
+    private volatile double           speed       = 1;
+    private volatile boolean          looping;
+    private volatile boolean          done;
+    private Thread                    thread;
+
+    private volatile long             packet_count;
+    private volatile long             late_packets;
+
+    public VideoPacketPlayer(VideoPacketReader reader, VideoPacketListener listener)
+    {
+        this.reader = reader;
+        this.listener = listener;
+    }
+
+    /**
+     * 1 plays in real time, 2 twice as fast and so on; 0 plays as fast as
+     * possible.
+     */
+    public void setSpeed(double speed)
+    {
+        if(speed < 0)
+            throw new IllegalArgumentException("Negative speed " + speed);
+        this.speed = speed;
+    }
+
+    /**
+     * Starts over at the first datagram after the last one.
+     */
+    public void setLooping(boolean looping)
+    {
+        this.looping = looping;
+    }
+
+    public synchronized void start()
+    {
+        if(thread != null)
+            return;
+
+        done = false;
+        thread = new Thread(this, "Video replay");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop()
+    {
+        Thread t;
+        synchronized(this)
+        {
+            done = true;
+            t = thread;
+            thread = null;
+        }
+
+        if(t != null)
+        {
+            t.interrupt();
+            try
+            {
+                t.join();
+            } catch(InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Plays the recording on the calling thread, returning after its last
+     * datagram unless looping.
+     */
+    public void run()
+    {
+        reader.rewind();
+
+        // Recording time of the previous datagram and when it was due
+        long last_time = 0;
+        long last_due = System.nanoTime();
+
+        while(!done)
+        {
+            if(!reader.next())
+            {
+                if(!looping)
+                    return;
+                reader.rewind();
+                last_time = 0;
+                continue;
+            }
+
+            double s = speed;
+            long due = last_due;
+            if(s > 0)
+                due += (long) ((reader.getTime() - last_time) / s);
+            last_time = reader.getTime();
+            last_due = due;
+
+            long wait = due - System.nanoTime();
+            if(wait > 0)
+            {
+                try
+                {
+                    Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                } catch(InterruptedException e)
+                {
+                    return;
+                }
+            } else if(s > 0 && wait < -LATE_MARGIN)
+            {
+                late_packets++;
+            }
+
+            listener.videoPacketReceived(System.nanoTime(), reader.getPacket());
+            packet_count++;
+        }
+    }
+
+    public long getPacketCount()
+    {
+        return packet_count;
+    }
+
+    /**
+     * Datagrams played more than a millisecond after their time because the
+     * listener was busy.
+     */
+    public long getLatePacketCount()
+    {
+        return late_packets;
+    }
+}
@@ -0,0 +1,138 @@
+package com.codeminders.ardrone.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads back the video datagrams of segment files written by
+ * {@link VideoPacketRecorder}, in order, straight from memory-mapped files.
+ */
+public class VideoPacketReader
+{
+    private final ByteBuffer[] segments;
+    private final long         start_millis;
+
+    private int                segment_index;
+    private ByteBuffer         segment;
+
+    /**
+     * The current datagram, a view of the current segment.
+     */
+    private ByteBuffer         packet;
+    private long               time;
+
+    /**
+     * @param files the segments of one recording, in order
+     */
+    public VideoPacketReader(File... files) throws IOException
+    {
+        if(files.length == 0)
+            throw new IllegalArgumentException("No segments to read");
+
+        segments = new ByteBuffer[files.length];
+        for(int i = 0; i < files.length; i++)
+            segments[i] = map(files[i]);
+        start_millis = segments[0].getLong(VideoPacketRecorder.START_TIME_OFFSET);
+        rewind();
+    }
+
+    private static ByteBuffer map(File f) throws IOException
+    {
+        RandomAccessFile file = new RandomAccessFile(f, "r");
+        try
+        {
+            FileChannel channel = file.getChannel();
+            if(channel.size() < VideoPacketRecorder.HEADER_SIZE)
+                throw new IOException(f + " is not a video packet segment");
+
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, VideoPacketRecorder.HEADER_SIZE)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            if(header.getInt(0) != VideoPacketRecorder.MAGIC)
+                throw new IOException(f + " is not a video packet segment");
+            if(header.getInt(4) != VideoPacketRecorder.VERSION)
+                throw new IOException(f + " has unsupported version " + header.getInt(4));
+
+            int end = header.getInt(VideoPacketRecorder.END_OFFSET);
+            if(end < VideoPacketRecorder.HEADER_SIZE || end > channel.size())
+                throw new IOException(f + " is damaged, its end offset is " + end);
+
+            ByteBuffer segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, end).order(ByteOrder.LITTLE_ENDIAN);
+            segment.position(VideoPacketRecorder.HEADER_SIZE);
+            return segment;
+        } finally
+        {
+            file.close();
+        }
+    }
+
+    /**
+     * Goes back to before the first datagram.
+     */
+    public void rewind()
+    {
+        segment_index = 0;
+        segment = segments[0];
+        segment.position(VideoPacketRecorder.HEADER_SIZE);
+        packet = segment.duplicate();
+        packet.limit(0);
+        time = 0;
+    }
+
+    /**
+     * Moves on to the next datagram, returning false after the last one.
+     */
+    public boolean next()
+    {
+        while(segment.remaining() < VideoPacketRecorder.RECORD_HEADER_SIZE)
+        {
+            if(segment_index + 1 == segments.length)
+                return false;
+
+            segment = segments[++segment_index];
+            segment.position(VideoPacketRecorder.HEADER_SIZE);
+            packet = segment.duplicate();
+        }
+
+        time = segment.getLong();
+        int length = segment.getInt();
+        int start = segment.position();
+        if(length < 0 || length > segment.remaining())
+            throw new IllegalStateException("Damaged record at offset "
+                    + (start - VideoPacketRecorder.RECORD_HEADER_SIZE) + " of segment " + segment_index);
+
+        segment.position(start + length);
+        packet.limit(start + length).position(start);
+        return true;
+    }
+
+    /**
+     * Receive time of the current datagram, in nanoseconds since the first
+     * datagram of the recording.
+     */
+    public long getTime()
+    {
+        return time;
+    }
+
+    /**
+     * The current datagram, between the position and the limit of the
+     * buffer. The buffer is reused for the following datagrams of the same
+     * segment.
+     */
+    public ByteBuffer getPacket()
+    {
+        return packet;
+    }
+
+    /**
+     * Wall clock time the recording started at, in milliseconds.
+     */
+    public long getStartTime()
+    {
+        return start_millis;
+    }
+}
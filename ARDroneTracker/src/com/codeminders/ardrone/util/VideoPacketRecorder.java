@@ -0,0 +1,220 @@
+package com.codeminders.ardrone.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.DecimalFormat;
+
+import com.codeminders.ardrone.VideoPacketListener;
+
+/**
+ * Records the raw video datagrams of a drone, as they arrive and without
+ * decoding them, into memory-mapped segment files. Register it with
+ * {@link com.codeminders.ardrone.ARDrone#addVideoPacketListener(VideoPacketListener)}
+ * and play the segments back with {@link VideoPacketReader} and
+ * {@link VideoPacketPlayer}.
+ *
+ * A segment, little-endian, starts with a header: {@link #MAGIC},
+ * {@link #VERSION}, the offset just past the last record, a reserved int
+ * and the wall clock time in milliseconds the recording started at. Each
+ * record is the time the datagram was received in nanoseconds since the
+ * first datagram of the recording, its length as an int and its bytes. The
+ * files keep the full segment size; the end offset tells how much of them
+ * is used, also when the recording was never finished.
+ *
+ * Datagrams are copied straight into the mapped segment on the event loop
+ * thread. When a segment is full the next one is created, and the callback
+ * told about the full one, on that thread as well.
+ */
+public class VideoPacketRecorder implements VideoPacketListener
+{
+    public static final int                DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    static final int                       MAGIC                = 0x4B505641;
+    static final int                       VERSION              = 1;
+    static final int                       END_OFFSET           = 8;
+    static final int                       START_TIME_OFFSET    = 16;
+    static final int                       HEADER_SIZE          = 24;
+    static final int                       RECORD_HEADER_SIZE   = 12;
+
+    private static final String            EXT                  = ".vpk";
+
+    private final File                     base_path;
+    private final String                   prefix;
+    private final RecordingSuccessCallback callback;
+    private final int                      segment_size;
+    private final DecimalFormat            format               = new DecimalFormat("0000");
+    private int                            seq;
+
+    private boolean                        recording;
+    private boolean                        started;
+    private long                           start_time;
+    private long                           start_millis;
+
+    private MappedByteBuffer               segment;
+    private File                           segment_file;
+
+    private long                           packet_count;
+    private long                           byte_count;
+    private long                           dropped_packets;
+
+    public VideoPacketRecorder(File base_path, int starting_seq, String prefix, RecordingSuccessCallback callback)
+    {
+        this(base_path, starting_seq, prefix, callback, DEFAULT_SEGMENT_SIZE);
+    }
+
+    public VideoPacketRecorder(File base_path, int starting_seq, String prefix, RecordingSuccessCallback callback,
+            int segment_size)
+    {
+        if(segment_size <= HEADER_SIZE + RECORD_HEADER_SIZE)
+            throw new IllegalArgumentException("Segment size " + segment_size + " is too small");
+
+        this.base_path = base_path;
+        this.seq = starting_seq;
+        this.prefix = prefix;
+        this.callback = callback;
+        this.segment_size = segment_size;
+    }
+
+    public synchronized void startRecording()
+    {
+        recording = true;
+    }
+
+    public synchronized void pauseRecording()
+    {
+        recording = false;
+    }
+
+    /**
+     * Stops recording and closes the current segment. Recording again
+     * starts a new segment.
+     */
+    public synchronized void finishRecording()
+    {
+        recording = false;
+        closeSegment();
+        started = false;
+    }
+
+    public synchronized void videoPacketReceived(long time, ByteBuffer packet)
+    {
+        if(!recording)
+            return;
+
+        int length = packet.remaining();
+        if(HEADER_SIZE + RECORD_HEADER_SIZE + length > segment_size)
+        {
+            dropped_packets++;
+            return;
+        }
+
+        if(segment == null || segment.remaining() < RECORD_HEADER_SIZE + length)
+        {
+            closeSegment();
+            if(!started)
+            {
+                start_time = time;
+                start_millis = System.currentTimeMillis();
+                started = true;
+            }
+
+            if(!openSegment())
+            {
+                recording = false;
+                dropped_packets++;
+                return;
+            }
+        }
+
+        segment.putLong(time - start_time);
+        segment.putInt(length);
+        segment.put(packet);
+        segment.putInt(END_OFFSET, segment.position());
+
+        packet_count++;
+        byte_count += length;
+    }
+
+    private boolean openSegment()
+    {
+        try
+        {
+            segment_file = openFile();
+            RandomAccessFile file = new RandomAccessFile(segment_file, "rw");
+            try
+            {
+                // The mapping stays valid after the file is closed
+                segment = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segment_size);
+            } finally
+            {
+                file.close();
+            }
+        } catch(IOException e)
+        {
+            callback.recordingError(segment_file == null ? null : segment_file.getAbsolutePath(),
+                    "Error opening segment", e);
+            segment = null;
+            segment_file = null;
+            return false;
+        }
+
+        segment.order(ByteOrder.LITTLE_ENDIAN);
+        segment.putInt(MAGIC);
+        segment.putInt(VERSION);
+        segment.putInt(HEADER_SIZE);
+        segment.putInt(0);
+        segment.putLong(start_millis);
+        return true;
+    }
+
+    private void closeSegment()
+    {
+        if(segment == null)
+            return;
+
+        segment = null;
+        callback.recordingSuccess(segment_file.getAbsolutePath());
+        segment_file = null;
+    }
+
+    private File openFile() throws IOException
+    {
+        while(seq < 9999)
+        {
+            File f = new File(base_path, prefix + format.format(seq) + EXT);
+            if(f.createNewFile())
+                return f;
+            seq++;
+        }
+        throw new IOException("Filename space is exhausted. Could not create file");
+    }
+
+    public synchronized boolean isRecording()
+    {
+        return recording;
+    }
+
+    public synchronized long getPacketCount()
+    {
+        return packet_count;
+    }
+
+    public synchronized long getByteCount()
+    {
+        return byte_count;
+    }
+
+    /**
+     * Datagrams that were not recorded, being larger than a segment or
+     * arriving when a segment could not be created.
+     */
+    public synchronized long getDroppedPacketCount()
+    {
+        return dropped_packets;
+    }
+}
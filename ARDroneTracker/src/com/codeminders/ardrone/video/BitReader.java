@@ -0,0 +1,159 @@
+package com.codeminders.ardrone.video;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+/**
+ * Reads the video bitstream. The drone sends the stream as little-endian 32-bit
+ * words and the bits of each word are consumed most significant bit first.
+ *
+ * Bits are kept left-aligned in a 64-bit accumulator which is refilled one word
+ * at a time, so reading, peeking and aligning never allocate. The word views
+ * of the last two buffers passed to {@link #reset(ByteBuffer)} are kept, so a
+ * caller reusing one buffer, or two in turn, never has them rebuilt.
+ */
+public final class BitReader
+{
+    private ByteBuffer source;
+    private IntBuffer  words;
+    private int        wordCount;
+
+    /**
+     * The buffer read before source, and its view.
+     */
+    private ByteBuffer otherSource;
+    private IntBuffer  otherWords;
+
+    /**
+     * Index of the next word to be loaded into the accumulator.
+     */
+    private int        wordIndex;
+
+    /**
+     * Unread bits, left-aligned.
+     */
+    private long       cache;
+    private int        cacheBits;
+
+    /**
+     * Starts reading the given stream from its first byte. As before, the whole
+     * capacity of the buffer is treated as stream data.
+     */
+    public void reset(ByteBuffer stream)
+    {
+        if(stream != source)
+        {
+            ByteBuffer lastSource = source;
+            IntBuffer lastWords = words;
+            if(stream == otherSource)
+            {
+                words = otherWords;
+            } else
+            {
+                ByteBuffer view = stream.duplicate();
+                view.clear();
+                words = view.order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+            }
+            source = stream;
+            otherSource = lastSource;
+            otherWords = lastWords;
+        }
+
+        wordCount = words.capacity();
+        wordIndex = 0;
+        cache = 0;
+        cacheBits = 0;
+    }
+
+    /**
+     * Consumes and returns the next <code>count</code> bits (0..32).
+     */
+    public int read(int count)
+    {
+        if(count == 0)
+            return 0;
+
+        if(count > cacheBits)
+            fill();
+
+        int value = (int) (cache >>> (64 - count));
+        cache <<= count;
+        cacheBits -= count;
+
+        return value;
+    }
+
+    /**
+     * Returns the next <code>count</code> bits (1..32) without consuming them.
+     * Past the end of the stream missing bits are read as zeros.
+     */
+    public int peek(int count)
+    {
+        if(count > cacheBits && wordIndex < wordCount)
+            fill();
+
+        return (int) (cache >>> (64 - count));
+    }
+
+    /**
+     * Consumes <code>count</code> bits (0..32).
+     */
+    public void skip(int count)
+    {
+        read(count);
+    }
+
+    /**
+     * Skips to the next byte boundary.
+     */
+    public void align()
+    {
+        int padding = cacheBits & 7;
+        cache <<= padding;
+        cacheBits -= padding;
+    }
+
+    /**
+     * Number of bits consumed since {@link #reset(ByteBuffer)}.
+     */
+    public long getBitPosition()
+    {
+        return ((long) wordIndex << 5) - cacheBits;
+    }
+
+    /**
+     * Continues reading at the given bit position, counted from the start of
+     * the stream.
+     */
+    public void seek(long bitPosition)
+    {
+        wordIndex = (int) (bitPosition >>> 5);
+        cache = 0;
+        cacheBits = 0;
+        read((int) bitPosition & 31);
+    }
+
+    /**
+     * Length of the stream in bits.
+     */
+    public long getBitLength()
+    {
+        return (long) wordCount << 5;
+    }
+
+    /**
+     * Tells if there are stream words that have not been touched by a read
+     * yet.
+     */
+    public boolean hasRemaining()
+    {
+        return ((getBitPosition() + 31) >>> 5) < wordCount;
+    }
+
+    private void fill()
+    {
+        cache |= (words.get(wordIndex++) & 0xFFFFFFFFL) << (32 - cacheBits);
+        cacheBits += 32;
+    }
+}
@@ -2,6 +2,11 @@
 package com.codeminders.ardrone.video;
 
 import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
 
 // Copyright (C) 2007-2011, PARROT SA, all rights reserved.
 
@@ -36,34 +41,48 @@ import java.nio.ByteBuffer;
 
 public class BufferedVideoImage
 {
-    private static final int     BLOCK_WIDTH             = 8;
+    /**
+     * Layout of the decoded pixels.
+     */
+    public enum PixelFormat
+    {
+        /**
+         * RGB565 values spread over the bytes of an int (5/6/5 significant
+         * bits per channel). This is the historical output of the decoder.
+         */
+        RGB565,
+
+        /**
+         * Packed ARGB ints with full 8-bit channels, as used by
+         * BufferedImage.TYPE_INT_ARGB and TYPE_INT_RGB.
+         */
+        ARGB8888
+    }
+
+    /**
+     * How the slices of a picture are decoded.
+     */
+    public enum DecodeMode
+    {
+        /**
+         * One slice after the other on the thread calling addImageStream.
+         */
+        SERIAL,
+
+        /**
+         * Groups of consecutive slices are decoded at the same time on the
+         * decode executor. Pictures whose slice start codes cannot all be
+         * found up front are decoded serially.
+         */
+        PARALLEL
+    }
+
     private static final int     CIF_WIDTH               = 88;
     private static final int     CIG_HEIGHT              = 72;
 
     private static final int     VGA_WIDTH               = 160;
     private static final int     VGA_HEIGHT              = 120;
 
-    private static final int     TABLE_QUANTIZATION_MODE = 31;
-
-    private static final int     FIX_0_298631336         = 2446;
-    private static final int     FIX_0_390180644         = 3196;
-    private static final int     FIX_0_541196100         = 4433;
-    private static final int     FIX_0_765366865         = 6270;
-    private static final int     FIX_0_899976223         = 7373;
-    private static final int     FIX_1_175875602         = 9633;
-    private static final int     FIX_1_501321110         = 12299;
-    private static final int     FIX_1_847759065         = 15137;
-    private static final int     FIX_1_961570560         = 16069;
-    private static final int     FIX_2_053119869         = 16819;
-    private static final int     FIX_2_562915447         = 20995;
-    private static final int     FIX_3_072711026         = 25172;
-
-    private static final int     BITS                    = 13;
-    private static final int     PASS1_BITS              = 1;
-    private static final int     F1                      = BITS - PASS1_BITS - 1;
-    private static final int     F2                      = BITS - PASS1_BITS;
-    private static final int     F3                      = BITS + PASS1_BITS + 3;
-
     /**
      * 176px x 144px
      */
@@ -74,40 +93,26 @@ public class BufferedVideoImage
      */
     private static final int     QVGA                    = 2;
 
-    private static final short[] ZIGZAG_POSITIONS        = new short[] { 0, 1, 8, 16, 9, 2, 3, 10, 17, 24, 32, 25, 18,
-            11, 4, 5, 12, 19, 26, 33, 40, 48, 41, 34, 27, 20, 13, 6, 7, 14, 21, 28, 35, 42, 49, 56, 57, 50, 43, 36, 29,
-            22, 15, 23, 30, 37, 44, 51, 58, 59, 52, 45, 38, 31, 39, 46, 53, 60, 61, 54, 47, 55, 62, 63, };
-
-    // Cfr. Handbook of Data Compression - Page 529
-    // David Salomon
-    // Giovanni Motta
-
-    private static final short[] QUANTIZER_VALUES        = new short[] { 3, 5, 7, 9, 11, 13, 15, 17, 5, 7, 9, 11, 13,
-            15, 17, 19, 7, 9, 11, 13, 15, 17, 19, 21, 9, 11, 13, 15, 17, 19, 21, 23, 11, 13, 15, 17, 19, 21, 23, 25,
-            13, 15, 17, 19, 21, 23, 25, 27, 15, 17, 19, 21, 23, 25, 27, 29, 17, 19, 21, 23, 25, 27, 29, 31 };
-
-    static byte[]                CLZLUT                  = new byte[] { 8, 7, 6, 6, 5, 5, 5, 5, 4, 4, 4, 4, 4, 4, 4, 4,
-            3, 3, 3, 3, 3, 3, 3, 3, 3, 3, 3, 3, 3, 3, 3, 3, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2,
-            2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1,
-            1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1,
-            1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
-            0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
-            0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
-            0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0 };
-
-    private static final int[]   CROMA_QUADRANT_OFFSETS  = new int[] { 0, 4, 32, 36 };
+    /**
+     * Slice numbers are 5 bits and 31 marks the end of the picture, so larger
+     * pictures cannot be split up front.
+     */
+    private static final int     MAX_PARALLEL_SLICES     = 31;
 
-    private short[]              dataBlockBuffer         = new short[64];
+    private static Executor defaultDecodeExecutor;
 
-    private uint                 streamField;
-    private int                  streamFieldBitIndex;
-    private int                  streamIndex;
+    /**
+     * Decodes the slices in serial mode and keeps the macroblocks that empty
+     * macroblocks of the next picture repeat.
+     */
+    private final SliceDecoder   primary                 = new SliceDecoder();
+    private final BitReader      reader                  = primary.reader;
+    private ByteBuffer           stream;
     private int                  sliceCount;
     private boolean              pictureComplete;
     private int                  pictureFormat;
     private int                  resolution;
     private int                  pictureType;
-    private int                  quantizerMode;
     private int                  frameIndex;
     private int                  sliceIndex;
     private int                  blockCount;
@@ -118,791 +123,1036 @@ public class BufferedVideoImage
      * Length of one row of pixels in the destination image in bytes.
      */
     private int                  pixelRowSize;
-    private ByteBuffer           imageStream;
-    private ImageSlice           imageSlice;
+    private PixelFormat          pixelFormat             = PixelFormat.RGB565;
+
+    /**
+     * Built from javaPixelData on request only, see {@link #getPixelData()}.
+     */
     private uint[]               pixelData;
+
+    /**
+     * Destination of the current frame: either the caller supplied buffer or
+     * ownPixelData.
+     */
     private int[]                javaPixelData;
+    private int[]                ownPixelData;
+    private int[]                targetPixelData;
+
+    private boolean              colorEnabled;
+    private boolean              lumaEnabled;
+
+    /**
+     * Luma plane reused from frame to frame, and the same array while it
+     * holds the picture of the last addImageStream call.
+     */
+    private byte[]               lumaData;
+    private byte[]               lumaPicture;
+
+    private boolean              thumbnailEnabled;
+    private int[]                thumbnailData;
+    private int[]                thumbnailPicture;
+
+    /**
+     * Region of interest of the current picture in pixels, see
+     * {@link #setRegionOfInterest(int, int, int, int)}.
+     */
+    private boolean              regionSet;
+    private int                  regionX;
+    private int                  regionY;
+    private int                  regionWidth;
+    private int                  regionHeight;
+
+    /**
+     * Macroblock rows and columns of the current picture that are decoded.
+     */
+    private int                  firstRegionSlice;
+    private int                  endRegionSlice;
+    private int                  firstRegionColumn;
+    private int                  endRegionColumn;
+
+    private VideoSliceListener   sliceListener;
+
+    /**
+     * Settings for the following frames, which may be changed from any
+     * thread. The fields above are copied from them when a frame starts, so
+     * that all of it is decoded with the same ones. The region of interest
+     * is x, y, width and height, or null for whole frames, and is replaced
+     * as a whole.
+     */
+    private volatile PixelFormat nextPixelFormat         = PixelFormat.RGB565;
+    private volatile boolean     nextColorEnabled        = true;
+    private volatile boolean     nextLumaEnabled;
+    private volatile boolean     nextThumbnailEnabled;
+    private volatile int[]       nextRegion;
+    private volatile VideoSliceListener nextSliceListener;
+
+    /**
+     * Whether incremental updates are wanted, and whether the current
+     * picture is one, see {@link #setIncrementalUpdate(boolean)}.
+     */
+    private volatile boolean     incrementalUpdate;
+    private boolean              incremental;
+    private boolean              outputChecked;
+
+    /**
+     * Output of the last picture that was decoded without error. An
+     * incremental update needs the same output written to the same arrays.
+     */
+    private boolean              previousDecoded;
+    private int[]                previousPixelData;
+    private int                  previousWidth;
+    private PixelFormat          previousPixelFormat;
+    private boolean              previousColorEnabled;
+    private boolean              previousLumaEnabled;
+    private boolean              previousThumbnailEnabled;
+    private int                  previousFirstSlice;
+    private int                  previousEndSlice;
+    private int                  previousFirstColumn;
+    private int                  previousEndColumn;
+    private int                  previousFrameIndex;
+
+    /**
+     * Macroblocks whose pixels the current picture wrote, row by row.
+     */
+    private boolean[]            dirtyMacroBlocks        = new boolean[0];
+
+    private VideoFramePool       framePool;
+    private VideoFrame           currentFrame;
+    private VideoFrameRing       frameRing;
+    private VideoFrameRing.Slot  ringSlot;
+
+    private volatile DecodeMode  decodeMode              = DecodeMode.SERIAL;
+    private volatile Executor    decodeExecutor;
+    private volatile int         parallelism             = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Bit position of the data of each slice of the current picture; the
+     * last entry points at the end of picture code.
+     */
+    private long[]               sliceOffsets            = new long[MAX_PARALLEL_SLICES + 1];
+    private boolean[]            emptyMacroBlocks        = new boolean[0];
+    private boolean[]            columnCoded             = new boolean[0];
+    private SliceDecoder[]       columnSources           = new SliceDecoder[0];
+    private SliceTask[]          tasks                   = new SliceTask[0];
+    private final Object         taskLock                = new Object();
+    private int                  pendingTasks;
 
     public void addImageStream(ByteBuffer stream)
     {
-        imageStream = stream;
-        processStream();
+        addImageStream(stream, null);
     }
 
-    private void alignStreamData()
+    /**
+     * Decodes a frame straight into the given array. It has to hold at least
+     * width * height pixels of the incoming frame. If it is null the decoder
+     * uses an internal array which is reused for the following frames.
+     */
+    public void addImageStream(ByteBuffer stream, int[] pixels)
     {
-        int alignedLength;
-        int actualLength;
-
-        actualLength = streamFieldBitIndex;
+        if(currentFrame != null)
+        {
+            // Previous frame was never taken
+            currentFrame.release();
+            currentFrame = null;
+        }
 
-        if(actualLength > 0)
+        takeSettings();
+        targetPixelData = pixels;
+        pixelData = null;
+        lumaPicture = null;
+        thumbnailPicture = null;
+        this.stream = stream;
+        reader.reset(stream);
+        outputChecked = false;
+        boolean decoded = false;
+        try
         {
-            alignedLength = (actualLength & ~7);
-            if(alignedLength != actualLength)
+            processStream();
+            decoded = true;
+        } finally
+        {
+            targetPixelData = null;
+            previousDecoded = decoded && sliceIndex > 0;
+            if(previousDecoded)
+                markDirtyMacroBlocks();
+
+            if(ringSlot != null)
             {
-                alignedLength += 0x08;
-                streamField.shiftLeftEquals(alignedLength - actualLength);
-                streamFieldBitIndex = alignedLength;
+                // Not published on error, the next frame claims it again
+                if(decoded)
+                {
+                    int[] slotPixels = ringSlot.getPixels();
+                    if(javaPixelData != slotPixels)
+                        System.arraycopy(javaPixelData, 0, slotPixels, 0, slotPixels.length);
+                    frameRing.publish(ringSlot, frameIndex, pixelFormat);
+                }
+                ringSlot = null;
+            }
+
+            if(currentFrame != null)
+            {
+                if(decoded)
+                {
+                    int[] framePixels = currentFrame.getPixels();
+                    if(javaPixelData != framePixels)
+                        System.arraycopy(javaPixelData, 0, framePixels, 0, framePixels.length);
+                    currentFrame.setFrameIndex(frameIndex);
+                    currentFrame.setValidRegion(getValidX(), getValidY(), getValidWidth(), getValidHeight());
+                    currentFrame.setDirtyMacroBlocks(dirtyMacroBlocks);
+                } else
+                {
+                    currentFrame.release();
+                    currentFrame = null;
+                }
             }
         }
     }
 
-    private void composeImageSlice()
+    /**
+     * When a pool is set, frames decoded by {@link #addImageStream(ByteBuffer)}
+     * go into pixel arrays taken from it; see {@link #takeFrame()}.
+     */
+    public void setFramePool(VideoFramePool framePool)
     {
-        int u, ug, ub;
-        int v, vg, vr;
-        int r, g, b;
+        this.framePool = framePool;
+    }
 
-        int lumaElementIndex1 = 0;
-        int lumaElementIndex2 = 0;
-        int chromaOffset = 0;
+    /**
+     * When a ring is set, frames decoded by
+     * {@link #addImageStream(ByteBuffer)} are also published to it, decoded
+     * straight into its slots unless incremental updates are on. Frames the
+     * ring has to drop are still decoded to the frame pool or the internal
+     * array.
+     */
+    public void setFrameRing(VideoFrameRing frameRing)
+    {
+        this.frameRing = frameRing;
+    }
+
+    /**
+     * Hands the frame decoded by the last addImageStream call over to the
+     * caller, who then owns one reference to it. Returns null if no frame
+     * pool is set, colour output is off or the stream did not contain a
+     * picture.
+     */
+    public VideoFrame takeFrame()
+    {
+        VideoFrame frame = currentFrame;
+        currentFrame = null;
+        return frame;
+    }
+
+    /**
+     * Number of 8x8 blocks decoded so far that held a DC coefficient only.
+     */
+    public long getDcOnlyBlockCount()
+    {
+        long count = primary.dcOnlyBlocks;
+        for(int t = 0; t < tasks.length; t++)
+            count += tasks[t].decoder.dcOnlyBlocks;
+        return count;
+    }
+
+    /**
+     * Number of 8x8 blocks decoded so far whose coefficients all lay in the
+     * top left 4x4 corner, apart from the DC only ones.
+     */
+    public long getSparseBlockCount()
+    {
+        long count = primary.sparseBlocks;
+        for(int t = 0; t < tasks.length; t++)
+            count += tasks[t].decoder.sparseBlocks;
+        return count;
+    }
+
+    /**
+     * Number of 8x8 blocks decoded so far that needed the full inverse
+     * transform.
+     */
+    public long getFullBlockCount()
+    {
+        long count = primary.fullBlocks;
+        for(int t = 0; t < tasks.length; t++)
+            count += tasks[t].decoder.fullBlocks;
+        return count;
+    }
+
+    /**
+     * Tells for each macroblock of the last frame, row by row, whether its
+     * pixels were written by that frame. Without incremental updates these
+     * are the macroblocks inside the region of interest; with them only the
+     * macroblocks the stream coded. The array is reused for the following
+     * frames.
+     */
+    public boolean[] getDirtyMacroBlocks()
+    {
+        return dirtyMacroBlocks;
+    }
+
+    public int getFrameIndex()
+    {
+        return frameIndex;
+    }
 
-        int dataIndex1 = 0;
-        int dataIndex2 = 0;
+    public int getHeight()
+    {
+        return height;
+    }
 
-        int lumaElementValue1 = 0;
-        int lumaElementValue2 = 0;
-        int chromaBlueValue = 0;
-        int chromaRedValue = 0;
+    public int[] getJavaPixelData()
+    {
+        return javaPixelData;
+    }
 
-        int[] pixelDataQuadrantOffsets = new int[] { 0, BLOCK_WIDTH, width * BLOCK_WIDTH,
-                (width * BLOCK_WIDTH) + BLOCK_WIDTH };
+    public int getPictureType()
+    {
+        return pictureType;
+    }
 
-        int imageDataOffset = (sliceIndex - 1) * width * 16;
+    /**
+     * The pixel format the last frame was decoded in, which is the layout of
+     * {@link #getJavaPixelData()}. A format set since applies from the next
+     * frame on.
+     */
+    public PixelFormat getPixelFormat()
+    {
+        return pixelFormat;
+    }
 
-        for(MacroBlock macroBlock : imageSlice.MacroBlocks)
+    /**
+     * Returns the last frame as uint values. The array is built from
+     * {@link #getJavaPixelData()} on the first call after each frame, so use
+     * that method instead when allocation matters.
+     */
+    public uint[] getPixelData()
+    {
+        if(pixelData == null && javaPixelData != null)
         {
-            for(int verticalStep = 0; verticalStep < BLOCK_WIDTH / 2; verticalStep++)
-            {
-                chromaOffset = verticalStep * BLOCK_WIDTH;
-                lumaElementIndex1 = verticalStep * BLOCK_WIDTH * 2;
-                lumaElementIndex2 = lumaElementIndex1 + BLOCK_WIDTH;
+            pixelData = new uint[width * height];
+            for(int i = 0; i < pixelData.length; i++)
+                pixelData[i] = new uint(javaPixelData[i]);
+        }
+        return pixelData;
+    }
 
-                dataIndex1 = imageDataOffset + (2 * verticalStep * width);
-                dataIndex2 = dataIndex1 + width;
+    public int getPixelRowSize()
+    {
+        return pixelRowSize;
+    }
 
-                for(int horizontalStep = 0; horizontalStep < BLOCK_WIDTH / 2; horizontalStep++)
-                {
-                    for(int quadrant = 0; quadrant < 4; quadrant++)
-                    {
-                        int chromaIndex = chromaOffset + CROMA_QUADRANT_OFFSETS[quadrant] + horizontalStep;
-                        chromaBlueValue = macroBlock.DataBlocks[4][chromaIndex];
-                        chromaRedValue = macroBlock.DataBlocks[5][chromaIndex];
+    public int getSliceCount()
+    {
+        return sliceCount;
+    }
 
-                        u = chromaBlueValue - 128;
-                        ug = 88 * u;
-                        ub = 454 * u;
+    public int getWidth()
+    {
+        return width;
+    }
 
-                        v = chromaRedValue - 128;
-                        vg = 183 * v;
-                        vr = 359 * v;
+    /**
+     * Selects the layout of the pixels produced by the following frames.
+     */
+    public void setPixelFormat(PixelFormat pixelFormat)
+    {
+        nextPixelFormat = pixelFormat;
+    }
 
-                        for(int pixel = 0; pixel < 2; pixel++)
-                        {
-                            int deltaIndex = 2 * horizontalStep + pixel;
-                            lumaElementValue1 = macroBlock.DataBlocks[quadrant][lumaElementIndex1 + deltaIndex] << 8;
-                            lumaElementValue2 = macroBlock.DataBlocks[quadrant][lumaElementIndex2 + deltaIndex] << 8;
+    public DecodeMode getDecodeMode()
+    {
+        return decodeMode;
+    }
 
-                            r = saturate5(lumaElementValue1 + vr);
-                            g = saturate6(lumaElementValue1 - ug - vg);
-                            b = saturate5(lumaElementValue1 + ub);
+    /**
+     * Selects whether the slices of the following frames are decoded one
+     * after the other or in parallel. Both modes produce the same pixels.
+     */
+    public void setDecodeMode(DecodeMode decodeMode)
+    {
+        this.decodeMode = decodeMode;
+    }
 
-                            int index1 = dataIndex1 + pixelDataQuadrantOffsets[quadrant] + deltaIndex;
-                            pixelData[index1] = makeRGB(r, g, b);
-                            javaPixelData[index1] = pixelData[index1].intValue();
+    /**
+     * Sets the executor used in {@link DecodeMode#PARALLEL} mode and into how
+     * many tasks a picture is split at most. The thread calling
+     * addImageStream runs one of the tasks itself. Without an executor a
+     * shared pool of daemon threads, one per processor, is used.
+     */
+    public void setDecodeExecutor(Executor decodeExecutor, int parallelism)
+    {
+        if(parallelism < 1)
+            throw new IllegalArgumentException("Parallelism must be at least 1, got " + parallelism);
 
-                            r = saturate5(lumaElementValue2 + vr);
-                            g = saturate6(lumaElementValue2 - ug - vg);
-                            b = saturate5(lumaElementValue2 + ub);
+        this.decodeExecutor = decodeExecutor;
+        this.parallelism = parallelism;
+    }
 
-                            int index2 = dataIndex2 + pixelDataQuadrantOffsets[quadrant] + deltaIndex;
-                            pixelData[index2] = makeRGB(r, g, b);
-                            javaPixelData[index2] = pixelData[index2].intValue();
-                        }
-                    }
-                }
-            }
+    /**
+     * Turns the conversion of the following frames to RGB pixels on or off.
+     * Without it the chroma blocks are parsed but not transformed, and
+     * neither the pixel array nor pooled frames are written. On by default.
+     */
+    public void setColorEnabled(boolean enabled)
+    {
+        nextColorEnabled = enabled;
+    }
 
-            imageDataOffset += 16;
-        }
+    public boolean isColorEnabled()
+    {
+        return nextColorEnabled;
     }
 
-    private static int countLeadingZeros(uint value)
+    /**
+     * Turns storing the luma (Y) plane of the following frames on or off,
+     * see {@link #getLumaData()}. Off by default.
+     */
+    public void setLumaEnabled(boolean enabled)
     {
-        int accum = 0;
+        nextLumaEnabled = enabled;
+    }
 
-        accum += CLZLUT[value.shiftRight(24).intValue()];
-        if(accum == 8)
-            accum += CLZLUT[(value.shiftRight(16).intValue()) & 0xFF];
-        if(accum == 16)
-            accum += CLZLUT[(value.shiftRight(8).intValue()) & 0xFF];
-        if(accum == 24)
-            accum += CLZLUT[value.intValue() & 0xFF];
+    public boolean isLumaEnabled()
+    {
+        return nextLumaEnabled;
+    }
 
-        return accum;
+    /**
+     * Returns the luma of the picture decoded by the last addImageStream
+     * call, one unsigned byte per pixel in rows of width pixels, or null if
+     * luma is not enabled or there was no picture. The array is reused for
+     * the following frames.
+     */
+    public byte[] getLumaData()
+    {
+        return lumaPicture;
     }
 
-    private void decodeFieldBytes(int[] run, int[] level, boolean[] last)
+    /**
+     * Turns incremental updates of the following frames on or off. Normally
+     * an empty macroblock repeats the last macroblock coded in its column and
+     * is composed again. With incremental updates the pixel, luma and
+     * thumbnail arrays are kept from frame to frame and empty macroblocks are
+     * not written at all, so they keep the pixels of the previous frame; see
+     * {@link #getDirtyMacroBlocks()} for what changed. A frame is decoded in
+     * full whenever the arrays cannot hold the previous frame: after an
+     * error, when frames were skipped, as shown by a gap in the frame
+     * indices or by {@link #discardPreviousFrame()}, or when the size, pixel
+     * format, outputs, region of interest or the pixel array passed to
+     * addImageStream change. Pooled frames and ring slots are decoded into an
+     * internal array and copied. Off by default.
+     */
+    public void setIncrementalUpdate(boolean enabled)
     {
-        uint streamCode = new uint(0);
+        incrementalUpdate = enabled;
+    }
 
-        int streamLength = 0;
-        ;
-        int zeroCount = 0;
-        int temp = 0;
-        int sign = 0;
+    /**
+     * Decodes the next frame in full, as the arrays no longer hold the frame
+     * before it, e.g. because the caller dropped frames in between. Call on
+     * the decoding thread.
+     */
+    public void discardPreviousFrame()
+    {
+        previousDecoded = false;
+    }
 
-        // Use the RLE and Huffman dictionaries to understand this code
-        // fragment. You can find
-        // them in the developers guide on page 34.
-        // The bits in the data are actually composed of two kinds of fields:
-        // - run fields - this field contains information on the number of
-        // consecutive zeros.
-        // - level fields - this field contains the actual non zero value which
-        // can be negative or positive.
-        // First we extract the run field info and then the level field info.
+    public boolean isIncrementalUpdate()
+    {
+        return incrementalUpdate;
+    }
 
-        streamCode = peekStreamData(imageStream, 32);
+    /**
+     * Sets the listener told about every slice as soon as its pixels are
+     * final, or null for none. In serial mode that is right after each
+     * slice has been decoded; in parallel mode all slices of a picture are
+     * reported together once they are done. Slices outside of the region of
+     * interest and pictures with neither colour nor luma output are not
+     * reported.
+     */
+    public void setSliceListener(VideoSliceListener sliceListener)
+    {
+        nextSliceListener = sliceListener;
+    }
+
+    /**
+     * Turns the thumbnail of the following frames on or off, see
+     * {@link #getThumbnailData()}. Off by default. With colour and luma
+     * output off only the DC coefficients of the stream are used and no
+     * inverse transform is done at all.
+     */
+    public void setThumbnailEnabled(boolean enabled)
+    {
+        nextThumbnailEnabled = enabled;
+    }
+
+    public boolean isThumbnailEnabled()
+    {
+        return nextThumbnailEnabled;
+    }
 
-        // Determine number of consecutive zeros in zig zag. (a.k.a
-        // 'run' field info)
+    /**
+     * Returns an eighth scale thumbnail of the picture decoded by the last
+     * addImageStream call, or null if thumbnails are not enabled or there
+     * was no picture. Each pixel is the average colour of an 8x8 block, in
+     * the pixel format of the decoder. The array is reused for the following
+     * frames.
+     */
+    public int[] getThumbnailData()
+    {
+        return thumbnailPicture;
+    }
 
-        // Suppose we have following bit sequence:
-        // 00001111.....
-        // 1 - Count the number of leading zeros -> 4
-        // Coarse value lookup is thus 00001
-        // 2 - Lookup the additional value, for coarse value 00001 this is 3
-        // addtional bits
-        // 3 - Calculate value of run, for coarse value 00001 this is (111) + 8
+    public int getThumbnailWidth()
+    {
+        return width >> 3;
+    }
 
-        zeroCount = countLeadingZeros(streamCode); // - (1)
-        streamCode.shiftLeftEquals(zeroCount + 1); // - (2) -> shift left to get
-        // rid of the coarse value
-        streamLength += zeroCount + 1; // - position bit pointer to keep track
-        // off how many bits to consume later on
-        // the stream.
+    public int getThumbnailHeight()
+    {
+        return height >> 3;
+    }
 
-        if(zeroCount > 1)
-        {
-            temp = (streamCode.shiftRight(32 - (zeroCount - 1))).intValue(); // -
-            // (2)
-            // ->
-            // shift
-            // right
-            // to
-            // determine
-            // the
-            // addtional
-            // bits
-            // (number
-            // of
-            // additional
-            // bits
-            // is
-            // zerocount
-            // - 1)
-            streamCode.shiftLeftEquals(zeroCount - 1); // - shift all of the run
-            // bits out of the way
-            // so the first bit is
-            // points to the first
-            // bit of the level
-            // field.
-            streamLength += zeroCount - 1;// - position bit pointer to keep
-            // track off how many bits to
-            // consume later on the stream.
-            run[0] = temp + (1 << (zeroCount - 1)); // - (3) -> calculate run
-            // value
-        } else
+    /**
+     * Restricts decoding of the following frames to the macroblocks that
+     * overlap the given rectangle. Everything else is only read past, so the
+     * pixels outside of {@link #getValidX()}, {@link #getValidY()},
+     * {@link #getValidWidth()} and {@link #getValidHeight()} are left as they
+     * were.
+     */
+    public void setRegionOfInterest(int x, int y, int width, int height)
+    {
+        nextRegion = new int[] { x, y, width, height };
+    }
+
+    /**
+     * Goes back to decoding whole frames.
+     */
+    public void clearRegionOfInterest()
+    {
+        nextRegion = null;
+    }
+
+    /**
+     * Left edge of the part of the last frame that was decoded, in pixels.
+     */
+    public int getValidX()
+    {
+        return firstRegionColumn * 16;
+    }
+
+    public int getValidY()
+    {
+        return firstRegionSlice * 16;
+    }
+
+    public int getValidWidth()
+    {
+        return (endRegionColumn - firstRegionColumn) * 16;
+    }
+
+    public int getValidHeight()
+    {
+        return (endRegionSlice - firstRegionSlice) * 16;
+    }
+
+    /**
+     * Turns the lookup table for run and level codes on or off. Both ways
+     * decode the same coefficients; switching it off is only useful for
+     * comparing the two.
+     */
+    public void setVlcTableEnabled(boolean enabled)
+    {
+        primary.vlcTableEnabled = enabled;
+    }
+
+    /**
+     * Copies the settings for the following frames into the fields the
+     * current one is decoded with.
+     */
+    private void takeSettings()
+    {
+        pixelFormat = nextPixelFormat;
+        colorEnabled = nextColorEnabled;
+        lumaEnabled = nextLumaEnabled;
+        thumbnailEnabled = nextThumbnailEnabled;
+        sliceListener = nextSliceListener;
+
+        int[] r = nextRegion;
+        regionSet = r != null;
+        if(regionSet)
         {
-            run[0] = zeroCount;
+            regionX = r[0];
+            regionY = r[1];
+            regionWidth = r[2];
+            regionHeight = r[3];
         }
+    }
+
+    private void processStream()
+    {
+        sliceIndex = 0;
+        pictureComplete = false;
 
-        // Determine non zero value. (a.k.a 'level' field info)
+        if(decodeMode == DecodeMode.PARALLEL && reader.hasRemaining())
+        {
+            readHeader();
 
-        // Suppose we have following bit sequence:
-        // 000011111.....
-        // 1 - Count the number of leading zeros -> 4
-        // Coarse value lookup is thus 00001
-        // 2 - Lookup the additional value, for coarse value 00001 this is 4
-        // addtional bits (last bit is sign bit)
-        // 3 - Calculate value of run, for coarse value 00001 this is (xxx) + 8,
-        // multiply by sign
+            if(sliceIndex == 1 && !pictureComplete && decodeSlicesInParallel())
+                return;
 
-        zeroCount = countLeadingZeros(streamCode);
-        streamCode.shiftLeftEquals(zeroCount + 1); // - (1)
-        streamLength += zeroCount + 1; // - position bit pointer to keep track
-        // off how many bits to consume later on
-        // the stream.
+            // Start over and decode the picture serially
+            reader.seek(0);
+            sliceIndex = 0;
+            pictureComplete = false;
+        }
 
-        if(zeroCount == 1)
-        {
-            // If coarse value is 01 according to the Huffman dictionary this
-            // means EOB, so there is
-            // no run and level and we indicate this by setting last to true;
-            run[0] = 0;
-            last[0] = true;
-        } else
+        boolean fullColor = pixelFormat == PixelFormat.ARGB8888;
+
+        while(!pictureComplete && reader.hasRemaining())
         {
-            if(zeroCount == 0)
-            {
-                zeroCount = 1;
-                temp = 1;
-            }
+            readHeader();
 
-            streamLength += zeroCount;// - position bit pointer to keep track
-            // off how many bits to consume later on
-            // the stream.
-            streamCode.shiftRightEquals(32 - zeroCount);// - (2) -> shift right
-            // to determine the
-            // addtional bits
-            // (number of additional
-            // bits is zerocount)
-            // sign = (sbyte)(streamCode & 1); // determine sign, last bit is
-            // sign
-            sign = (int) (streamCode.and(1).intValue()); // determine sign, last
-            // bit is sign
-
-            if(zeroCount != 0)
+            if(!pictureComplete)
             {
-                // temp = (sbyte)(streamCode >> 1); // take into account that
-                // last bit is sign, so shift it out of the way
-                // temp += (sbyte)(1 << (zeroCount - 1)); // - (3) -> calculate
-                // run value without sign
-                temp = (streamCode.shiftRight(1)).intValue(); // take into
-                // account
-                // that last bit is
-                // sign, so shift it
-                // out of the way
-                temp += (int) (1 << (zeroCount - 1)); // - (3) -> calculate run
-                // value without sign
+                int slice = sliceIndex - 1;
+                boolean inRegion = slice >= firstRegionSlice && slice < endRegionSlice;
+
+                primary.decodeMacroBlocks(emptyMacroBlocks, slice * blockCount, colorEnabled, inRegion
+                        && (colorEnabled || lumaEnabled));
+                composeSlice(primary, slice, fullColor);
+                if(inRegion)
+                    fireSliceDecoded(slice);
             }
-
-            level[0] = (sign == 1) ? -temp : temp; // - (3) -> calculate run
-            // value with sign
-            last[0] = false;
         }
-
-        readStreamData(streamLength);
     }
 
-    private void getBlockBytes(boolean acCoefficientsAvailable)
+    /**
+     * Decodes the picture whose header has just been read in tasks of
+     * consecutive slices. Returns false, leaving the state of the serial
+     * decoder untouched, if the slices could not be located or one of them
+     * did not decode cleanly.
+     */
+    private boolean decodeSlicesInParallel()
     {
-        int[] run = new int[] { 0 };
-        int[] level = new int[] { 0 };
-        int zigZagPosition = 0;
-        int matrixPosition = 0;
-        boolean[] last = new boolean[] { false };
+        if(sliceCount > MAX_PARALLEL_SLICES || !findSliceOffsets())
+            return false;
 
-        for(int i = 0; i < dataBlockBuffer.length; i++)
-            dataBlockBuffer[i] = 0;
+        int taskCount = Math.min(parallelism, sliceCount);
 
-        uint dcCoefficient = readStreamData(10);
+        if(columnCoded.length < blockCount)
+        {
+            columnCoded = new boolean[blockCount];
+            columnSources = new SliceDecoder[blockCount];
+        }
+        if(tasks.length < taskCount)
+        {
+            SliceTask[] grown = new SliceTask[taskCount];
+            System.arraycopy(tasks, 0, grown, 0, tasks.length);
+            for(int t = tasks.length; t < taskCount; t++)
+                grown[t] = new SliceTask();
+            tasks = grown;
+        }
 
-        if(quantizerMode == TABLE_QUANTIZATION_MODE)
+        boolean fullColor = pixelFormat == PixelFormat.ARGB8888;
+        for(int t = 0; t < taskCount; t++)
         {
-            dataBlockBuffer[0] = (short) (dcCoefficient.times(QUANTIZER_VALUES[0]));
+            SliceTask task = tasks[t];
+            task.firstSlice = t * sliceCount / taskCount;
+            task.endSlice = (t + 1) * sliceCount / taskCount;
+            task.fullColor = fullColor;
+        }
 
-            if(acCoefficientsAvailable)
-            {
-                decodeFieldBytes(run, level, last);
+        runTasks(taskCount);
 
-                while(!last[0])
-                {
-                    zigZagPosition += run[0] + 1;
-                    matrixPosition = ZIGZAG_POSITIONS[zigZagPosition];
-                    level[0] *= QUANTIZER_VALUES[matrixPosition];
-                    dataBlockBuffer[matrixPosition] = (short) level[0];
-                    decodeFieldBytes(run, level, last);
-                }
-            }
-        } else
+        for(int t = 0; t < taskCount; t++)
         {
-            // Currently not implemented.
-            throw new RuntimeException("ant quantizer mode is not yet implemented.");
+            if(tasks[t].failed)
+                return false;
         }
-    }
 
-    public int getFrameIndex()
-    {
-        return frameIndex;
-    }
+        repeatEmptyMacroBlocks(taskCount, fullColor);
 
-    public int getHeight()
-    {
-        return height;
-    }
+        for(int slice = firstRegionSlice; slice < endRegionSlice; slice++)
+            fireSliceDecoded(slice);
 
-    public int[] getJavaPixelData()
-    {
-        return javaPixelData;
+        sliceIndex = sliceCount;
+        pictureComplete = true;
+        return true;
     }
 
-    public int getPictureType()
+    /**
+     * Writes the outputs of a slice that has just been decoded. In an
+     * incremental update only its coded macroblocks are written.
+     */
+    private void composeSlice(SliceDecoder decoder, int slice, boolean fullColor)
     {
-        return pictureType;
-    }
+        boolean inRegion = slice >= firstRegionSlice && slice < endRegionSlice;
 
-    public uint[] getPixelData()
-    {
-        return pixelData;
+        if(!incremental)
+        {
+            if(inRegion && colorEnabled)
+                decoder.composeImageSlice(javaPixelData, slice, fullColor);
+            if(inRegion && lumaEnabled)
+                decoder.composeLumaSlice(lumaData, slice);
+            if(thumbnailEnabled)
+                decoder.composeThumbnailSlice(thumbnailData, slice, fullColor);
+            return;
+        }
+
+        int offset = slice * blockCount;
+        for(int column = 0; column < blockCount; column++)
+        {
+            if(emptyMacroBlocks[offset + column])
+                continue;
+
+            if(thumbnailEnabled)
+                decoder.composeThumbnailMacroBlock(column, thumbnailData, slice, fullColor);
+
+            if(inRegion && column >= firstRegionColumn && column < endRegionColumn)
+            {
+                if(colorEnabled)
+                    decoder.composeMacroBlock(column, javaPixelData, slice, fullColor);
+                if(lumaEnabled)
+                    decoder.composeLumaMacroBlock(column, lumaData, slice);
+            }
+        }
     }
 
-    public int getPixelRowSize()
+    /**
+     * Fills in the dirty macroblocks of the picture decoded up to the current
+     * slice.
+     */
+    private void markDirtyMacroBlocks()
     {
-        return pixelRowSize;
+        Arrays.fill(dirtyMacroBlocks, false);
+
+        int endSlice = Math.min(sliceIndex, endRegionSlice);
+        for(int slice = firstRegionSlice; slice < endSlice; slice++)
+        {
+            int offset = slice * blockCount;
+            for(int column = firstRegionColumn; column < endRegionColumn; column++)
+                dirtyMacroBlocks[offset + column] = !incremental || !emptyMacroBlocks[offset + column];
+        }
     }
 
-    public int getSliceCount()
+    /**
+     * Tells if the arrays written by the picture whose header has just been
+     * read still hold the previous picture, so that it can be decoded as an
+     * incremental update. That picture also has to be the one right before
+     * in the stream, or the pictures skipped in between would be missing.
+     * Remembers the output of this picture for the next.
+     */
+    private boolean canUpdateIncrementally()
     {
-        return sliceCount;
+        int[] pixels = colorEnabled ? javaPixelData : null;
+        boolean same = previousDecoded && pixels == previousPixelData && width == previousWidth
+                && pixelFormat == previousPixelFormat && colorEnabled == previousColorEnabled
+                && lumaEnabled == previousLumaEnabled && thumbnailEnabled == previousThumbnailEnabled
+                && firstRegionSlice == previousFirstSlice && endRegionSlice == previousEndSlice
+                && firstRegionColumn == previousFirstColumn && endRegionColumn == previousEndColumn
+                && frameIndex == previousFrameIndex + 1;
+
+        previousPixelData = pixels;
+        previousWidth = width;
+        previousPixelFormat = pixelFormat;
+        previousColorEnabled = colorEnabled;
+        previousLumaEnabled = lumaEnabled;
+        previousThumbnailEnabled = thumbnailEnabled;
+        previousFirstSlice = firstRegionSlice;
+        previousEndSlice = endRegionSlice;
+        previousFirstColumn = firstRegionColumn;
+        previousEndColumn = endRegionColumn;
+        previousFrameIndex = frameIndex;
+
+        return same;
     }
 
-    public int getWidth()
+    private void fireSliceDecoded(int slice)
     {
-        return width;
+        if(sliceListener != null && (colorEnabled || lumaEnabled))
+            sliceListener.sliceDecoded(frameIndex, slice, slice * 16, slice * 16 + 16, width,
+                    colorEnabled ? javaPixelData : null, lumaEnabled ? lumaData : null);
     }
 
-    void inverseTransform(int macroBlockIndex, int dataBlockIndex)
+    /**
+     * Scans the byte boundaries of the stream for the start codes of slices
+     * 1..sliceCount-1 and the end of picture code. sliceOffsets[0] is the
+     * data of slice 0, which starts right after the picture header.
+     */
+    private boolean findSliceOffsets()
     {
-        int[] workSpace = new int[64];
-        short[] data = new short[64];
+        sliceOffsets[0] = reader.getBitPosition();
+        long position = sliceOffsets[0];
 
-        int z1, z2, z3, z4, z5;
-        int tmp0, tmp1, tmp2, tmp3;
-        int tmp10, tmp11, tmp12, tmp13;
+        for(int slice = 1; slice <= sliceCount; slice++)
+        {
+            int code = 32 | (slice < sliceCount ? slice : 0x1F);
 
-        int pointer = 0;
+            position = (position + 7) & ~7L;
+            if(position + 22 > reader.getBitLength())
+                return false;
 
-        for(int index = 8; index > 0; index--)
-        {
-            if(dataBlockBuffer[pointer + 8] == 0 && dataBlockBuffer[pointer + 16] == 0
-                    && dataBlockBuffer[pointer + 24] == 0 && dataBlockBuffer[pointer + 32] == 0
-                    && dataBlockBuffer[pointer + 40] == 0 && dataBlockBuffer[pointer + 48] == 0
-                    && dataBlockBuffer[pointer + 56] == 0)
+            reader.seek(position);
+            while(reader.peek(22) != code)
             {
-                int dcValue = dataBlockBuffer[pointer] << PASS1_BITS;
-
-                workSpace[pointer + 0] = dcValue;
-                workSpace[pointer + 8] = dcValue;
-                workSpace[pointer + 16] = dcValue;
-                workSpace[pointer + 24] = dcValue;
-                workSpace[pointer + 32] = dcValue;
-                workSpace[pointer + 40] = dcValue;
-                workSpace[pointer + 48] = dcValue;
-                workSpace[pointer + 56] = dcValue;
-
-                pointer++;
-                continue;
+                if(!reader.hasRemaining())
+                    return false;
+                reader.skip(8);
             }
 
-            z2 = dataBlockBuffer[pointer + 16];
-            z3 = dataBlockBuffer[pointer + 48];
-
-            z1 = (z2 + z3) * FIX_0_541196100;
-            tmp2 = z1 + z3 * -FIX_1_847759065;
-            tmp3 = z1 + z2 * FIX_0_765366865;
-
-            z2 = dataBlockBuffer[pointer];
-            z3 = dataBlockBuffer[pointer + 32];
-
-            tmp0 = (z2 + z3) << BITS;
-            tmp1 = (z2 - z3) << BITS;
-
-            tmp10 = tmp0 + tmp3;
-            tmp13 = tmp0 - tmp3;
-            tmp11 = tmp1 + tmp2;
-            tmp12 = tmp1 - tmp2;
-
-            tmp0 = dataBlockBuffer[pointer + 56];
-            tmp1 = dataBlockBuffer[pointer + 40];
-            tmp2 = dataBlockBuffer[pointer + 24];
-            tmp3 = dataBlockBuffer[pointer + 8];
-
-            z1 = tmp0 + tmp3;
-            z2 = tmp1 + tmp2;
-            z3 = tmp0 + tmp2;
-            z4 = tmp1 + tmp3;
-            z5 = (z3 + z4) * FIX_1_175875602;
-
-            tmp0 = tmp0 * FIX_0_298631336;
-            tmp1 = tmp1 * FIX_2_053119869;
-            tmp2 = tmp2 * FIX_3_072711026;
-            tmp3 = tmp3 * FIX_1_501321110;
-            z1 = z1 * -FIX_0_899976223;
-            z2 = z2 * -FIX_2_562915447;
-            z3 = z3 * -FIX_1_961570560;
-            z4 = z4 * -FIX_0_390180644;
-
-            z3 += z5;
-            z4 += z5;
-
-            tmp0 += z1 + z3;
-            tmp1 += z2 + z4;
-            tmp2 += z2 + z3;
-            tmp3 += z1 + z4;
-
-            workSpace[pointer + 0] = ((tmp10 + tmp3 + (1 << F1)) >> F2);
-            workSpace[pointer + 56] = ((tmp10 - tmp3 + (1 << F1)) >> F2);
-            workSpace[pointer + 8] = ((tmp11 + tmp2 + (1 << F1)) >> F2);
-            workSpace[pointer + 48] = ((tmp11 - tmp2 + (1 << F1)) >> F2);
-            workSpace[pointer + 16] = ((tmp12 + tmp1 + (1 << F1)) >> F2);
-            workSpace[pointer + 40] = ((tmp12 - tmp1 + (1 << F1)) >> F2);
-            workSpace[pointer + 24] = ((tmp13 + tmp0 + (1 << F1)) >> F2);
-            workSpace[pointer + 32] = ((tmp13 - tmp0 + (1 << F1)) >> F2);
-
-            pointer++;
+            sliceOffsets[slice] = reader.getBitPosition();
+
+            // Start code and quantizer of the slice
+            position = sliceOffsets[slice] + 27;
         }
 
-        pointer = 0;
+        return true;
+    }
 
-        for(int index = 0; index < 8; index++)
+    private void runTasks(int taskCount)
+    {
+        synchronized(taskLock)
         {
-            z2 = workSpace[pointer + 2];
-            z3 = workSpace[pointer + 6];
-
-            z1 = (z2 + z3) * FIX_0_541196100;
-            tmp2 = z1 + z3 * -FIX_1_847759065;
-            tmp3 = z1 + z2 * FIX_0_765366865;
-
-            tmp0 = (workSpace[pointer + 0] + workSpace[pointer + 4]) << BITS;
-            tmp1 = (workSpace[pointer + 0] - workSpace[pointer + 4]) << BITS;
-
-            tmp10 = tmp0 + tmp3;
-            tmp13 = tmp0 - tmp3;
-            tmp11 = tmp1 + tmp2;
-            tmp12 = tmp1 - tmp2;
-
-            tmp0 = workSpace[pointer + 7];
-            tmp1 = workSpace[pointer + 5];
-            tmp2 = workSpace[pointer + 3];
-            tmp3 = workSpace[pointer + 1];
-
-            z1 = tmp0 + tmp3;
-            z2 = tmp1 + tmp2;
-            z3 = tmp0 + tmp2;
-            z4 = tmp1 + tmp3;
-
-            z5 = (z3 + z4) * FIX_1_175875602;
-
-            tmp0 = tmp0 * FIX_0_298631336;
-            tmp1 = tmp1 * FIX_2_053119869;
-            tmp2 = tmp2 * FIX_3_072711026;
-            tmp3 = tmp3 * FIX_1_501321110;
-            z1 = z1 * -FIX_0_899976223;
-            z2 = z2 * -FIX_2_562915447;
-            z3 = z3 * -FIX_1_961570560;
-            z4 = z4 * -FIX_0_390180644;
-
-            z3 += z5;
-            z4 += z5;
-
-            tmp0 += z1 + z3;
-            tmp1 += z2 + z4;
-            tmp2 += z2 + z3;
-            tmp3 += z1 + z4;
-
-            data[pointer + 0] = (short) ((tmp10 + tmp3) >> F3);
-            data[pointer + 7] = (short) ((tmp10 - tmp3) >> F3);
-            data[pointer + 1] = (short) ((tmp11 + tmp2) >> F3);
-            data[pointer + 6] = (short) ((tmp11 - tmp2) >> F3);
-            data[pointer + 2] = (short) ((tmp12 + tmp1) >> F3);
-            data[pointer + 5] = (short) ((tmp12 - tmp1) >> F3);
-            data[pointer + 3] = (short) ((tmp13 + tmp0) >> F3);
-            data[pointer + 4] = (short) ((tmp13 - tmp0) >> F3);
-
-            pointer += 8;
+            pendingTasks = taskCount;
         }
 
-        for(int i = 0; i < data.length; i++)
-            imageSlice.MacroBlocks[macroBlockIndex].DataBlocks[dataBlockIndex][i] = data[i];
-    }
-
-    private uint makeRGB(int r, int g, int b)
-    {
-        r <<= 2;
-        g <<= 1;
-        b <<= 2;
-
-        uint ru = new uint(r);
-        uint gu = new uint(g);
-        uint bu = new uint(b);
-
-        uint retval = ru.shiftLeft(16);
-        retval = retval.or(gu.shiftLeft(8));
-        retval = retval.or(bu);
-
-        return retval;
-    }
-
-    // Blockline:
-    // _______
-    // | 1 | 2 |
-    // |___|___| Y
-    // | 3 | 4 |
-    // |___|___|
-    // ___
-    // | 5 |
-    // |___| Cb
-    // ___
-    // | 6 |
-    // |___| Cr
-    //
-    // Layout in memory
-    // _______________________
-    // | 1 | 2 | 3 | 4 | 5 | 6 | ...
-    // |___|___|___|___|___|___|
-    //
-
-    // Example, suppose the six data sub blocks are as follows:
-
-    // ==============Y0============== ==============Y1==============
-    // ==============Y2============== ==============Y3==============
-
-    // 0, 1, 2, 3, 4, 5, 6, 7, 0, 1, 2, 3, 4, 5, 6, 7, 0, 1, 2, 3, 4, 5, 6, 7,
-    // 0, 1, 2, 3, 4, 5, 6, 7,
-    // 8, 9, 10, 11, 12, 13, 14, 15, 8, 9, 10, 11, 12, 13, 14, 15, 8, 9, 10, 11,
-    // 12, 13, 14, 15, 8, 9, 10, 11, 12, 13, 14, 15,
-    // 16, 17, 18, 19, 20, 21, 22, 23, 16, 17, 18, 19, 20, 21, 22, 23, 16, 17,
-    // 18, 19, 20, 21, 22, 23, 16, 17, 18, 19, 20, 21, 22, 23,
-    // 24, 25, 26, 27, 28, 29, 30, 31, 24, 25, 26, 27, 28, 29, 30, 31, 24, 25,
-    // 26, 27, 28, 29, 30, 31, 24, 25, 26, 27, 28, 29, 30, 31,
-    // 32, 33, 34, 35, 36, 37, 38, 39, 32, 33, 34, 35, 36, 37, 38, 39, 32, 33,
-    // 34, 35, 36, 37, 38, 39, 32, 33, 34, 35, 36, 37, 38, 39,
-    // 40, 41, 42, 43, 44, 45, 46, 47, 40, 41, 42, 43, 44, 45, 46, 47, 40, 41,
-    // 42, 43, 44, 45, 46, 47, 40, 41, 42, 43, 44, 45, 46, 47,
-    // 48, 49, 50, 51, 52, 53, 54, 55, 48, 49, 50, 51, 52, 53, 54, 55, 48, 49,
-    // 50, 51, 52, 53, 54, 55, 48, 49, 50, 51, 52, 53, 54, 55,
-    // 56, 57, 58, 59, 60, 61, 62, 63, 56, 57, 58, 59, 60, 61, 62, 63, 56, 57,
-    // 58, 59, 60, 61, 62, 63, 56, 57, 58, 59, 60, 61, 62, 63
-
-    // ==============Cb============== ==============Cr==============
-
-    // 0, 1, 2, 3, | 4, 5, 6, 7, 0, 1, 2, 3, | 4, 5, 6, 7,
-    // 8, 9, 10, 11, | 12, 13, 14, 15, 8, 9, 10, 11, | 12, 13, 14, 15,
-    // 16, 17, 18, 19, | 20, 21, 22, 23, 16, 17, 18, 19, | 20, 21, 22, 23,
-    // 24, 25, 26, 27, | 28, 29, 30, 31, 24, 25, 26, 27, | 28, 29, 30, 31,
-    // ----------------| --------------- --------------- | ---------------
-    // 32, 33, 34, 35, | 36, 37, 38, 39, 32, 33, 34, 35, | 36, 37, 38, 39,
-    // 40, 41, 42, 43, | 44, 45, 46, 47, 40, 41, 42, 43, | 44, 45, 46, 47,
-    // 48, 49, 50, 51, | 52, 53, 54, 55, 48, 49, 50, 51, | 52, 53, 54, 55,
-    // 56, 57, 58, 59, | 60, 61, 62, 63, 56, 57, 58, 59, | 60, 61, 62, 63,
-
-    // Pixel Matrix
-
-    // 0, 1, 2, 3, 4, 5, 6, 7, | 8, 9, 10, 11, 12, 13, 14, 15,
-    // 16, 17, 18, 19, 20, 21, 22, 23, | 24, 25, 26, 27, 28, 29, 30, 31,
-    // 32, 33, 34, 35, 36, 37, 38, 39, | 40, 41, 42, 43, 44, 45, 46, 47,
-    // 48, 49, 50, 51, 52, 53, 54, 55, | 56, 57, 58, 59, 60, 61, 62, 63,
-    // 64, 65, 66, 67, 68, 69, 70, 71, | 72, 73, 74, 75, 76, 77, 78, 79,
-    // 80, 81, 82, 83, 84, 85, 86, 87, | 88, 89, 90, 91, 92, 93, 94, 95,
-    // 96, 97, 98, 99, 100, 101, 102, 103, | 104, 105, 106, 107, 108, 109, 110,
-    // 111,
-    // 112, 113, 114, 115, 116, 117, 118, 119, | 120, 121, 122, 123, 124, 125,
-    // 126, 127,
-    // ----------------------------------------|---------------------------------------
-    // 128, 129, 130, 131, 132, 133, 134, 135, | 136, 137, 138, 139, 140, 141,
-    // 142, 143,
-    // 144, 145, 146, 147, 148, 149, 150, 151, | 152, 153, 154, 155, 156, 157,
-    // 158, 159,
-    // 160, 161, 162, 163, 164, 165, 166, 167, | 168, 169, 170, 171, 172, 173,
-    // 174, 175,
-    // 176, 177, 178, 179, 180, 181, 182, 183, | 184, 185, 186, 187, 188, 189,
-    // 190, 191,
-    // 192, 193, 194, 195, 196, 197, 198, 199, | 200, 201, 202, 203, 204, 205,
-    // 206, 207,
-    // 208, 209, 210, 211, 212, 213, 214, 215, | 216, 217, 218, 219, 220, 221,
-    // 222, 223,
-    // 224, 225, 226, 227, 228, 229, 230, 231, | 232, 233, 234, 235, 236, 237,
-    // 238, 239,
-    // 240, 241, 242, 243, 244, 245, 246, 247, | 248, 249, 250, 251, 252, 253,
-    // 254, 255,
-
-    // The four Luma 8x8 matrices (quadrants Y0, Y1, Y2, Y3) form the basis of
-    // the final 16x16 pixel matrix.
-    // The two Croma 8x8 matrices are used to calculate the actual RGB value of
-    // the pixel (RGB565, each pixel is represented by two bytes)
-
-    // Each processing loop processes from each Luma matrix two rows. In each
-    // 'two row' loop the rows are processed
-    // by two columns.
-
-    // First Loop will take (assume there is only one pixel matrix to fill):
-
-    // Quadrant 1
-    // From Cb -> 0
-    // From Cr -> 0
-    // From Y0 -> 0, 8 and 1, 9 - use Cb and Cr to calculate RGB and place in
-    // pixel matrix in 0, 16 and 1 and 17
-
-    // Quadrant 2
-    // From Cb -> 4
-    // From Cr -> 4
-    // From Y1 -> 0, 8 and 1, 9 - use Cb and Cr to calculate RGB and place in
-    // pixel matrix in 8, 24 and 9 and 25
-
-    // Quadrant 3
-    // From Cb -> 32
-    // From Cr -> 32
-    // From Y2 -> 0, 8 and 1, 9 - use Cb and Cr to calculate RGB and place in
-    // pixel matrix in 128, 144 and 129 and 145
-
-    // Quadrant 4
-    // From Cb -> 36
-    // From Cr -> 36
-    // From Y3 -> 0, 8 and 1, 9 - use Cb and Cr to calculate RGB and place in
-    // pixel matrix in 136, 152 and 137 and 153
-
-    // Second Loop will take (assume there is only one pixel matrix to fill):
-
-    // Quadrant 1
-    // From Cb -> 1
-    // From Cr -> 1
-    // From Y0 -> 2, 10 and 3, 11 - use Cb and Cr to calculate RGB and place in
-    // pixel matrix in 2, 18 and 3 and 19
-
-    // Quadrant 2
-    // From Cb -> 5
-    // From Cr -> 5
-    // From Y1 -> 2, 10 and 3, 11 - use Cb and Cr to calculate RGB and place in
-    // pixel matrix in 10, 26 and 11 and 27
-
-    // Quadrant 3
-    // From Cb -> 33
-    // From Cr -> 33
-    // From Y2 -> 2, 10 and 3, 11 - use Cb and Cr to calculate RGB and place in
-    // pixel matrix in 130, 146 and 131 and 147
-    // Quadrant 4
-    // From Cb -> 37
-    // From Cr -> 37
-    // From Y3 -> 2, 10 and 3, 11 - use Cb and Cr to calculate RGB and place in
-    // pixel matrix in 138, 154 and 139 and 155
-
-    // We need third and fourth loop to complete first two lines of the luma
-    // blocks. At this time we
-    // have written 64 pixels to the pixel matrix.
-
-    // These four loops have to be repeated 4 more times (4 * 64 = 256) to fill
-    // complete pixel matrix.
-
-    // Remark the offsets to use in the pixel matrix have to take into account
-    // that an GroupOfBlocks contains multiple pixel matrices.
-    // So to calculate the real index we have to take that also into account
-    // (blockCount)
-
-    private uint peekStreamData(ByteBuffer stream, int count)
-    {
-        uint data = new uint(0);
-        uint stream_field = streamField;
-        int stream_field_bit_index = streamFieldBitIndex;
-
-        while(count > (32 - stream_field_bit_index) && streamIndex < (imageStream.capacity() >> 2))
+        Executor executor = (decodeExecutor != null) ? decodeExecutor : getDefaultDecodeExecutor();
+        for(int t = 1; t < taskCount; t++)
         {
-            data = (data.shiftLeft(32 - stream_field_bit_index)).or(stream_field.shiftRight(stream_field_bit_index));
-            count -= 32 - stream_field_bit_index;
-            stream_field = new uint(stream, streamIndex * 4);
-            stream_field_bit_index = 0;
+            try
+            {
+                executor.execute(tasks[t]);
+            } catch(RejectedExecutionException e)
+            {
+                tasks[t].run();
+            }
         }
+        tasks[0].run();
 
-        if(count > 0)
-            data = data.shiftLeft(count).or(stream_field.shiftRight((32 - count)));
+        // The tasks write into the frame, so wait for all of them even when
+        // interrupted
+        boolean interrupted = false;
+        synchronized(taskLock)
+        {
+            while(pendingTasks > 0)
+            {
+                try
+                {
+                    taskLock.wait();
+                } catch(InterruptedException e)
+                {
+                    interrupted = true;
+                }
+            }
+        }
+        if(interrupted)
+            Thread.currentThread().interrupt();
+    }
 
-        return data;
+    private void taskFinished()
+    {
+        synchronized(taskLock)
+        {
+            if(--pendingTasks == 0)
+                taskLock.notifyAll();
+        }
     }
 
-    private void processStream()
+    /**
+     * An empty macroblock repeats the last macroblock coded at the same
+     * position. The tasks only know about their own slices, so empty
+     * macroblocks without a coded one above them in the same task are
+     * composed here from the decoder of the last task above that coded the
+     * column, or from the primary decoder, which still holds the previous
+     * picture. In an incremental update empty macroblocks are left alone.
+     * The primary decoder then takes over the last coded macroblock of each
+     * column for the next picture.
+     */
+    private void repeatEmptyMacroBlocks(int taskCount, boolean fullColor)
     {
-        boolean blockY0HasAcComponents = false;
-        boolean blockY1HasAcComponents = false;
-        boolean blockY2HasAcComponents = false;
-        boolean blockY3HasAcComponents = false;
-        boolean blockCbHasAcComponents = false;
-        boolean blockCrHasAcComponents = false;
-
-        // Set streamFieldBitIndex to 32 to make sure that the first call to
-        // ReadStreamData
-        // actually consumes data from the stream
-        streamFieldBitIndex = 32;
-        streamField = new uint(0);
-        streamIndex = 0;
-        sliceIndex = 0;
-        pictureComplete = false;
+        Arrays.fill(columnSources, 0, blockCount, primary);
 
-        while(!pictureComplete && streamIndex < (imageStream.capacity() >> 2))
+        for(int t = 0; t < taskCount; t++)
         {
-            readHeader();
+            SliceTask task = tasks[t];
+            Arrays.fill(columnCoded, 0, blockCount, false);
 
-            if(!pictureComplete)
+            for(int slice = task.firstSlice; slice < task.endSlice; slice++)
             {
-                for(int count = 0; count < blockCount; count++)
-                {
-                    uint macroBlockEmpty = readStreamData(1);
+                boolean inRegion = slice >= firstRegionSlice && slice < endRegionSlice;
 
-                    if(macroBlockEmpty.intValue() == (0))
+                for(int column = 0; column < blockCount; column++)
+                {
+                    if(!emptyMacroBlocks[slice * blockCount + column])
                     {
-                        uint acCoefficients = readStreamData(8);
-
-                        blockY0HasAcComponents = acCoefficients.shiftRight(0).and(1).intValue() == 1;
-                        blockY1HasAcComponents = acCoefficients.shiftRight(1).and(1).intValue() == 1;
-                        blockY2HasAcComponents = acCoefficients.shiftRight(2).and(1).intValue() == 1;
-                        blockY3HasAcComponents = acCoefficients.shiftRight(3).and(1).intValue() == 1;
-                        blockCbHasAcComponents = acCoefficients.shiftRight(4).and(1).intValue() == 1;
-                        blockCrHasAcComponents = acCoefficients.shiftRight(5).and(1).intValue() == 1;
+                        columnCoded[column] = true;
+                    } else if(!columnCoded[column] && !incremental)
+                    {
+                        SliceDecoder source = columnSources[column];
+                        if(thumbnailEnabled)
+                            source.composeThumbnailMacroBlock(column, thumbnailData, slice, fullColor);
 
-                        if(acCoefficients.shiftRight(6).and(1).intValue() == 1)
+                        if(inRegion && column >= firstRegionColumn && column < endRegionColumn)
                         {
-                            uint quantizer_mode = readStreamData(2);
-                            quantizerMode = (int) ((quantizer_mode.intValue() < 2) ? quantizer_mode.flipBits()
-                                    : quantizer_mode.intValue());
+                            source.transformPending(column, colorEnabled);
+                            if(colorEnabled)
+                                source.composeMacroBlock(column, javaPixelData, slice, fullColor);
+                            if(lumaEnabled)
+                                source.composeLumaMacroBlock(column, lumaData, slice);
                         }
+                    }
+                }
+            }
 
-                        getBlockBytes(blockY0HasAcComponents);
-                        inverseTransform(count, 0);
+            for(int column = 0; column < blockCount; column++)
+            {
+                if(columnCoded[column])
+                    columnSources[column] = task.decoder;
+            }
+        }
 
-                        getBlockBytes(blockY1HasAcComponents);
-                        inverseTransform(count, 1);
+        for(int column = 0; column < blockCount; column++)
+        {
+            if(columnSources[column] != primary)
+                primary.copyMacroBlock(columnSources[column], column);
+        }
+    }
+
+    private static synchronized Executor getDefaultDecodeExecutor()
+    {
+        if(defaultDecodeExecutor == null)
+        {
+            defaultDecodeExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                    new ThreadFactory()
+                    {
+                        public Thread newThread(Runnable r)
+                        {
+                            Thread thread = new Thread(r, "Video slice decoder");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+        }
+        return defaultDecodeExecutor;
+    }
 
-                        getBlockBytes(blockY2HasAcComponents);
-                        inverseTransform(count, 2);
+    /**
+     * Decodes a run of consecutive slices with its own {@link SliceDecoder}.
+     */
+    private class SliceTask implements Runnable
+    {
+        final SliceDecoder decoder = new SliceDecoder();
+        int                firstSlice;
+        int                endSlice;
+        boolean            fullColor;
+        boolean            failed;
 
-                        getBlockBytes(blockY3HasAcComponents);
-                        inverseTransform(count, 3);
+        public void run()
+        {
+            failed = true;
+            try
+            {
+                failed = !decodeSlices();
+            } catch(RuntimeException e)
+            {
+                // Left to the serial decoder to report
+            } finally
+            {
+                taskFinished();
+            }
+        }
 
-                        getBlockBytes(blockCbHasAcComponents);
-                        inverseTransform(count, 4);
+        private boolean decodeSlices()
+        {
+            BitReader reader = decoder.reader;
+            decoder.setWidth(width);
+            decoder.setColumnRange(firstRegionColumn, endRegionColumn);
+            decoder.vlcTableEnabled = primary.vlcTableEnabled;
+            reader.reset(stream);
 
-                        getBlockBytes(blockCrHasAcComponents);
-                        inverseTransform(count, 5);
-                    }
+            for(int slice = firstSlice; slice < endSlice; slice++)
+            {
+                reader.seek(sliceOffsets[slice]);
+                if(slice == 0)
+                {
+                    decoder.quantizerMode = primary.quantizerMode;
+                } else
+                {
+                    if(reader.read(22) != (32 | slice))
+                        return false;
+                    decoder.quantizerMode = reader.read(5);
                 }
 
-                composeImageSlice();
+                boolean inRegion = slice >= firstRegionSlice && slice < endRegionSlice;
+
+                decoder.decodeMacroBlocks(emptyMacroBlocks, slice * blockCount, colorEnabled, inRegion
+                        && (colorEnabled || lumaEnabled));
+                composeSlice(decoder, slice, fullColor);
+
+                reader.align();
+                if(reader.getBitPosition() != sliceOffsets[slice + 1])
+                    return false;
             }
+
+            return true;
         }
+    }
 
+    /**
+     * Works out which macroblocks of the picture overlap the region of
+     * interest.
+     */
+    private void selectRegion()
+    {
+        firstRegionSlice = 0;
+        endRegionSlice = sliceCount;
+        firstRegionColumn = 0;
+        endRegionColumn = blockCount;
+
+        if(regionSet)
+        {
+            firstRegionSlice = clamp(regionY >> 4, 0, sliceCount);
+            endRegionSlice = clamp((regionY + regionHeight + 15) >> 4, firstRegionSlice, sliceCount);
+            firstRegionColumn = clamp(regionX >> 4, 0, blockCount);
+            endRegionColumn = clamp((regionX + regionWidth + 15) >> 4, firstRegionColumn, blockCount);
+        }
+
+        primary.setColumnRange(firstRegionColumn, endRegionColumn);
+    }
+
+    private int[] getOwnPixelData(int pixelCount)
+    {
+        if(ownPixelData == null || ownPixelData.length != pixelCount)
+            ownPixelData = new int[pixelCount];
+        return ownPixelData;
+    }
+
+    private static int clamp(int value, int min, int max)
+    {
+        return value < min ? min : (value > max ? max : value);
     }
 
     private void readHeader()
     {
-        alignStreamData();
+        reader.align();
 
-        uint code = readStreamData(22);
-        uint startCode = new uint(code.and(~0x1F));
+        int code = reader.read(22);
+        int startCode = code & ~0x1F;
 
-        if(startCode.intValue() == 32)
+        if(startCode == 32)
         {
-            if(((code.and(0x1F).intValue()) == 0x1F))
+            if((code & 0x1F) == 0x1F)
             {
                 pictureComplete = true;
             } else
             {
                 if(sliceIndex++ == 0)
                 {
-                    pictureFormat = (int) readStreamData(2).intValue();
-                    resolution = (int) readStreamData(3).intValue();
-                    pictureType = (int) readStreamData(3).intValue();
-                    quantizerMode = (int) readStreamData(5).intValue();
-                    frameIndex = (int) readStreamData(32).intValue();
+                    pictureFormat = reader.read(2);
+                    resolution = reader.read(3);
+                    pictureType = reader.read(3);
+                    primary.quantizerMode = reader.read(5);
+                    frameIndex = reader.read(32);
 
                     switch(pictureFormat)
                     {
@@ -916,72 +1166,87 @@ public class BufferedVideoImage
                         break;
                     }
 
-                    // We assume two bytes per pixel (RGB 565)
-                    pixelRowSize = width << 1;
+                    // Two bytes per pixel for RGB 565, four for ARGB 8888
+                    pixelRowSize = (pixelFormat == PixelFormat.ARGB8888) ? width << 2 : width << 1;
 
                     sliceCount = height >> 4;
                     blockCount = width >> 4;
 
-                    if(imageSlice == null)
+                    primary.setWidth(width);
+                    selectRegion();
+
+                    int pixelCount = width * height;
+                    int macroBlockCount = sliceCount * blockCount;
+                    if(emptyMacroBlocks.length < macroBlockCount)
+                        emptyMacroBlocks = new boolean[macroBlockCount];
+                    if(dirtyMacroBlocks.length != macroBlockCount)
+                        dirtyMacroBlocks = new boolean[macroBlockCount];
+
+                    if(lumaEnabled)
+                    {
+                        if(lumaData == null || lumaData.length != pixelCount)
+                            lumaData = new byte[pixelCount];
+                        lumaPicture = lumaData;
+                    }
+
+                    if(thumbnailEnabled)
                     {
-                        imageSlice = new ImageSlice(blockCount);
-                        pixelData = new uint[width * height];
-                        javaPixelData = new int[pixelData.length];
+                        int thumbnailCount = (width >> 3) * (height >> 3);
+                        if(thumbnailData == null || thumbnailData.length != thumbnailCount)
+                            thumbnailData = new int[thumbnailCount];
+                        thumbnailPicture = thumbnailData;
+                    }
+
+                    if(!colorEnabled)
+                    {
+                        // No pixels to write
+                    } else if(targetPixelData != null)
+                    {
+                        if(targetPixelData.length < pixelCount)
+                            throw new IllegalArgumentException("Pixel buffer of " + targetPixelData.length
+                                    + " is too small for a " + width + "x" + height + " frame");
+                        javaPixelData = targetPixelData;
                     } else
                     {
-                        if(imageSlice.MacroBlocks.length != blockCount)
+                        // A parallel attempt that fell back to serial decoding
+                        // has already acquired a frame and slot
+                        if(frameRing != null && ringSlot == null)
+                            ringSlot = frameRing.claim(width, height);
+
+                        if(framePool != null)
                         {
-                            imageSlice = new ImageSlice(blockCount);
-                            pixelData = new uint[width * height];
-                            javaPixelData = new int[pixelData.length];
+                            if(currentFrame != null)
+                                currentFrame.release();
+                            currentFrame = framePool.acquire(width, height);
+                            currentFrame.setPixelFormat(pixelFormat);
                         }
+
+                        // Slots and pooled arrays hold older frames, so
+                        // incremental updates go to our own array; the
+                        // pixels are copied to wherever they are not decoded
+                        // to
+                        if(incrementalUpdate)
+                            javaPixelData = getOwnPixelData(pixelCount);
+                        else if(ringSlot != null)
+                            javaPixelData = ringSlot.getPixels();
+                        else if(currentFrame != null)
+                            javaPixelData = currentFrame.getPixels();
+                        else
+                            javaPixelData = getOwnPixelData(pixelCount);
+                    }
+
+                    // Decided once, a serial retry of a parallel attempt
+                    // writes the same arrays
+                    if(!outputChecked)
+                    {
+                        incremental = canUpdateIncrementally() && incrementalUpdate;
+                        outputChecked = true;
                     }
                 } else
                 {
-                    quantizerMode = (int) readStreamData(5).intValue();
+                    primary.quantizerMode = reader.read(5);
                 }
             }
         }
     }
-
-    private uint readStreamData(int count)
-    {
-        uint data = new uint(0);
-
-        while(count > (32 - streamFieldBitIndex))
-        {
-            data = (data.shiftLeft((int) (32 - streamFieldBitIndex)).or(streamField.shiftRight(streamFieldBitIndex)));
-            count -= 32 - streamFieldBitIndex;
-            streamField = new uint(imageStream, streamIndex * 4);
-            streamFieldBitIndex = 0;
-            streamIndex++;
-        }
-
-        if(count > 0)
-        {
-            data = data.shiftLeft(count).or(streamField.shiftRight(32 - count));
-            streamField.shiftLeftEquals(count);
-            streamFieldBitIndex += count;
-        }
-
-        return data;
-    }
-
-    private static int saturate5(int x)
-    {
-        if(x < 0)
-            return 0;
-
-        x >>= 11;
-        return (x > 0x1F) ? 0x1F : x;
-    }
-
-    private static int saturate6(int x)
-    {
-        if(x < 0)
-            return 0;
-
-        x >>= 10;
-        return x > 0x3F ? 0x3F : x;
-    }
 }
@@ -0,0 +1,1302 @@
+
+package com.codeminders.ardrone.video;
+
+import java.util.Arrays;
+
+// Copyright (C) 2007-2011, PARROT SA, all rights reserved.
+
+// DISCLAIMER
+// The APIs is provided by PARROT and contributors "AS IS" and any express or
+// implied warranties, including, but not limited to, the implied warranties of
+// merchantability
+// and fitness for a particular purpose are disclaimed. In no event shall PARROT
+// and contributors be liable for any direct, indirect, incidental, special,
+// exemplary, or
+// consequential damages (including, but not limited to, procurement of
+// substitute goods or services; loss of use, data, or profits; or business
+// interruption) however
+// caused and on any theory of liability, whether in contract, strict liability,
+// or tort (including negligence or otherwise) arising in any way out of the use
+// of this
+// software, even if advised of the possibility of such damage.
+
+// Author : Daniel Schmidt
+// Publishing date : 2010-01-06
+// based on work by : Wilke Jansoone
+
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions
+// are met:
+// - Redistributions of source code must retain the above copyright notice, this
+// list of conditions, the disclaimer and the original author of the source
+// code.
+// - Neither the name of the PixVillage Team, nor the names of its contributors
+// may be used to endorse or promote products derived from this software without
+// specific prior written permission.
+
+/**
+ * Per slice part of the decoder: the bit reader, the macroblocks of one slice
+ * and everything needed to turn them into pixels. {@link BufferedVideoImage}
+ * uses a single instance when decoding serially and one per task when slices
+ * are decoded in parallel.
+ */
+class SliceDecoder
+{
+    private static final int     BLOCK_WIDTH             = 8;
+    private static final int     TABLE_QUANTIZATION_MODE = 31;
+
+    private static final int     FIX_0_298631336         = 2446;
+    private static final int     FIX_0_390180644         = 3196;
+    private static final int     FIX_0_541196100         = 4433;
+    private static final int     FIX_0_765366865         = 6270;
+    private static final int     FIX_0_899976223         = 7373;
+    private static final int     FIX_1_175875602         = 9633;
+    private static final int     FIX_1_501321110         = 12299;
+    private static final int     FIX_1_847759065         = 15137;
+    private static final int     FIX_1_961570560         = 16069;
+    private static final int     FIX_2_053119869         = 16819;
+    private static final int     FIX_2_562915447         = 20995;
+    private static final int     FIX_3_072711026         = 25172;
+
+    private static final int     BITS                    = 13;
+    private static final int     PASS1_BITS              = 1;
+    private static final int     F1                      = BITS - PASS1_BITS - 1;
+    private static final int     F2                      = BITS - PASS1_BITS;
+    private static final int     F3                      = BITS + PASS1_BITS + 3;
+
+    private static final short[] ZIGZAG_POSITIONS        = new short[] { 0, 1, 8, 16, 9, 2, 3, 10, 17, 24, 32, 25, 18,
+            11, 4, 5, 12, 19, 26, 33, 40, 48, 41, 34, 27, 20, 13, 6, 7, 14, 21, 28, 35, 42, 49, 56, 57, 50, 43, 36, 29,
+            22, 15, 23, 30, 37, 44, 51, 58, 59, 52, 45, 38, 31, 39, 46, 53, 60, 61, 54, 47, 55, 62, 63, };
+
+    // Cfr. Handbook of Data Compression - Page 529
+    // David Salomon
+    // Giovanni Motta
+
+    private static final short[] QUANTIZER_VALUES        = new short[] { 3, 5, 7, 9, 11, 13, 15, 17, 5, 7, 9, 11, 13,
+            15, 17, 19, 7, 9, 11, 13, 15, 17, 19, 21, 9, 11, 13, 15, 17, 19, 21, 23, 11, 13, 15, 17, 19, 21, 23, 25,
+            13, 15, 17, 19, 21, 23, 25, 27, 15, 17, 19, 21, 23, 25, 27, 29, 17, 19, 21, 23, 25, 27, 29, 31 };
+
+    static byte[]                CLZLUT                  = new byte[] { 8, 7, 6, 6, 5, 5, 5, 5, 4, 4, 4, 4, 4, 4, 4, 4,
+            3, 3, 3, 3, 3, 3, 3, 3, 3, 3, 3, 3, 3, 3, 3, 3, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2,
+            2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1,
+            1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1,
+            1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+            0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+            0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+            0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0 };
+
+    private static final int[]   CROMA_QUADRANT_OFFSETS  = new int[] { 0, 4, 32, 36 };
+
+    // Coefficients present in a block, in increasing order of the work the
+    // inverse transform has to do
+    private static final int     BLOCK_DC_ONLY           = 0;
+    private static final int     BLOCK_SPARSE            = 1;
+    private static final int     BLOCK_FULL              = 2;
+
+    /**
+     * Quantizer of each coefficient in zigzag order.
+     */
+    private static final short[] ZIGZAG_QUANTIZER_VALUES = new short[64];
+
+    /**
+     * BLOCK_SPARSE for the coefficients in the top left 4x4 corner,
+     * BLOCK_FULL for the others, in zigzag order.
+     */
+    private static final byte[]  ZIGZAG_BLOCK_TYPES      = new byte[64];
+
+    static
+    {
+        for(int i = 0; i < 64; i++)
+        {
+            int position = ZIGZAG_POSITIONS[i];
+            ZIGZAG_QUANTIZER_VALUES[i] = QUANTIZER_VALUES[position];
+            ZIGZAG_BLOCK_TYPES[i] = (byte) ((position < 32 && (position & 7) < 4) ? BLOCK_SPARSE : BLOCK_FULL);
+        }
+    }
+
+    // Entries of VLC_TABLE: bits 0-4 hold the length of the run and level
+    // codes together, bit 5 marks the end of block, bits 6-13 the run and
+    // bits 16-31 the signed level. Zero means the codes are longer than
+    // VLC_TABLE_BITS and have to be decoded bit by bit.
+    private static final int     VLC_TABLE_BITS          = 16;
+    private static final int     VLC_LENGTH_MASK         = 0x1F;
+    private static final int     VLC_LAST                = 0x20;
+    private static final int     VLC_RUN_SHIFT           = 6;
+    private static final int     VLC_LEVEL_SHIFT         = 16;
+    private static final int[]   VLC_TABLE               = createVlcTable();
+
+    final BitReader              reader                  = new BitReader();
+    int                          quantizerMode;
+
+    private short[]              dataBlockBuffer         = new short[64];
+    private int[]                workSpace               = new int[64];
+
+    /**
+     * Which part of dataBlockBuffer holds coefficients, one of the BLOCK_
+     * constants.
+     */
+    private int                  blockType               = BLOCK_FULL;
+
+    // Blocks run through each kind of inverse transform
+    long                         dcOnlyBlocks;
+    long                         sparseBlocks;
+    long                         fullBlocks;
+    private int[]                pixelDataQuadrantOffsets = new int[4];
+    private ImageSlice           imageSlice;
+    private int                  width;
+
+    /**
+     * Looks up run and level codes of up to VLC_TABLE_BITS bits in VLC_TABLE
+     * instead of decoding them with {@link #decodeFieldBytes()}.
+     */
+    boolean                      vlcTableEnabled         = true;
+
+    // Result of decodeFieldBytes
+    private int                  run;
+    private int                  level;
+    private boolean              last;
+
+    /**
+     * Macroblock columns that are transformed and composed.
+     */
+    private int                  firstColumn;
+    private int                  endColumn;
+
+    // Per column, the coefficients of a coded macroblock that was read past
+    // without transforming it. They are transformed once an empty
+    // macroblock in the region of interest repeats it.
+    private short[][][]          pendingCoefficients;
+    private byte[][]             pendingBlockTypes;
+    private boolean[]            pending;
+
+    // Per column, whether only the chroma blocks of the last coded
+    // macroblock are pending, as it was decoded without chroma. They are
+    // transformed once an empty macroblock repeats it with chroma.
+    private boolean[]            pendingChroma;
+
+    /**
+     * Dequantized DC coefficient of the six blocks of each macroblock.
+     */
+    private short[]              dcValues;
+
+    /**
+     * Prepares the decoder for a picture of the given width, with all
+     * columns selected.
+     */
+    void setWidth(int width)
+    {
+        int blockCount = width >> 4;
+        if(imageSlice == null || imageSlice.MacroBlocks.length != blockCount)
+        {
+            imageSlice = new ImageSlice(blockCount);
+            pendingCoefficients = new short[blockCount][6][64];
+            pendingBlockTypes = new byte[blockCount][6];
+            pending = new boolean[blockCount];
+            pendingChroma = new boolean[blockCount];
+            dcValues = new short[blockCount * 6];
+        }
+
+        this.width = width;
+        firstColumn = 0;
+        endColumn = blockCount;
+
+        pixelDataQuadrantOffsets[0] = 0;
+        pixelDataQuadrantOffsets[1] = BLOCK_WIDTH;
+        pixelDataQuadrantOffsets[2] = width * BLOCK_WIDTH;
+        pixelDataQuadrantOffsets[3] = (width * BLOCK_WIDTH) + BLOCK_WIDTH;
+    }
+
+    /**
+     * Copies the coefficients of a macroblock decoded by another decoder, so
+     * that empty macroblocks of the next slice repeat it.
+     */
+    void copyMacroBlock(SliceDecoder from, int macroBlockIndex)
+    {
+        short[][] source = from.imageSlice.MacroBlocks[macroBlockIndex].DataBlocks;
+        short[][] target = imageSlice.MacroBlocks[macroBlockIndex].DataBlocks;
+        for(int i = 0; i < target.length; i++)
+            System.arraycopy(source[i], 0, target[i], 0, target[i].length);
+
+        pending[macroBlockIndex] = from.pending[macroBlockIndex];
+        pendingChroma[macroBlockIndex] = from.pendingChroma[macroBlockIndex];
+        if(pending[macroBlockIndex] || pendingChroma[macroBlockIndex])
+        {
+            for(int i = 0; i < 6; i++)
+                System.arraycopy(from.pendingCoefficients[macroBlockIndex][i], 0,
+                        pendingCoefficients[macroBlockIndex][i], 0, 64);
+            System.arraycopy(from.pendingBlockTypes[macroBlockIndex], 0, pendingBlockTypes[macroBlockIndex], 0, 6);
+        }
+
+        System.arraycopy(from.dcValues, macroBlockIndex * 6, dcValues, macroBlockIndex * 6, 6);
+    }
+
+    /**
+     * Restricts transforming and composing to the macroblock columns from
+     * <code>firstColumn</code> up to but not including <code>endColumn</code>.
+     */
+    void setColumnRange(int firstColumn, int endColumn)
+    {
+        this.firstColumn = firstColumn;
+        this.endColumn = endColumn;
+    }
+
+    /**
+     * Decodes the macroblocks of the slice whose header has just been read.
+     * Empty macroblocks keep the data of the last slice this decoder decoded;
+     * if <code>emptyMacroBlocks</code> is not null, which macroblocks were
+     * empty is stored in it from index <code>offset</code> on. Without
+     * <code>chroma</code> the chroma blocks are only read and their
+     * coefficients kept, so that empty macroblocks of a later slice decoded
+     * with chroma repeat the right colour. Without <code>transform</code>,
+     * or outside of the selected columns, coded macroblocks are only read and
+     * their coefficients kept until an empty macroblock needs them.
+     */
+    void decodeMacroBlocks(boolean[] emptyMacroBlocks, int offset, boolean chroma, boolean transform)
+    {
+        boolean blockY0HasAcComponents = false;
+        boolean blockY1HasAcComponents = false;
+        boolean blockY2HasAcComponents = false;
+        boolean blockY3HasAcComponents = false;
+        boolean blockCbHasAcComponents = false;
+        boolean blockCrHasAcComponents = false;
+
+        int blockCount = imageSlice.MacroBlocks.length;
+        for(int count = 0; count < blockCount; count++)
+        {
+            int macroBlockEmpty = reader.read(1);
+
+            if(emptyMacroBlocks != null)
+                emptyMacroBlocks[offset + count] = macroBlockEmpty != 0;
+
+            boolean selected = transform && count >= firstColumn && count < endColumn;
+
+            if(macroBlockEmpty == 0)
+            {
+                int acCoefficients = reader.read(8);
+
+                blockY0HasAcComponents = ((acCoefficients >>> 0) & 1) == 1;
+                blockY1HasAcComponents = ((acCoefficients >>> 1) & 1) == 1;
+                blockY2HasAcComponents = ((acCoefficients >>> 2) & 1) == 1;
+                blockY3HasAcComponents = ((acCoefficients >>> 3) & 1) == 1;
+                blockCbHasAcComponents = ((acCoefficients >>> 4) & 1) == 1;
+                blockCrHasAcComponents = ((acCoefficients >>> 5) & 1) == 1;
+
+                if(((acCoefficients >>> 6) & 1) == 1)
+                {
+                    int quantizer_mode = reader.read(2);
+                    quantizerMode = (quantizer_mode < 2) ? ~quantizer_mode : quantizer_mode;
+                }
+
+                getBlockBytes(blockY0HasAcComponents);
+                finishBlock(count, 0, selected, true);
+
+                getBlockBytes(blockY1HasAcComponents);
+                finishBlock(count, 1, selected, true);
+
+                getBlockBytes(blockY2HasAcComponents);
+                finishBlock(count, 2, selected, true);
+
+                getBlockBytes(blockY3HasAcComponents);
+                finishBlock(count, 3, selected, true);
+
+                getBlockBytes(blockCbHasAcComponents);
+                finishBlock(count, 4, selected, chroma);
+
+                getBlockBytes(blockCrHasAcComponents);
+                finishBlock(count, 5, selected, chroma);
+
+                pending[count] = !selected;
+                pendingChroma[count] = selected && !chroma;
+            } else if(selected && pending[count])
+            {
+                transformPending(count);
+            } else if(selected && chroma && pendingChroma[count])
+            {
+                transformPendingChroma(count);
+            }
+        }
+    }
+
+    private void finishBlock(int macroBlockIndex, int dataBlockIndex, boolean selected, boolean transform)
+    {
+        dcValues[macroBlockIndex * 6 + dataBlockIndex] = dataBlockBuffer[0];
+
+        if(!selected || !transform)
+        {
+            System.arraycopy(dataBlockBuffer, 0, pendingCoefficients[macroBlockIndex][dataBlockIndex], 0, 64);
+            pendingBlockTypes[macroBlockIndex][dataBlockIndex] = (byte) blockType;
+        } else
+        {
+            inverseTransform(dataBlockBuffer, blockType,
+                    imageSlice.MacroBlocks[macroBlockIndex].DataBlocks[dataBlockIndex]);
+        }
+    }
+
+    private void transformPending(int macroBlockIndex)
+    {
+        for(int i = 0; i < 6; i++)
+            inverseTransform(pendingCoefficients[macroBlockIndex][i], pendingBlockTypes[macroBlockIndex][i],
+                    imageSlice.MacroBlocks[macroBlockIndex].DataBlocks[i]);
+        pending[macroBlockIndex] = false;
+        pendingChroma[macroBlockIndex] = false;
+    }
+
+    /**
+     * Transforms the coefficients still kept for the macroblock in the given
+     * column, so that it can be composed for an empty macroblock of another
+     * decoder; with <code>chroma</code> also those of chroma blocks read past.
+     */
+    void transformPending(int macroBlockIndex, boolean chroma)
+    {
+        if(pending[macroBlockIndex])
+            transformPending(macroBlockIndex);
+        else if(chroma && pendingChroma[macroBlockIndex])
+            transformPendingChroma(macroBlockIndex);
+    }
+
+    private void transformPendingChroma(int macroBlockIndex)
+    {
+        for(int i = 4; i < 6; i++)
+            inverseTransform(pendingCoefficients[macroBlockIndex][i], pendingBlockTypes[macroBlockIndex][i],
+                    imageSlice.MacroBlocks[macroBlockIndex].DataBlocks[i]);
+        pendingChroma[macroBlockIndex] = false;
+    }
+
+    // Blockline:
+    // _______
+    // | 1 | 2 |
+    // |___|___| Y
+    // | 3 | 4 |
+    // |___|___|
+    // ___
+    // | 5 |
+    // |___| Cb
+    // ___
+    // | 6 |
+    // |___| Cr
+    //
+    // Layout in memory
+    // _______________________
+    // | 1 | 2 | 3 | 4 | 5 | 6 | ...
+    // |___|___|___|___|___|___|
+    //
+
+    // Example, suppose the six data sub blocks are as follows:
+
+    // ==============Y0============== ==============Y1==============
+    // ==============Y2============== ==============Y3==============
+
+    // 0, 1, 2, 3, 4, 5, 6, 7, 0, 1, 2, 3, 4, 5, 6, 7, 0, 1, 2, 3, 4, 5, 6, 7,
+    // 0, 1, 2, 3, 4, 5, 6, 7,
+    // 8, 9, 10, 11, 12, 13, 14, 15, 8, 9, 10, 11, 12, 13, 14, 15, 8, 9, 10, 11,
+    // 12, 13, 14, 15, 8, 9, 10, 11, 12, 13, 14, 15,
+    // 16, 17, 18, 19, 20, 21, 22, 23, 16, 17, 18, 19, 20, 21, 22, 23, 16, 17,
+    // 18, 19, 20, 21, 22, 23, 16, 17, 18, 19, 20, 21, 22, 23,
+    // 24, 25, 26, 27, 28, 29, 30, 31, 24, 25, 26, 27, 28, 29, 30, 31, 24, 25,
+    // 26, 27, 28, 29, 30, 31, 24, 25, 26, 27, 28, 29, 30, 31,
+    // 32, 33, 34, 35, 36, 37, 38, 39, 32, 33, 34, 35, 36, 37, 38, 39, 32, 33,
+    // 34, 35, 36, 37, 38, 39, 32, 33, 34, 35, 36, 37, 38, 39,
+    // 40, 41, 42, 43, 44, 45, 46, 47, 40, 41, 42, 43, 44, 45, 46, 47, 40, 41,
+    // 42, 43, 44, 45, 46, 47, 40, 41, 42, 43, 44, 45, 46, 47,
+    // 48, 49, 50, 51, 52, 53, 54, 55, 48, 49, 50, 51, 52, 53, 54, 55, 48, 49,
+    // 50, 51, 52, 53, 54, 55, 48, 49, 50, 51, 52, 53, 54, 55,
+    // 56, 57, 58, 59, 60, 61, 62, 63, 56, 57, 58, 59, 60, 61, 62, 63, 56, 57,
+    // 58, 59, 60, 61, 62, 63, 56, 57, 58, 59, 60, 61, 62, 63
+
+    // ==============Cb============== ==============Cr==============
+
+    // 0, 1, 2, 3, | 4, 5, 6, 7, 0, 1, 2, 3, | 4, 5, 6, 7,
+    // 8, 9, 10, 11, | 12, 13, 14, 15, 8, 9, 10, 11, | 12, 13, 14, 15,
+    // 16, 17, 18, 19, | 20, 21, 22, 23, 16, 17, 18, 19, | 20, 21, 22, 23,
+    // 24, 25, 26, 27, | 28, 29, 30, 31, 24, 25, 26, 27, | 28, 29, 30, 31,
+    // ----------------| --------------- --------------- | ---------------
+    // 32, 33, 34, 35, | 36, 37, 38, 39, 32, 33, 34, 35, | 36, 37, 38, 39,
+    // 40, 41, 42, 43, | 44, 45, 46, 47, 40, 41, 42, 43, | 44, 45, 46, 47,
+    // 48, 49, 50, 51, | 52, 53, 54, 55, 48, 49, 50, 51, | 52, 53, 54, 55,
+    // 56, 57, 58, 59, | 60, 61, 62, 63, 56, 57, 58, 59, | 60, 61, 62, 63,
+
+    // Pixel Matrix
+
+    // 0, 1, 2, 3, 4, 5, 6, 7, | 8, 9, 10, 11, 12, 13, 14, 15,
+    // 16, 17, 18, 19, 20, 21, 22, 23, | 24, 25, 26, 27, 28, 29, 30, 31,
+    // 32, 33, 34, 35, 36, 37, 38, 39, | 40, 41, 42, 43, 44, 45, 46, 47,
+    // 48, 49, 50, 51, 52, 53, 54, 55, | 56, 57, 58, 59, 60, 61, 62, 63,
+    // 64, 65, 66, 67, 68, 69, 70, 71, | 72, 73, 74, 75, 76, 77, 78, 79,
+    // 80, 81, 82, 83, 84, 85, 86, 87, | 88, 89, 90, 91, 92, 93, 94, 95,
+    // 96, 97, 98, 99, 100, 101, 102, 103, | 104, 105, 106, 107, 108, 109, 110,
+    // 111,
+    // 112, 113, 114, 115, 116, 117, 118, 119, | 120, 121, 122, 123, 124, 125,
+    // 126, 127,
+    // ----------------------------------------|---------------------------------------
+    // 128, 129, 130, 131, 132, 133, 134, 135, | 136, 137, 138, 139, 140, 141,
+    // 142, 143,
+    // 144, 145, 146, 147, 148, 149, 150, 151, | 152, 153, 154, 155, 156, 157,
+    // 158, 159,
+    // 160, 161, 162, 163, 164, 165, 166, 167, | 168, 169, 170, 171, 172, 173,
+    // 174, 175,
+    // 176, 177, 178, 179, 180, 181, 182, 183, | 184, 185, 186, 187, 188, 189,
+    // 190, 191,
+    // 192, 193, 194, 195, 196, 197, 198, 199, | 200, 201, 202, 203, 204, 205,
+    // 206, 207,
+    // 208, 209, 210, 211, 212, 213, 214, 215, | 216, 217, 218, 219, 220, 221,
+    // 222, 223,
+    // 224, 225, 226, 227, 228, 229, 230, 231, | 232, 233, 234, 235, 236, 237,
+    // 238, 239,
+    // 240, 241, 242, 243, 244, 245, 246, 247, | 248, 249, 250, 251, 252, 253,
+    // 254, 255,
+
+    // The four Luma 8x8 matrices (quadrants Y0, Y1, Y2, Y3) form the basis of
+    // the final 16x16 pixel matrix.
+    // The two Croma 8x8 matrices are used to calculate the actual RGB value of
+    // the pixel (RGB565, each pixel is represented by two bytes)
+
+    // Each processing loop processes from each Luma matrix two rows. In each
+    // 'two row' loop the rows are processed
+    // by two columns.
+
+    // First Loop will take (assume there is only one pixel matrix to fill):
+
+    // Quadrant 1
+    // From Cb -> 0
+    // From Cr -> 0
+    // From Y0 -> 0, 8 and 1, 9 - use Cb and Cr to calculate RGB and place in
+    // pixel matrix in 0, 16 and 1 and 17
+
+    // Quadrant 2
+    // From Cb -> 4
+    // From Cr -> 4
+    // From Y1 -> 0, 8 and 1, 9 - use Cb and Cr to calculate RGB and place in
+    // pixel matrix in 8, 24 and 9 and 25
+
+    // Quadrant 3
+    // From Cb -> 32
+    // From Cr -> 32
+    // From Y2 -> 0, 8 and 1, 9 - use Cb and Cr to calculate RGB and place in
+    // pixel matrix in 128, 144 and 129 and 145
+
+    // Quadrant 4
+    // From Cb -> 36
+    // From Cr -> 36
+    // From Y3 -> 0, 8 and 1, 9 - use Cb and Cr to calculate RGB and place in
+    // pixel matrix in 136, 152 and 137 and 153
+
+    // Second Loop will take (assume there is only one pixel matrix to fill):
+
+    // Quadrant 1
+    // From Cb -> 1
+    // From Cr -> 1
+    // From Y0 -> 2, 10 and 3, 11 - use Cb and Cr to calculate RGB and place in
+    // pixel matrix in 2, 18 and 3 and 19
+
+    // Quadrant 2
+    // From Cb -> 5
+    // From Cr -> 5
+    // From Y1 -> 2, 10 and 3, 11 - use Cb and Cr to calculate RGB and place in
+    // pixel matrix in 10, 26 and 11 and 27
+
+    // Quadrant 3
+    // From Cb -> 33
+    // From Cr -> 33
+    // From Y2 -> 2, 10 and 3, 11 - use Cb and Cr to calculate RGB and place in
+    // pixel matrix in 130, 146 and 131 and 147
+    // Quadrant 4
+    // From Cb -> 37
+    // From Cr -> 37
+    // From Y3 -> 2, 10 and 3, 11 - use Cb and Cr to calculate RGB and place in
+    // pixel matrix in 138, 154 and 139 and 155
+
+    // We need third and fourth loop to complete first two lines of the luma
+    // blocks. At this time we
+    // have written 64 pixels to the pixel matrix.
+
+    // These four loops have to be repeated 4 more times (4 * 64 = 256) to fill
+    // complete pixel matrix.
+
+    // Remark the offsets to use in the pixel matrix have to take into account
+    // that an GroupOfBlocks contains multiple pixel matrices.
+    // So to calculate the real index we have to take that also into account
+    // (blockCount)
+
+    /**
+     * Converts the macroblocks of the slice to pixels and stores them in row
+     * <code>slice</code> (counted from 0) of the picture.
+     */
+    void composeImageSlice(int[] pixels, int slice, boolean fullColor)
+    {
+        int imageDataOffset = slice * width * 16 + firstColumn * 16;
+
+        for(int index = firstColumn; index < endColumn; index++)
+        {
+            composeMacroBlock(imageSlice.MacroBlocks[index], pixels, imageDataOffset, fullColor);
+            imageDataOffset += 16;
+        }
+    }
+
+    /**
+     * Converts a single macroblock of the slice, see
+     * {@link #composeImageSlice(int[], int, boolean)}.
+     */
+    void composeMacroBlock(int macroBlockIndex, int[] pixels, int slice, boolean fullColor)
+    {
+        if(pending[macroBlockIndex])
+            transformPending(macroBlockIndex);
+        composeMacroBlock(imageSlice.MacroBlocks[macroBlockIndex], pixels, slice * width * 16 + macroBlockIndex * 16,
+                fullColor);
+    }
+
+    /**
+     * Stores the luma of the slice in row <code>slice</code> of a plane of
+     * one byte per pixel.
+     */
+    void composeLumaSlice(byte[] luma, int slice)
+    {
+        int imageDataOffset = slice * width * 16 + firstColumn * 16;
+
+        for(int index = firstColumn; index < endColumn; index++)
+        {
+            composeLumaMacroBlock(imageSlice.MacroBlocks[index], luma, imageDataOffset);
+            imageDataOffset += 16;
+        }
+    }
+
+    /**
+     * Stores the luma of a single macroblock, see
+     * {@link #composeLumaSlice(byte[], int)}.
+     */
+    void composeLumaMacroBlock(int macroBlockIndex, byte[] luma, int slice)
+    {
+        if(pending[macroBlockIndex])
+            transformPending(macroBlockIndex);
+        composeLumaMacroBlock(imageSlice.MacroBlocks[macroBlockIndex], luma, slice * width * 16 + macroBlockIndex
+                * 16);
+    }
+
+    /**
+     * Stores one pixel per 8x8 block, computed from the DC coefficients
+     * alone, in row <code>slice</code> of a thumbnail of an eighth of the
+     * picture size. Covers all columns.
+     */
+    void composeThumbnailSlice(int[] thumbnail, int slice, boolean fullColor)
+    {
+        int blockCount = imageSlice.MacroBlocks.length;
+        for(int index = 0; index < blockCount; index++)
+            composeThumbnailMacroBlock(index, thumbnail, slice, fullColor);
+    }
+
+    /**
+     * Stores the 2x2 thumbnail pixels of a single macroblock, see
+     * {@link #composeThumbnailSlice(int[], int, boolean)}.
+     */
+    void composeThumbnailMacroBlock(int macroBlockIndex, int[] thumbnail, int slice, boolean fullColor)
+    {
+        int thumbnailWidth = width >> 3;
+        int offset = slice * 2 * thumbnailWidth + macroBlockIndex * 2;
+        int dcIndex = macroBlockIndex * 6;
+
+        // The inverse transform of a block with only a DC coefficient
+        int u = ((dcValues[dcIndex + 4] << PASS1_BITS << BITS) >> F3) - 128;
+        int v = ((dcValues[dcIndex + 5] << PASS1_BITS << BITS) >> F3) - 128;
+        int ug = 88 * u;
+        int ub = 454 * u;
+        int vg = 183 * v;
+        int vr = 359 * v;
+
+        for(int quadrant = 0; quadrant < 4; quadrant++)
+        {
+            int luma = ((dcValues[dcIndex + quadrant] << PASS1_BITS << BITS) >> F3) << 8;
+            int index = offset + (quadrant >> 1) * thumbnailWidth + (quadrant & 1);
+
+            if(fullColor)
+                thumbnail[index] = makeARGB(saturate8(luma + vr), saturate8(luma - ug - vg), saturate8(luma + ub));
+            else
+                thumbnail[index] = makeRGB(saturate5(luma + vr), saturate6(luma - ug - vg), saturate5(luma + ub));
+        }
+    }
+
+    private void composeLumaMacroBlock(MacroBlock macroBlock, byte[] luma, int imageDataOffset)
+    {
+        for(int quadrant = 0; quadrant < 4; quadrant++)
+        {
+            short[] block = macroBlock.DataBlocks[quadrant];
+            int dataIndex = imageDataOffset + pixelDataQuadrantOffsets[quadrant];
+
+            for(int row = 0; row < 64; row += BLOCK_WIDTH)
+            {
+                for(int column = 0; column < BLOCK_WIDTH; column++)
+                {
+                    int value = block[row + column];
+                    luma[dataIndex + column] = (byte) (value < 0 ? 0 : (value > 0xFF ? 0xFF : value));
+                }
+                dataIndex += width;
+            }
+        }
+    }
+
+    private void composeMacroBlock(MacroBlock macroBlock, int[] pixels, int imageDataOffset, boolean fullColor)
+    {
+        int u, ug, ub;
+        int v, vg, vr;
+        int r, g, b;
+
+        int lumaElementIndex1 = 0;
+        int lumaElementIndex2 = 0;
+        int chromaOffset = 0;
+
+        int dataIndex1 = 0;
+        int dataIndex2 = 0;
+
+        int lumaElementValue1 = 0;
+        int lumaElementValue2 = 0;
+        int chromaBlueValue = 0;
+        int chromaRedValue = 0;
+
+        for(int verticalStep = 0; verticalStep < BLOCK_WIDTH / 2; verticalStep++)
+        {
+            chromaOffset = verticalStep * BLOCK_WIDTH;
+            lumaElementIndex1 = verticalStep * BLOCK_WIDTH * 2;
+            lumaElementIndex2 = lumaElementIndex1 + BLOCK_WIDTH;
+
+            dataIndex1 = imageDataOffset + (2 * verticalStep * width);
+            dataIndex2 = dataIndex1 + width;
+
+            for(int horizontalStep = 0; horizontalStep < BLOCK_WIDTH / 2; horizontalStep++)
+            {
+                for(int quadrant = 0; quadrant < 4; quadrant++)
+                {
+                    int chromaIndex = chromaOffset + CROMA_QUADRANT_OFFSETS[quadrant] + horizontalStep;
+                    chromaBlueValue = macroBlock.DataBlocks[4][chromaIndex];
+                    chromaRedValue = macroBlock.DataBlocks[5][chromaIndex];
+
+                    u = chromaBlueValue - 128;
+                    ug = 88 * u;
+                    ub = 454 * u;
+
+                    v = chromaRedValue - 128;
+                    vg = 183 * v;
+                    vr = 359 * v;
+
+                    for(int pixel = 0; pixel < 2; pixel++)
+                    {
+                        int deltaIndex = 2 * horizontalStep + pixel;
+                        lumaElementValue1 = macroBlock.DataBlocks[quadrant][lumaElementIndex1 + deltaIndex] << 8;
+                        lumaElementValue2 = macroBlock.DataBlocks[quadrant][lumaElementIndex2 + deltaIndex] << 8;
+
+                        int index1 = dataIndex1 + pixelDataQuadrantOffsets[quadrant] + deltaIndex;
+                        int index2 = dataIndex2 + pixelDataQuadrantOffsets[quadrant] + deltaIndex;
+
+                        if(fullColor)
+                        {
+                            r = saturate8(lumaElementValue1 + vr);
+                            g = saturate8(lumaElementValue1 - ug - vg);
+                            b = saturate8(lumaElementValue1 + ub);
+                            pixels[index1] = makeARGB(r, g, b);
+
+                            r = saturate8(lumaElementValue2 + vr);
+                            g = saturate8(lumaElementValue2 - ug - vg);
+                            b = saturate8(lumaElementValue2 + ub);
+                            pixels[index2] = makeARGB(r, g, b);
+                        } else
+                        {
+                            r = saturate5(lumaElementValue1 + vr);
+                            g = saturate6(lumaElementValue1 - ug - vg);
+                            b = saturate5(lumaElementValue1 + ub);
+                            pixels[index1] = makeRGB(r, g, b);
+
+                            r = saturate5(lumaElementValue2 + vr);
+                            g = saturate6(lumaElementValue2 - ug - vg);
+                            b = saturate5(lumaElementValue2 + ub);
+                            pixels[index2] = makeRGB(r, g, b);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static int countLeadingZeros(int value)
+    {
+        int accum = 0;
+
+        accum += CLZLUT[value >>> 24];
+        if(accum == 8)
+            accum += CLZLUT[(value >>> 16) & 0xFF];
+        if(accum == 16)
+            accum += CLZLUT[(value >>> 8) & 0xFF];
+        if(accum == 24)
+            accum += CLZLUT[value & 0xFF];
+
+        return accum;
+    }
+
+    /**
+     * Decodes every VLC_TABLE_BITS bit pattern the way decodeFieldBytes does
+     * and records the patterns starting with a complete run and level code.
+     */
+    private static int[] createVlcTable()
+    {
+        int[] table = new int[1 << VLC_TABLE_BITS];
+
+        for(int bits = 0; bits < table.length; bits++)
+        {
+            int streamCode = bits << (32 - VLC_TABLE_BITS);
+
+            // Run
+            int zeroCount = countLeadingZeros(streamCode);
+            if(zeroCount >= VLC_TABLE_BITS)
+                continue;
+
+            int length = zeroCount + 1;
+            streamCode <<= zeroCount + 1;
+
+            int run = zeroCount;
+            if(zeroCount > 1)
+            {
+                run = (streamCode >>> (32 - (zeroCount - 1))) + (1 << (zeroCount - 1));
+                streamCode <<= zeroCount - 1;
+                length += zeroCount - 1;
+            }
+
+            // Level
+            zeroCount = countLeadingZeros(streamCode);
+            length += zeroCount + 1;
+            if(length > VLC_TABLE_BITS)
+                continue;
+            streamCode <<= zeroCount + 1;
+
+            if(zeroCount == 1)
+            {
+                table[bits] = length | VLC_LAST;
+                continue;
+            }
+
+            // Coarse value 1 is followed by the sign only
+            int levelBits = (zeroCount == 0) ? 1 : zeroCount;
+            length += levelBits;
+            if(length > VLC_TABLE_BITS)
+                continue;
+
+            int value = streamCode >>> (32 - levelBits);
+            int level = (value >>> 1) + (1 << (levelBits - 1));
+            if((value & 1) == 1)
+                level = -level;
+
+            table[bits] = length | (run << VLC_RUN_SHIFT) | (level << VLC_LEVEL_SHIFT);
+        }
+
+        return table;
+    }
+
+    private void decodeFieldBytes()
+    {
+        int streamCode = 0;
+
+        int streamLength = 0;
+        int zeroCount = 0;
+        int temp = 0;
+        int sign = 0;
+
+        // Use the RLE and Huffman dictionaries to understand this code
+        // fragment. You can find
+        // them in the developers guide on page 34.
+        // The bits in the data are actually composed of two kinds of fields:
+        // - run fields - this field contains information on the number of
+        // consecutive zeros.
+        // - level fields - this field contains the actual non zero value which
+        // can be negative or positive.
+        // First we extract the run field info and then the level field info.
+
+        streamCode = reader.peek(32);
+
+        // Determine number of consecutive zeros in zig zag. (a.k.a
+        // 'run' field info)
+
+        // Suppose we have following bit sequence:
+        // 00001111.....
+        // 1 - Count the number of leading zeros -> 4
+        // Coarse value lookup is thus 00001
+        // 2 - Lookup the additional value, for coarse value 00001 this is 3
+        // addtional bits
+        // 3 - Calculate value of run, for coarse value 00001 this is (111) + 8
+
+        zeroCount = countLeadingZeros(streamCode); // - (1)
+        streamCode <<= zeroCount + 1; // - (2) -> shift left to get
+        // rid of the coarse value
+        streamLength += zeroCount + 1; // - position bit pointer to keep track
+        // off how many bits to consume later on
+        // the stream.
+
+        if(zeroCount > 1)
+        {
+            temp = streamCode >>> (32 - (zeroCount - 1)); // -
+            // (2)
+            // ->
+            // shift
+            // right
+            // to
+            // determine
+            // the
+            // addtional
+            // bits
+            // (number
+            // of
+            // additional
+            // bits
+            // is
+            // zerocount
+            // - 1)
+            streamCode <<= zeroCount - 1; // - shift all of the run
+            // bits out of the way
+            // so the first bit is
+            // points to the first
+            // bit of the level
+            // field.
+            streamLength += zeroCount - 1;// - position bit pointer to keep
+            // track off how many bits to
+            // consume later on the stream.
+            run = temp + (1 << (zeroCount - 1)); // - (3) -> calculate run
+            // value
+        } else
+        {
+            run = zeroCount;
+        }
+
+        // Determine non zero value. (a.k.a 'level' field info)
+
+        // Suppose we have following bit sequence:
+        // 000011111.....
+        // 1 - Count the number of leading zeros -> 4
+        // Coarse value lookup is thus 00001
+        // 2 - Lookup the additional value, for coarse value 00001 this is 4
+        // addtional bits (last bit is sign bit)
+        // 3 - Calculate value of run, for coarse value 00001 this is (xxx) + 8,
+        // multiply by sign
+
+        zeroCount = countLeadingZeros(streamCode);
+        streamCode <<= zeroCount + 1; // - (1)
+        streamLength += zeroCount + 1; // - position bit pointer to keep track
+        // off how many bits to consume later on
+        // the stream.
+
+        if(zeroCount == 1)
+        {
+            // If coarse value is 01 according to the Huffman dictionary this
+            // means EOB, so there is
+            // no run and level and we indicate this by setting last to true;
+            run = 0;
+            last = true;
+        } else
+        {
+            if(zeroCount == 0)
+            {
+                zeroCount = 1;
+                temp = 1;
+            }
+
+            streamLength += zeroCount;// - position bit pointer to keep track
+            // off how many bits to consume later on
+            // the stream.
+            streamCode >>>= 32 - zeroCount;// - (2) -> shift right
+            // to determine the
+            // addtional bits
+            // (number of additional
+            // bits is zerocount)
+            // sign = (sbyte)(streamCode & 1); // determine sign, last bit is
+            // sign
+            sign = streamCode & 1; // determine sign, last
+            // bit is sign
+
+            if(zeroCount != 0)
+            {
+                // temp = (sbyte)(streamCode >> 1); // take into account that
+                // last bit is sign, so shift it out of the way
+                // temp += (sbyte)(1 << (zeroCount - 1)); // - (3) -> calculate
+                // run value without sign
+                temp = streamCode >>> 1; // take into
+                // account
+                // that last bit is
+                // sign, so shift it
+                // out of the way
+                temp += 1 << (zeroCount - 1); // - (3) -> calculate run
+                // value without sign
+            }
+
+            level = (sign == 1) ? -temp : temp; // - (3) -> calculate run
+            // value with sign
+            last = false;
+        }
+
+        reader.skip(streamLength);
+    }
+
+    private void getBlockBytes(boolean acCoefficientsAvailable)
+    {
+        int zigZagPosition = 0;
+        int matrixPosition = 0;
+
+        // Only the coefficients of the previous block need to be cleared
+        switch(blockType)
+        {
+        case BLOCK_DC_ONLY:
+            dataBlockBuffer[0] = 0;
+            break;
+        case BLOCK_SPARSE:
+            for(int i = 0; i < 32; i += 8)
+            {
+                dataBlockBuffer[i] = 0;
+                dataBlockBuffer[i + 1] = 0;
+                dataBlockBuffer[i + 2] = 0;
+                dataBlockBuffer[i + 3] = 0;
+            }
+            break;
+        default:
+            Arrays.fill(dataBlockBuffer, (short) 0);
+        }
+        blockType = BLOCK_DC_ONLY;
+
+        int dcCoefficient = reader.read(10);
+
+        if(quantizerMode == TABLE_QUANTIZATION_MODE)
+        {
+            dataBlockBuffer[0] = (short) (dcCoefficient * QUANTIZER_VALUES[0]);
+
+            if(acCoefficientsAvailable)
+            {
+                while(true)
+                {
+                    int entry = vlcTableEnabled ? VLC_TABLE[reader.peek(VLC_TABLE_BITS)] : 0;
+                    if(entry != 0)
+                    {
+                        reader.skip(entry & VLC_LENGTH_MASK);
+                        if((entry & VLC_LAST) != 0)
+                            break;
+                        run = (entry >>> VLC_RUN_SHIFT) & 0xFF;
+                        level = entry >> VLC_LEVEL_SHIFT;
+                    } else
+                    {
+                        decodeFieldBytes();
+                        if(last)
+                            break;
+                    }
+
+                    zigZagPosition += run + 1;
+                    matrixPosition = ZIGZAG_POSITIONS[zigZagPosition];
+                    if(ZIGZAG_BLOCK_TYPES[zigZagPosition] > blockType)
+                        blockType = ZIGZAG_BLOCK_TYPES[zigZagPosition];
+                    dataBlockBuffer[matrixPosition] = (short) (level * ZIGZAG_QUANTIZER_VALUES[zigZagPosition]);
+                }
+            }
+        } else
+        {
+            // Currently not implemented.
+            throw new RuntimeException("ant quantizer mode is not yet implemented.");
+        }
+    }
+
+    /**
+     * Copies the coefficients of a block that was read without transforming
+     * it and returns its block type, to be passed back to
+     * {@link #inverseTransform(short[], int, short[])}.
+     */
+    int copyPendingBlock(int macroBlockIndex, int dataBlockIndex, short[] coefficients)
+    {
+        System.arraycopy(pendingCoefficients[macroBlockIndex][dataBlockIndex], 0, coefficients, 0, 64);
+        return pendingBlockTypes[macroBlockIndex][dataBlockIndex];
+    }
+
+    void inverseTransform(short[] coefficients, int blockType, short[] data)
+    {
+        switch(blockType)
+        {
+        case BLOCK_DC_ONLY:
+            // All other coefficients are zero, so both passes reduce to
+            // scaling the DC value
+            dcOnlyBlocks++;
+            Arrays.fill(data, (short) (((coefficients[0] << PASS1_BITS) << BITS) >> F3));
+            break;
+        case BLOCK_SPARSE:
+            sparseBlocks++;
+            inverseTransformSparse(coefficients, data);
+            break;
+        default:
+            fullBlocks++;
+            inverseTransformFull(coefficients, data);
+        }
+    }
+
+    /**
+     * Same as {@link #inverseTransformFull(short[], short[])} with the terms for the
+     * coefficients outside of the top left 4x4 corner left out, as they are
+     * all zero. Columns 4 to 7 of the work space stay zero as well.
+     */
+    private void inverseTransformSparse(short[] coefficients, short[] data)
+    {
+        int[] workSpace = this.workSpace;
+
+        int z1, z5;
+        int in0, in1, in2, in3;
+        int tmp0, tmp1, tmp2, tmp3;
+        int tmp10, tmp11, tmp12, tmp13;
+
+        for(int pointer = 0; pointer < 4; pointer++)
+        {
+            in0 = coefficients[pointer];
+            in1 = coefficients[pointer + 8];
+            in2 = coefficients[pointer + 16];
+            in3 = coefficients[pointer + 24];
+
+            z1 = in2 * FIX_0_541196100;
+            tmp2 = z1;
+            tmp3 = z1 + in2 * FIX_0_765366865;
+
+            tmp0 = in0 << BITS;
+
+            tmp10 = tmp0 + tmp3;
+            tmp13 = tmp0 - tmp3;
+            tmp11 = tmp0 + tmp2;
+            tmp12 = tmp0 - tmp2;
+
+            z5 = (in3 + in1) * FIX_1_175875602;
+
+            tmp0 = in1 * -FIX_0_899976223 + in3 * -FIX_1_961570560 + z5;
+            tmp1 = in3 * -FIX_2_562915447 + in1 * -FIX_0_390180644 + z5;
+            tmp2 = in3 * FIX_3_072711026 + in3 * -FIX_2_562915447 + in3 * -FIX_1_961570560 + z5;
+            tmp3 = in1 * FIX_1_501321110 + in1 * -FIX_0_899976223 + in1 * -FIX_0_390180644 + z5;
+
+            workSpace[pointer + 0] = ((tmp10 + tmp3 + (1 << F1)) >> F2);
+            workSpace[pointer + 56] = ((tmp10 - tmp3 + (1 << F1)) >> F2);
+            workSpace[pointer + 8] = ((tmp11 + tmp2 + (1 << F1)) >> F2);
+            workSpace[pointer + 48] = ((tmp11 - tmp2 + (1 << F1)) >> F2);
+            workSpace[pointer + 16] = ((tmp12 + tmp1 + (1 << F1)) >> F2);
+            workSpace[pointer + 40] = ((tmp12 - tmp1 + (1 << F1)) >> F2);
+            workSpace[pointer + 24] = ((tmp13 + tmp0 + (1 << F1)) >> F2);
+            workSpace[pointer + 32] = ((tmp13 - tmp0 + (1 << F1)) >> F2);
+        }
+
+        for(int pointer = 0; pointer < 64; pointer += 8)
+        {
+            in0 = workSpace[pointer];
+            in1 = workSpace[pointer + 1];
+            in2 = workSpace[pointer + 2];
+            in3 = workSpace[pointer + 3];
+
+            z1 = in2 * FIX_0_541196100;
+            tmp2 = z1;
+            tmp3 = z1 + in2 * FIX_0_765366865;
+
+            tmp0 = in0 << BITS;
+
+            tmp10 = tmp0 + tmp3;
+            tmp13 = tmp0 - tmp3;
+            tmp11 = tmp0 + tmp2;
+            tmp12 = tmp0 - tmp2;
+
+            z5 = (in3 + in1) * FIX_1_175875602;
+
+            tmp0 = in1 * -FIX_0_899976223 + in3 * -FIX_1_961570560 + z5;
+            tmp1 = in3 * -FIX_2_562915447 + in1 * -FIX_0_390180644 + z5;
+            tmp2 = in3 * FIX_3_072711026 + in3 * -FIX_2_562915447 + in3 * -FIX_1_961570560 + z5;
+            tmp3 = in1 * FIX_1_501321110 + in1 * -FIX_0_899976223 + in1 * -FIX_0_390180644 + z5;
+
+            data[pointer + 0] = (short) ((tmp10 + tmp3) >> F3);
+            data[pointer + 7] = (short) ((tmp10 - tmp3) >> F3);
+            data[pointer + 1] = (short) ((tmp11 + tmp2) >> F3);
+            data[pointer + 6] = (short) ((tmp11 - tmp2) >> F3);
+            data[pointer + 2] = (short) ((tmp12 + tmp1) >> F3);
+            data[pointer + 5] = (short) ((tmp12 - tmp1) >> F3);
+            data[pointer + 3] = (short) ((tmp13 + tmp0) >> F3);
+            data[pointer + 4] = (short) ((tmp13 - tmp0) >> F3);
+        }
+    }
+
+    private void inverseTransformFull(short[] coefficients, short[] data)
+    {
+        int[] workSpace = this.workSpace;
+
+        int z1, z2, z3, z4, z5;
+        int tmp0, tmp1, tmp2, tmp3;
+        int tmp10, tmp11, tmp12, tmp13;
+
+        int pointer = 0;
+
+        for(int index = 8; index > 0; index--)
+        {
+            if(coefficients[pointer + 8] == 0 && coefficients[pointer + 16] == 0
+                    && coefficients[pointer + 24] == 0 && coefficients[pointer + 32] == 0
+                    && coefficients[pointer + 40] == 0 && coefficients[pointer + 48] == 0
+                    && coefficients[pointer + 56] == 0)
+            {
+                int dcValue = coefficients[pointer] << PASS1_BITS;
+
+                workSpace[pointer + 0] = dcValue;
+                workSpace[pointer + 8] = dcValue;
+                workSpace[pointer + 16] = dcValue;
+                workSpace[pointer + 24] = dcValue;
+                workSpace[pointer + 32] = dcValue;
+                workSpace[pointer + 40] = dcValue;
+                workSpace[pointer + 48] = dcValue;
+                workSpace[pointer + 56] = dcValue;
+
+                pointer++;
+                continue;
+            }
+
+            z2 = coefficients[pointer + 16];
+            z3 = coefficients[pointer + 48];
+
+            z1 = (z2 + z3) * FIX_0_541196100;
+            tmp2 = z1 + z3 * -FIX_1_847759065;
+            tmp3 = z1 + z2 * FIX_0_765366865;
+
+            z2 = coefficients[pointer];
+            z3 = coefficients[pointer + 32];
+
+            tmp0 = (z2 + z3) << BITS;
+            tmp1 = (z2 - z3) << BITS;
+
+            tmp10 = tmp0 + tmp3;
+            tmp13 = tmp0 - tmp3;
+            tmp11 = tmp1 + tmp2;
+            tmp12 = tmp1 - tmp2;
+
+            tmp0 = coefficients[pointer + 56];
+            tmp1 = coefficients[pointer + 40];
+            tmp2 = coefficients[pointer + 24];
+            tmp3 = coefficients[pointer + 8];
+
+            z1 = tmp0 + tmp3;
+            z2 = tmp1 + tmp2;
+            z3 = tmp0 + tmp2;
+            z4 = tmp1 + tmp3;
+            z5 = (z3 + z4) * FIX_1_175875602;
+
+            tmp0 = tmp0 * FIX_0_298631336;
+            tmp1 = tmp1 * FIX_2_053119869;
+            tmp2 = tmp2 * FIX_3_072711026;
+            tmp3 = tmp3 * FIX_1_501321110;
+            z1 = z1 * -FIX_0_899976223;
+            z2 = z2 * -FIX_2_562915447;
+            z3 = z3 * -FIX_1_961570560;
+            z4 = z4 * -FIX_0_390180644;
+
+            z3 += z5;
+            z4 += z5;
+
+            tmp0 += z1 + z3;
+            tmp1 += z2 + z4;
+            tmp2 += z2 + z3;
+            tmp3 += z1 + z4;
+
+            workSpace[pointer + 0] = ((tmp10 + tmp3 + (1 << F1)) >> F2);
+            workSpace[pointer + 56] = ((tmp10 - tmp3 + (1 << F1)) >> F2);
+            workSpace[pointer + 8] = ((tmp11 + tmp2 + (1 << F1)) >> F2);
+            workSpace[pointer + 48] = ((tmp11 - tmp2 + (1 << F1)) >> F2);
+            workSpace[pointer + 16] = ((tmp12 + tmp1 + (1 << F1)) >> F2);
+            workSpace[pointer + 40] = ((tmp12 - tmp1 + (1 << F1)) >> F2);
+            workSpace[pointer + 24] = ((tmp13 + tmp0 + (1 << F1)) >> F2);
+            workSpace[pointer + 32] = ((tmp13 - tmp0 + (1 << F1)) >> F2);
+
+            pointer++;
+        }
+
+        pointer = 0;
+
+        for(int index = 0; index < 8; index++)
+        {
+            z2 = workSpace[pointer + 2];
+            z3 = workSpace[pointer + 6];
+
+            z1 = (z2 + z3) * FIX_0_541196100;
+            tmp2 = z1 + z3 * -FIX_1_847759065;
+            tmp3 = z1 + z2 * FIX_0_765366865;
+
+            tmp0 = (workSpace[pointer + 0] + workSpace[pointer + 4]) << BITS;
+            tmp1 = (workSpace[pointer + 0] - workSpace[pointer + 4]) << BITS;
+
+            tmp10 = tmp0 + tmp3;
+            tmp13 = tmp0 - tmp3;
+            tmp11 = tmp1 + tmp2;
+            tmp12 = tmp1 - tmp2;
+
+            tmp0 = workSpace[pointer + 7];
+            tmp1 = workSpace[pointer + 5];
+            tmp2 = workSpace[pointer + 3];
+            tmp3 = workSpace[pointer + 1];
+
+            z1 = tmp0 + tmp3;
+            z2 = tmp1 + tmp2;
+            z3 = tmp0 + tmp2;
+            z4 = tmp1 + tmp3;
+
+            z5 = (z3 + z4) * FIX_1_175875602;
+
+            tmp0 = tmp0 * FIX_0_298631336;
+            tmp1 = tmp1 * FIX_2_053119869;
+            tmp2 = tmp2 * FIX_3_072711026;
+            tmp3 = tmp3 * FIX_1_501321110;
+            z1 = z1 * -FIX_0_899976223;
+            z2 = z2 * -FIX_2_562915447;
+            z3 = z3 * -FIX_1_961570560;
+            z4 = z4 * -FIX_0_390180644;
+
+            z3 += z5;
+            z4 += z5;
+
+            tmp0 += z1 + z3;
+            tmp1 += z2 + z4;
+            tmp2 += z2 + z3;
+            tmp3 += z1 + z4;
+
+            data[pointer + 0] = (short) ((tmp10 + tmp3) >> F3);
+            data[pointer + 7] = (short) ((tmp10 - tmp3) >> F3);
+            data[pointer + 1] = (short) ((tmp11 + tmp2) >> F3);
+            data[pointer + 6] = (short) ((tmp11 - tmp2) >> F3);
+            data[pointer + 2] = (short) ((tmp12 + tmp1) >> F3);
+            data[pointer + 5] = (short) ((tmp12 - tmp1) >> F3);
+            data[pointer + 3] = (short) ((tmp13 + tmp0) >> F3);
+            data[pointer + 4] = (short) ((tmp13 - tmp0) >> F3);
+
+            pointer += 8;
+        }
+    }
+
+    private static int makeRGB(int r, int g, int b)
+    {
+        r <<= 2;
+        g <<= 1;
+        b <<= 2;
+
+        return (r << 16) | (g << 8) | b;
+    }
+
+    private static int makeARGB(int r, int g, int b)
+    {
+        return 0xFF000000 | (r << 16) | (g << 8) | b;
+    }
+
+    private static int saturate5(int x)
+    {
+        if(x < 0)
+            return 0;
+
+        x >>= 11;
+        return (x > 0x1F) ? 0x1F : x;
+    }
+
+    private static int saturate6(int x)
+    {
+        if(x < 0)
+            return 0;
+
+        x >>= 10;
+        return x > 0x3F ? 0x3F : x;
+    }
+
+    private static int saturate8(int x)
+    {
+        if(x < 0)
+            return 0;
+
+        x >>= 8;
+        return x > 0xFF ? 0xFF : x;
+    }
+}
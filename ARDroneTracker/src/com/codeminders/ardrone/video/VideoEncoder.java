@@ -0,0 +1,431 @@
+package com.codeminders.ardrone.video;
+
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Encodes pictures into the video format of the drone, as parsed by
+ * {@link BufferedVideoImage}: one slice per row of 16x16 macroblocks, each
+ * made of four 8x8 luma blocks and the two 8x8 chroma blocks subsampled over
+ * it, with DCT coefficients quantized by the table of the decoder and
+ * run/level coded. Meant for generating test and benchmark streams offline,
+ * not for speed.
+ *
+ * Supported sizes are 176x144 and 352x288 (CIF), 320x240 (QVGA) and 640x480.
+ * The smallest sizes of the format, 88x72 and 160x120, are not whole
+ * macroblocks high.
+ *
+ * An encoder keeps state between pictures when empty macroblocks are on, so
+ * its pictures have to be decoded in order by one decoder.
+ */
+public class VideoEncoder
+{
+    private static final int     CIF_WIDTH      = 88;
+    private static final int     CIF_HEIGHT     = 72;
+    private static final int     VGA_WIDTH      = 160;
+    private static final int     VGA_HEIGHT     = 120;
+    private static final int     CIF            = 1;
+    private static final int     QVGA           = 2;
+    private static final int     MIN_RESOLUTION = 2;
+    private static final int     MAX_RESOLUTION = 3;
+
+    private static final int     PICTURE_START  = 32;
+    private static final int     PICTURE_END    = PICTURE_START | 0x1F;
+    private static final int     TABLE_QUANTIZATION_MODE = 31;
+
+    private static final int     MAX_DC         = 1023;
+    private static final int     MAX_LEVEL      = 255;
+
+    /**
+     * Same table as the decoder; the DC coefficient always uses the first
+     * entry.
+     */
+    private static final short[] QUANTIZER_VALUES = new short[] { 3, 5, 7, 9, 11, 13, 15, 17, 5, 7, 9, 11, 13, 15,
+            17, 19, 7, 9, 11, 13, 15, 17, 19, 21, 9, 11, 13, 15, 17, 19, 21, 23, 11, 13, 15, 17, 19, 21, 23, 25, 13, 15,
+            17, 19, 21, 23, 25, 27, 15, 17, 19, 21, 23, 25, 27, 29, 17, 19, 21, 23, 25, 27, 29, 31 };
+
+    private static final short[] ZIGZAG_POSITIONS = new short[] { 0, 1, 8, 16, 9, 2, 3, 10, 17, 24, 32, 25, 18, 11,
+            4, 5, 12, 19, 26, 33, 40, 48, 41, 34, 27, 20, 13, 6, 7, 14, 21, 28, 35, 42, 49, 56, 57, 50, 43, 36, 29, 22,
+            15, 23, 30, 37, 44, 51, 58, 59, 52, 45, 38, 31, 39, 46, 53, 60, 61, 54, 47, 55, 62, 63 };
+
+    /**
+     * DCT basis: COSINES[u * 8 + x] = c(u) / 2 * cos((2x + 1) u pi / 16).
+     */
+    private static final double[] COSINES        = new double[64];
+
+    static
+    {
+        for(int u = 0; u < 8; u++)
+        {
+            double c = (u == 0) ? Math.sqrt(0.5) : 1;
+            for(int x = 0; x < 8; x++)
+                COSINES[u * 8 + x] = c / 2 * Math.cos((2 * x + 1) * u * Math.PI / 16);
+        }
+    }
+
+    private int                  quantizerScale = 1;
+    private boolean              emptyMacroBlocks;
+    private int                  frameIndex;
+
+    // Levels of the last macroblock coded in each column, which an empty
+    // macroblock repeats
+    private int                  columns;
+    private int[][]              columnLevels   = new int[0][];
+    private boolean[]            columnCoded    = new boolean[0];
+
+    private int[]                argb           = new int[0];
+    private final double[][]     blocks         = new double[6][64];
+    private final double[]       transform      = new double[64];
+    private final int[]          levels         = new int[6 * 64];
+
+    private int[]                words          = new int[4096];
+    private int                  wordCount;
+    private long                 bits;
+    private int                  bitCount;
+    private long                 position;
+
+    /**
+     * Sets how much coarser than the table of the decoder AC coefficients are
+     * quantized. 1, the default, keeps the most detail; larger scales give
+     * smaller pictures. The levels written stay multiples of the scale, so the
+     * decoder needs no change.
+     */
+    public void setQuantizerScale(int scale)
+    {
+        if(scale < 1)
+            throw new IllegalArgumentException("Quantizer scale must be at least 1, got " + scale);
+        quantizerScale = scale;
+    }
+
+    public int getQuantizerScale()
+    {
+        return quantizerScale;
+    }
+
+    /**
+     * With empty macroblocks on, a macroblock that would be coded exactly as
+     * the last one coded in its column, in this picture or an earlier one,
+     * is sent as empty. The decoder repeats that macroblock for it, so the
+     * decoded picture does not change. Off by default.
+     */
+    public void setEmptyMacroBlocks(boolean enabled)
+    {
+        emptyMacroBlocks = enabled;
+    }
+
+    /**
+     * Forgets earlier pictures, for a stream decoded by a new decoder.
+     */
+    public void reset()
+    {
+        Arrays.fill(columnCoded, false);
+    }
+
+    /**
+     * Sets the frame index the next picture is given. It goes up by one with
+     * each picture.
+     */
+    public void setFrameIndex(int frameIndex)
+    {
+        this.frameIndex = frameIndex;
+    }
+
+    public static boolean isSupportedSize(int width, int height)
+    {
+        return getResolution(width, height, CIF_WIDTH, CIF_HEIGHT) > 0
+                || getResolution(width, height, VGA_WIDTH, VGA_HEIGHT) > 0;
+    }
+
+    /**
+     * Resolution code for the size in the given format, or 0 if it is none
+     * of its sizes.
+     */
+    private static int getResolution(int width, int height, int formatWidth, int formatHeight)
+    {
+        for(int resolution = MIN_RESOLUTION; resolution <= MAX_RESOLUTION; resolution++)
+        {
+            if(width == formatWidth << resolution - 1 && height == formatHeight << resolution - 1)
+                return resolution;
+        }
+        return 0;
+    }
+
+    public ByteBuffer encode(BufferedImage image)
+    {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        if(argb.length < width * height)
+            argb = new int[width * height];
+        image.getRGB(0, 0, width, height, argb, 0, width);
+        return encode(argb, width, height);
+    }
+
+    /**
+     * Encodes one picture, given as RGB pixels row by row, into a new buffer
+     * holding exactly one video datagram.
+     */
+    public ByteBuffer encode(int[] pixels, int width, int height)
+    {
+        int format = CIF;
+        int resolution = getResolution(width, height, CIF_WIDTH, CIF_HEIGHT);
+        if(resolution == 0)
+        {
+            format = QVGA;
+            resolution = getResolution(width, height, VGA_WIDTH, VGA_HEIGHT);
+        }
+        if(resolution == 0)
+            throw new IllegalArgumentException("Unsupported picture size " + width + "x" + height);
+
+        int sliceCount = height >> 4;
+        int blockCount = width >> 4;
+        if(blockCount != columns)
+        {
+            columns = blockCount;
+            columnLevels = new int[blockCount][6 * 64];
+            columnCoded = new boolean[blockCount];
+        }
+
+        wordCount = 0;
+        bits = 0;
+        bitCount = 0;
+        position = 0;
+
+        for(int slice = 0; slice < sliceCount; slice++)
+        {
+            align();
+            write(PICTURE_START | slice, 22);
+            if(slice == 0)
+            {
+                write(format, 2);
+                write(resolution, 3);
+                // Picture type
+                write(0, 3);
+                write(TABLE_QUANTIZATION_MODE, 5);
+                write(frameIndex, 32);
+            } else
+            {
+                write(TABLE_QUANTIZATION_MODE, 5);
+            }
+
+            for(int column = 0; column < blockCount; column++)
+                encodeMacroBlock(pixels, width, slice, column);
+        }
+
+        align();
+        write(PICTURE_END, 22);
+        frameIndex++;
+        return finish();
+    }
+
+    private void encodeMacroBlock(int[] pixels, int width, int slice, int column)
+    {
+        int x0 = column << 4;
+        int y0 = slice << 4;
+
+        for(int y = 0; y < 16; y++)
+        {
+            int row = (y0 + y) * width + x0;
+            for(int x = 0; x < 16; x++)
+            {
+                int c = pixels[row + x];
+                int r = (c >> 16) & 0xFF;
+                int g = (c >> 8) & 0xFF;
+                int b = c & 0xFF;
+                blocks[(y >> 3) * 2 + (x >> 3)][(y & 7) * 8 + (x & 7)] = 0.299 * r + 0.587 * g + 0.114 * b;
+            }
+        }
+
+        for(int y = 0; y < 8; y++)
+        {
+            for(int x = 0; x < 8; x++)
+            {
+                double cb = 0;
+                double cr = 0;
+                for(int dy = 0; dy < 2; dy++)
+                {
+                    int row = (y0 + 2 * y + dy) * width + x0 + 2 * x;
+                    for(int dx = 0; dx < 2; dx++)
+                    {
+                        int c = pixels[row + dx];
+                        int r = (c >> 16) & 0xFF;
+                        int g = (c >> 8) & 0xFF;
+                        int b = c & 0xFF;
+                        cb += 128 - 0.168736 * r - 0.331264 * g + 0.5 * b;
+                        cr += 128 + 0.5 * r - 0.418688 * g - 0.081312 * b;
+                    }
+                }
+                blocks[4][y * 8 + x] = cb / 4;
+                blocks[5][y * 8 + x] = cr / 4;
+            }
+        }
+
+        int acFlags = 0;
+        for(int k = 0; k < 6; k++)
+        {
+            if(quantize(blocks[k], k * 64))
+                acFlags |= 1 << k;
+        }
+
+        if(emptyMacroBlocks && columnCoded[column] && Arrays.equals(levels, columnLevels[column]))
+        {
+            write(1, 1);
+            return;
+        }
+        System.arraycopy(levels, 0, columnLevels[column], 0, levels.length);
+        columnCoded[column] = true;
+
+        write(0, 1);
+        write(acFlags, 8);
+        for(int k = 0; k < 6; k++)
+        {
+            int offset = k * 64;
+            write(levels[offset], 10);
+            if((acFlags & (1 << k)) == 0)
+                continue;
+
+            int run = 0;
+            for(int i = 1; i < 64; i++)
+            {
+                int level = levels[offset + i];
+                if(level == 0)
+                {
+                    run++;
+                } else
+                {
+                    writeRun(run);
+                    writeLevel(level);
+                    run = 0;
+                }
+            }
+
+            // End of block
+            writeRun(0);
+            write(1, 2);
+        }
+    }
+
+    /**
+     * Transforms the block and stores its levels in zigzag order at the
+     * given offset of {@link #levels}.
+     *
+     * @return whether any AC level is not zero
+     */
+    private boolean quantize(double[] block, int offset)
+    {
+        // Rows, then columns
+        for(int y = 0; y < 8; y++)
+        {
+            for(int u = 0; u < 8; u++)
+            {
+                double s = 0;
+                for(int x = 0; x < 8; x++)
+                    s += COSINES[u * 8 + x] * block[y * 8 + x];
+                transform[y * 8 + u] = s;
+            }
+        }
+
+        boolean ac = false;
+        for(int i = 0; i < 64; i++)
+        {
+            int p = ZIGZAG_POSITIONS[i];
+            int u = p & 7;
+            int v = p >> 3;
+            double s = 0;
+            for(int y = 0; y < 8; y++)
+                s += COSINES[v * 8 + y] * transform[y * 8 + u];
+
+            if(i == 0)
+            {
+                levels[offset] = (int) Math.max(0, Math.min(MAX_DC, Math.round(s / QUANTIZER_VALUES[0])));
+            } else
+            {
+                int step = QUANTIZER_VALUES[p] * quantizerScale;
+                int level = (int) Math.round(s / step) * quantizerScale;
+                level = Math.max(-MAX_LEVEL, Math.min(MAX_LEVEL, level));
+                levels[offset + i] = level;
+                ac |= level != 0;
+            }
+        }
+        return ac;
+    }
+
+    private void writeRun(int run)
+    {
+        if(run == 0)
+        {
+            write(1, 1);
+        } else if(run == 1)
+        {
+            write(1, 2);
+        } else
+        {
+            int length = bitLength(run);
+            write(1, length + 1);
+            write(run - (1 << (length - 1)), length - 1);
+        }
+    }
+
+    private void writeLevel(int level)
+    {
+        int magnitude = Math.abs(level);
+        int sign = level < 0 ? 1 : 0;
+        if(magnitude == 1)
+        {
+            write(1, 1);
+        } else
+        {
+            int length = bitLength(magnitude);
+            write(1, length + 1);
+            write(magnitude - (1 << (length - 1)), length - 1);
+        }
+        write(sign, 1);
+    }
+
+    private static int bitLength(int value)
+    {
+        return 32 - Integer.numberOfLeadingZeros(value);
+    }
+
+    /**
+     * Appends the low <code>count</code> bits of the value, most significant
+     * first, into 32-bit words as {@link BitReader} reads them.
+     */
+    private void write(int value, int count)
+    {
+        if(count == 0)
+            return;
+
+        bits = (bits << count) | (value & (0xFFFFFFFFL >>> (32 - count)));
+        bitCount += count;
+        position += count;
+        if(bitCount >= 32)
+        {
+            bitCount -= 32;
+            if(wordCount == words.length)
+                words = Arrays.copyOf(words, wordCount * 2);
+            words[wordCount++] = (int) (bits >>> bitCount);
+        }
+    }
+
+    private void align()
+    {
+        int pad = (int) (-position & 7);
+        write(0, pad);
+    }
+
+    private ByteBuffer finish()
+    {
+        if(bitCount > 0)
+            write(0, 32 - bitCount);
+        // The reader may look one word ahead
+        write(0, 32);
+
+        ByteBuffer stream = ByteBuffer.allocate(wordCount * 4).order(ByteOrder.LITTLE_ENDIAN);
+        for(int i = 0; i < wordCount; i++)
+            stream.putInt(words[i]);
+        stream.clear();
+        return stream.order(ByteOrder.BIG_ENDIAN);
+    }
+}
@@ -0,0 +1,158 @@
+package com.codeminders.ardrone.video;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.codeminders.ardrone.video.BufferedVideoImage.PixelFormat;
+
+/**
+ * Decoded video frame. Frames handed out by a {@link VideoFramePool} are
+ * reference counted: whoever wants to keep a frame after the callback that
+ * delivered it returns has to call {@link #retain()}, and {@link #release()}
+ * once done with it. The pixel array goes back to the pool when the last
+ * reference is released and must not be touched afterwards.
+ */
+public class VideoFrame
+{
+    private final VideoFramePool pool;
+    private final int            width;
+    private final int            height;
+    private final int[]          pixels;
+    private final AtomicInteger  references = new AtomicInteger();
+
+    private int                  frameIndex;
+    private PixelFormat          pixelFormat;
+
+    private int                  validX;
+    private int                  validY;
+    private int                  validWidth;
+    private int                  validHeight;
+
+    private final boolean[]      dirtyMacroBlocks;
+
+    VideoFrame(VideoFramePool pool, int width, int height)
+    {
+        this.pool = pool;
+        this.width = width;
+        this.height = height;
+        this.pixels = new int[width * height];
+        this.dirtyMacroBlocks = new boolean[(width >> 4) * (height >> 4)];
+    }
+
+    public int getWidth()
+    {
+        return width;
+    }
+
+    public int getHeight()
+    {
+        return height;
+    }
+
+    /**
+     * Pixels in row-major order, width pixels per row.
+     */
+    public int[] getPixels()
+    {
+        return pixels;
+    }
+
+    public int getFrameIndex()
+    {
+        return frameIndex;
+    }
+
+    public PixelFormat getPixelFormat()
+    {
+        return pixelFormat;
+    }
+
+    /**
+     * Left edge of the part of the frame decoded from this picture. With a
+     * region of interest set on the decoder the pixels outside of the valid
+     * rectangle are left over from earlier frames.
+     */
+    public int getValidX()
+    {
+        return validX;
+    }
+
+    public int getValidY()
+    {
+        return validY;
+    }
+
+    public int getValidWidth()
+    {
+        return validWidth;
+    }
+
+    public int getValidHeight()
+    {
+        return validHeight;
+    }
+
+    /**
+     * Tells for each 16x16 macroblock, row by row, whether this frame changed
+     * its pixels. Only valid while the frame is held, like the pixels.
+     */
+    public boolean[] getDirtyMacroBlocks()
+    {
+        return dirtyMacroBlocks;
+    }
+
+    /**
+     * Tells if this frame changed the pixels of the macroblock in the given
+     * column and row of macroblocks.
+     */
+    public boolean isDirty(int column, int row)
+    {
+        return dirtyMacroBlocks[row * (width >> 4) + column];
+    }
+
+    public void retain()
+    {
+        references.incrementAndGet();
+    }
+
+    public void release()
+    {
+        int left = references.decrementAndGet();
+        if(left == 0)
+        {
+            if(pool != null)
+                pool.recycle(this);
+        } else if(left < 0)
+        {
+            references.incrementAndGet();
+            throw new IllegalStateException("Frame " + frameIndex + " released more times than retained");
+        }
+    }
+
+    void acquired()
+    {
+        references.set(1);
+    }
+
+    void setFrameIndex(int frameIndex)
+    {
+        this.frameIndex = frameIndex;
+    }
+
+    void setPixelFormat(PixelFormat pixelFormat)
+    {
+        this.pixelFormat = pixelFormat;
+    }
+
+    void setDirtyMacroBlocks(boolean[] dirty)
+    {
+        System.arraycopy(dirty, 0, dirtyMacroBlocks, 0, dirtyMacroBlocks.length);
+    }
+
+    void setValidRegion(int x, int y, int width, int height)
+    {
+        validX = x;
+        validY = y;
+        validWidth = width;
+        validHeight = height;
+    }
+}
@@ -0,0 +1,86 @@
+package com.codeminders.ardrone.video;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps a few released frames per resolution, so that switching the video
+ * channel between CIF and QVGA and back does not allocate new pixel arrays.
+ */
+public class VideoFramePool
+{
+    private static final int DEFAULT_FRAMES_PER_RESOLUTION = 3;
+
+    private static class Bucket
+    {
+        final int          width;
+        final int          height;
+        final VideoFrame[] free;
+        int                count;
+
+        Bucket(int width, int height, int capacity)
+        {
+            this.width = width;
+            this.height = height;
+            this.free = new VideoFrame[capacity];
+        }
+    }
+
+    private final int          framesPerResolution;
+    private final List<Bucket> buckets = new ArrayList<Bucket>();
+
+    public VideoFramePool()
+    {
+        this(DEFAULT_FRAMES_PER_RESOLUTION);
+    }
+
+    /**
+     * @param framesPerResolution - how many released frames are kept for each
+     *            resolution. Frames released when the pool is full are left to
+     *            the garbage collector.
+     */
+    public VideoFramePool(int framesPerResolution)
+    {
+        this.framesPerResolution = framesPerResolution;
+    }
+
+    /**
+     * Returns a frame of the given size holding one reference.
+     */
+    public synchronized VideoFrame acquire(int width, int height)
+    {
+        Bucket bucket = getBucket(width, height);
+        VideoFrame frame;
+        if(bucket.count > 0)
+        {
+            frame = bucket.free[--bucket.count];
+            bucket.free[bucket.count] = null;
+        } else
+        {
+            frame = new VideoFrame(this, width, height);
+        }
+        frame.acquired();
+        return frame;
+    }
+
+    synchronized void recycle(VideoFrame frame)
+    {
+        Bucket bucket = getBucket(frame.getWidth(), frame.getHeight());
+        if(bucket.count < bucket.free.length)
+            bucket.free[bucket.count++] = frame;
+    }
+
+    private Bucket getBucket(int width, int height)
+    {
+        for(int i = 0; i < buckets.size(); i++)
+        {
+            Bucket bucket = buckets.get(i);
+            if(bucket.width == width && bucket.height == height)
+                return bucket;
+        }
+
+        Bucket bucket = new Bucket(width, height, framesPerResolution);
+        buckets.add(bucket);
+        return bucket;
+    }
+}
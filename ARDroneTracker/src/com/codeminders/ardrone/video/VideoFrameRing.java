@@ -0,0 +1,429 @@
+package com.codeminders.ardrone.video;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.codeminders.ardrone.video.BufferedVideoImage.PixelFormat;
+
+/**
+ * Fixed ring of frame slots the decoder writes into directly, read by any
+ * number of consumers without copying. Every published frame gets the next
+ * sequence number and each consumer has a cursor telling which sequence it
+ * reads next, much like a disruptor. A slot is only written again once every
+ * consumer has moved past the frame in it; what happens when one has not is
+ * decided by the {@link LagPolicy}.
+ *
+ * A consumer keeps the slot it took until it takes the next one or calls
+ * {@link Consumer#release()}, and may read its pixels, or the
+ * {@link BufferedImage} sharing them, until then.
+ */
+public class VideoFrameRing
+{
+    /**
+     * What the decoder does when the slot it is about to write holds a frame
+     * a consumer has not finished with.
+     */
+    public enum LagPolicy
+    {
+        /**
+         * Wait for the slowest consumer. Every consumer sees every frame, at
+         * the cost of holding up the video reader.
+         */
+        BLOCK,
+
+        /**
+         * Consumers that have not got to the oldest frame lose it and the
+         * frames before it. Slots being read are left alone; the new frame is
+         * dropped only if every slot is being read.
+         */
+        DROP
+    }
+
+    private static final int     DEFAULT_SIZE = 4;
+
+    private final Slot[]         slots;
+    private final List<Consumer> consumers  = new ArrayList<Consumer>();
+    private volatile LagPolicy   policy;
+
+    /**
+     * Sequence of the last published frame, -1 before the first.
+     */
+    private long                 published  = -1;
+    private long                 dropped;
+
+    public VideoFrameRing()
+    {
+        this(DEFAULT_SIZE, LagPolicy.DROP);
+    }
+
+    public VideoFrameRing(int size, LagPolicy policy)
+    {
+        if(size < 2)
+            throw new IllegalArgumentException("A ring needs at least 2 slots, got " + size);
+
+        slots = new Slot[size];
+        for(int i = 0; i < size; i++)
+            slots[i] = new Slot();
+        this.policy = policy;
+    }
+
+    public int getSize()
+    {
+        return slots.length;
+    }
+
+    public LagPolicy getLagPolicy()
+    {
+        return policy;
+    }
+
+    public void setLagPolicy(LagPolicy policy)
+    {
+        synchronized(this)
+        {
+            this.policy = policy;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Adds a consumer starting at the next published frame.
+     *
+     * @param published run on the decoding thread each time a frame is
+     *            published, or null. It must return quickly, e.g. by
+     *            scheduling a repaint.
+     */
+    public synchronized Consumer addConsumer(Runnable published)
+    {
+        Consumer consumer = new Consumer(published);
+        consumers.add(consumer);
+        return consumer;
+    }
+
+    public synchronized void removeConsumer(Consumer consumer)
+    {
+        consumer.held = null;
+        consumers.remove(consumer);
+        notifyAll();
+    }
+
+    public synchronized boolean hasConsumers()
+    {
+        return !consumers.isEmpty();
+    }
+
+    public synchronized long getPublishedSequence()
+    {
+        return published;
+    }
+
+    /**
+     * Number of decoded frames that were not published because there was no
+     * slot to put them in.
+     */
+    public synchronized long getDroppedFrames()
+    {
+        return dropped;
+    }
+
+    /**
+     * Returns the slot for the next frame, sized for the given picture, or
+     * null if the frame has to be dropped. A slot that is not published
+     * is claimed again for the next frame.
+     */
+    synchronized Slot claim(int width, int height)
+    {
+        Slot slot;
+        while((slot = findFreeSlot()) == null)
+        {
+            if(policy == LagPolicy.DROP)
+            {
+                dropped++;
+                return null;
+            }
+
+            try
+            {
+                wait();
+            } catch(InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                dropped++;
+                return null;
+            }
+        }
+
+        slot.sequence = -1;
+        slot.setSize(width, height);
+        return slot;
+    }
+
+    /**
+     * Returns the slot holding the oldest frame no consumer is reading, and
+     * with the BLOCK policy no consumer still has to read. With the DROP
+     * policy consumers that have not got to that frame yet are moved past
+     * it. Returns null if there is no such slot.
+     */
+    private Slot findFreeSlot()
+    {
+        Slot oldest = null;
+        for(int i = 0; i < slots.length; i++)
+        {
+            Slot slot = slots[i];
+            if(!isHeld(slot) && (oldest == null || slot.sequence < oldest.sequence))
+                oldest = slot;
+        }
+
+        if(oldest == null || oldest.sequence < 0)
+            return oldest;
+
+        for(int i = 0; i < consumers.size(); i++)
+        {
+            Consumer consumer = consumers.get(i);
+            if(consumer.next <= oldest.sequence)
+            {
+                if(policy == LagPolicy.BLOCK)
+                    return null;
+
+                consumer.dropped += oldest.sequence + 1 - consumer.next;
+                consumer.next = oldest.sequence + 1;
+            }
+        }
+
+        return oldest;
+    }
+
+    private boolean isHeld(Slot slot)
+    {
+        for(int i = 0; i < consumers.size(); i++)
+        {
+            if(consumers.get(i).held == slot)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the slot holding the given published frame.
+     */
+    private Slot getSlot(long sequence)
+    {
+        for(int i = 0; i < slots.length; i++)
+        {
+            if(slots[i].sequence == sequence)
+                return slots[i];
+        }
+        throw new IllegalStateException("Frame " + sequence + " is no longer in the ring");
+    }
+
+    void publish(Slot slot, int frameIndex, PixelFormat pixelFormat)
+    {
+        Runnable[] notify;
+        synchronized(this)
+        {
+            slot.frameIndex = frameIndex;
+            slot.pixelFormat = pixelFormat;
+            slot.sequence = ++published;
+            notifyAll();
+
+            notify = new Runnable[consumers.size()];
+            for(int i = 0; i < notify.length; i++)
+                notify[i] = consumers.get(i).published;
+        }
+
+        for(int i = 0; i < notify.length; i++)
+        {
+            if(notify[i] != null)
+                notify[i].run();
+        }
+    }
+
+    /**
+     * One frame of the ring. The pixel array and the image sharing it are
+     * reused for later frames of the same size.
+     */
+    public static final class Slot
+    {
+        private long          sequence = -1;
+        private int           width;
+        private int           height;
+        private int[]         pixels;
+        private BufferedImage image;
+        private int           frameIndex;
+        private PixelFormat   pixelFormat;
+
+        private void setSize(int width, int height)
+        {
+            if(pixels != null && this.width == width && this.height == height)
+                return;
+
+            this.width = width;
+            this.height = height;
+            pixels = new int[width * height];
+
+            // TYPE_INT_RGB layout over our own array, so nothing is copied
+            DirectColorModel model = new DirectColorModel(24, 0xFF0000, 0xFF00, 0xFF);
+            WritableRaster raster = Raster.createPackedRaster(new DataBufferInt(pixels, pixels.length), width,
+                    height, width, model.getMasks(), null);
+            image = new BufferedImage(model, raster, false, null);
+        }
+
+        public long getSequence()
+        {
+            return sequence;
+        }
+
+        public int getWidth()
+        {
+            return width;
+        }
+
+        public int getHeight()
+        {
+            return height;
+        }
+
+        public int[] getPixels()
+        {
+            return pixels;
+        }
+
+        /**
+         * The pixels as an image, without copying them. Colours are only
+         * exact for {@link PixelFormat#ARGB8888}; RGB565 pixels come out
+         * slightly dark as they always did.
+         */
+        public BufferedImage getImage()
+        {
+            return image;
+        }
+
+        public int getFrameIndex()
+        {
+            return frameIndex;
+        }
+
+        public PixelFormat getPixelFormat()
+        {
+            return pixelFormat;
+        }
+    }
+
+    /**
+     * Reads the frames of the ring in order with its own cursor.
+     */
+    public final class Consumer
+    {
+        private final Runnable published;
+        private long           next = VideoFrameRing.this.published + 1;
+        private Slot           held;
+        private long           dropped;
+
+        private Consumer(Runnable published)
+        {
+            this.published = published;
+        }
+
+        /**
+         * Gives back the slot taken last and waits for the next frame.
+         */
+        public Slot take() throws InterruptedException
+        {
+            synchronized(VideoFrameRing.this)
+            {
+                release();
+                while(next > VideoFrameRing.this.published)
+                    VideoFrameRing.this.wait();
+                return hold(next);
+            }
+        }
+
+        /**
+         * Gives back the slot taken last, waits for a frame and returns the
+         * newest one, skipping older ones. For consumers that only act on
+         * the latest picture and would otherwise fall behind.
+         */
+        public Slot takeLatest() throws InterruptedException
+        {
+            synchronized(VideoFrameRing.this)
+            {
+                release();
+                while(next > VideoFrameRing.this.published)
+                    VideoFrameRing.this.wait();
+
+                long latest = VideoFrameRing.this.published;
+                dropped += latest - next;
+                return hold(latest);
+            }
+        }
+
+        /**
+         * Gives back the slot taken last and returns the newest frame,
+         * skipping older ones, or null if nothing was published since the
+         * last call. Does not wait.
+         */
+        public Slot pollLatest()
+        {
+            synchronized(VideoFrameRing.this)
+            {
+                long latest = VideoFrameRing.this.published;
+                if(next > latest)
+                    return null;
+
+                release();
+                dropped += latest - next;
+                return hold(latest);
+            }
+        }
+
+        /**
+         * Gives back the slot taken last, if any.
+         */
+        public void release()
+        {
+            synchronized(VideoFrameRing.this)
+            {
+                if(held != null)
+                {
+                    held = null;
+                    VideoFrameRing.this.notifyAll();
+                }
+            }
+        }
+
+        private Slot hold(long sequence)
+        {
+            held = getSlot(sequence);
+            next = sequence + 1;
+            return held;
+        }
+
+        /**
+         * Number of frames this consumer never got, because the ring moved
+         * past them or a newer frame was taken instead.
+         */
+        public long getDroppedFrames()
+        {
+            synchronized(VideoFrameRing.this)
+            {
+                return dropped;
+            }
+        }
+
+        /**
+         * Number of published frames this consumer has not taken yet.
+         */
+        public long getLag()
+        {
+            synchronized(VideoFrameRing.this)
+            {
+                return VideoFrameRing.this.published + 1 - next;
+            }
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package com.codeminders.ardrone.video;
+
+/**
+ * Gets the pixels of a picture slice by slice while it is being decoded, so
+ * work on the top of the image can start before the bottom has arrived.
+ */
+public interface VideoSliceListener
+{
+    /**
+     * Rows <code>firstRow</code> up to, but not including,
+     * <code>endRow</code> of the picture are final. Rows further down may
+     * still hold an earlier frame. <code>pixels</code> is null when colour
+     * output is off and <code>luma</code> when luma output is off; both are
+     * only valid during this call.
+     */
+    void sliceDecoded(int frameIndex, int slice, int firstRow, int endRow, int width, int[] pixels, byte[] luma);
+}
@@ -0,0 +1,243 @@
+package com.codeminders.ardrone.vision;
+
+/**
+ * A binary image packed 64 pixels to a long, each row starting on a word of
+ * its own. Pixel x of a row is bit x % 64 of word x / 64, so the leftmost
+ * pixel of a word is its lowest bit. Bits past the width are always clear.
+ *
+ * Where neighbourhoods reach past the edge of the mask, the nearest pixel on
+ * the edge stands in for the pixels outside.
+ */
+public class BitMask
+{
+    private final int    width;
+    private final int    height;
+    private final int    stride;
+    private final long[] words;
+
+    /**
+     * Bits of the last word of a row that are pixels.
+     */
+    private final long   last_mask;
+
+    /**
+     * The row above, kept back while dilating or eroding in place.
+     */
+    private final long[] scratch;
+
+    public BitMask(int width, int height)
+    {
+        if(width <= 0 || height <= 0)
+            throw new IllegalArgumentException("Bad mask size " + width + "x" + height);
+
+        this.width = width;
+        this.height = height;
+        stride = (width + 63) >>> 6;
+        words = new long[stride * height];
+        last_mask = -1L >>> (64 * stride - width);
+        scratch = new long[stride];
+    }
+
+    public int getWidth()
+    {
+        return width;
+    }
+
+    public int getHeight()
+    {
+        return height;
+    }
+
+    /**
+     * Words per row.
+     */
+    public int getStride()
+    {
+        return stride;
+    }
+
+    /**
+     * The words of all rows, one row after the other, for filling the mask
+     * a word at a time.
+     */
+    public long[] getWords()
+    {
+        return words;
+    }
+
+    public void clear()
+    {
+        for(int i = 0; i < words.length; i++)
+            words[i] = 0;
+    }
+
+    public boolean get(int x, int y)
+    {
+        return (words[y * stride + (x >>> 6)] & (1L << x)) != 0;
+    }
+
+    public void set(int x, int y)
+    {
+        words[y * stride + (x >>> 6)] |= 1L << x;
+    }
+
+    /**
+     * Number of set pixels from x0 to x1 of row y, both included.
+     */
+    public int countRow(int y, int x0, int x1)
+    {
+        int row = Math.max(0, Math.min(height - 1, y)) * stride;
+
+        // Spans of up to 64 pixels inside the mask are one or two words
+        if(x0 >= 0 && x1 < width && x1 - x0 < 64)
+        {
+            int first = row + (x0 >>> 6);
+            long bits = words[first] >>> x0;
+            if((x0 & 63) != 0 && (x1 >>> 6) != (x0 >>> 6))
+                bits |= words[first + 1] << -x0;
+            return Long.bitCount(bits & (-1L >>> (63 - (x1 - x0))));
+        }
+        return countLongRow(row, x0, x1);
+    }
+
+    private int countLongRow(int row, int x0, int x1)
+    {
+        int count = 0;
+        if(x0 < 0)
+        {
+            if((words[row] & 1) != 0)
+                count += Math.min(x1 + 1, 0) - x0;
+            x0 = 0;
+        }
+        if(x1 >= width)
+        {
+            if((words[row + stride - 1] & (1L << (width - 1))) != 0)
+                count += x1 - Math.max(x0 - 1, width - 1);
+            x1 = width - 1;
+        }
+        if(x0 > x1)
+            return count;
+
+        int first = x0 >>> 6;
+        int last = x1 >>> 6;
+        long head = -1L << x0;
+        long tail = -1L >>> (63 - (x1 & 63));
+        if(first == last)
+            return count + Long.bitCount(words[row + first] & head & tail);
+
+        count += Long.bitCount(words[row + first] & head);
+        for(int w = first + 1; w < last; w++)
+            count += Long.bitCount(words[row + w]);
+        return count + Long.bitCount(words[row + last] & tail);
+    }
+
+    /**
+     * Number of set pixels.
+     */
+    public int count()
+    {
+        int count = 0;
+        for(long w : words)
+            count += Long.bitCount(w);
+        return count;
+    }
+
+    /**
+     * Sum of the x coordinates of the set pixels; with {@link #sumY()} and
+     * {@link #count()} their centroid.
+     */
+    public long sumX()
+    {
+        long sum = 0;
+        for(int y = 0; y < height; y++)
+        {
+            int row = y * stride;
+            for(int w = 0; w < stride; w++)
+            {
+                for(long bits = words[row + w]; bits != 0; bits &= bits - 1)
+                    sum += (w << 6) + Long.numberOfTrailingZeros(bits);
+            }
+        }
+        return sum;
+    }
+
+    public long sumY()
+    {
+        long sum = 0;
+        for(int y = 0; y < height; y++)
+        {
+            int row = y * stride;
+            int count = 0;
+            for(int w = 0; w < stride; w++)
+                count += Long.bitCount(words[row + w]);
+            sum += (long) y * count;
+        }
+        return sum;
+    }
+
+    /**
+     * Sets every pixel with a set pixel among its eight neighbours. out may
+     * be this mask.
+     */
+    public void dilate(BitMask out)
+    {
+        morph(out, false);
+    }
+
+    /**
+     * Clears every pixel with a clear pixel among its eight neighbours. out
+     * may be this mask.
+     */
+    public void erode(BitMask out)
+    {
+        morph(out, true);
+    }
+
+    private void morph(BitMask out, boolean erode)
+    {
+        if(out.width != width || out.height != height)
+            throw new IllegalArgumentException("Masks differ in size");
+
+        // Edge pixels are their own neighbours outside the mask, which comes
+        // down to outside pixels being clear for dilating and set for eroding
+        long outside = erode ? -1L : 0L;
+        long[] dst = out.words;
+
+        // Each pixel combined with its left and right neighbours
+        for(int y = 0; y < height; y++)
+        {
+            int row = y * stride;
+            long prev = outside;
+            long w = words[row];
+            for(int i = 0; i < stride; i++)
+            {
+                long next = i + 1 < stride ? words[row + i + 1] : outside;
+                long cur = w;
+                if(i + 1 == stride && erode)
+                    cur |= ~last_mask;
+                long left = (cur << 1) | (prev >>> 63);
+                long right = (cur >>> 1) | (next << 63);
+                dst[row + i] = erode ? cur & left & right : cur | left | right;
+                prev = cur;
+                w = next;
+            }
+        }
+
+        // Then with the rows above and below
+        long[] above = scratch;
+        for(int i = 0; i < stride; i++)
+            above[i] = outside;
+        for(int y = 0; y < height; y++)
+        {
+            int row = y * stride;
+            for(int i = 0; i < stride; i++)
+            {
+                long cur = dst[row + i];
+                long below = y + 1 < height ? dst[row + stride + i] : outside;
+                long v = erode ? above[i] & cur & below : above[i] | cur | below;
+                above[i] = cur;
+                dst[row + i] = i + 1 == stride ? v & last_mask : v;
+            }
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package com.codeminders.ardrone.vision;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.codeminders.ardrone.video.BufferedVideoImage.PixelFormat;
+import com.codeminders.ardrone.video.VideoFrameRing;
+
+/**
+ * Finds a blob of one colour in video frames: the pixels close to the
+ * target colour are counted in a disc around every pixel, counts below a
+ * share of the disc are dropped, and the rest weighs the target's centre.
+ * The steps are the stages of a {@link VisionPipeline}, which can be changed
+ * with {@link #setStages(String)}.
+ *
+ * Frames are processed on one thread at a time, e.g. a ring consumer's.
+ * Each frame's result is published as a {@link TargetObservation} that any
+ * thread can pick up with {@link #getObservation()}. Trackers share nothing,
+ * so there can be one per target colour or per drone.
+ */
+public class ColorBlobTracker
+{
+    public static final int                          DEFAULT_TARGET    = (115 << 16) | (49 << 8) | 75;
+    public static final double                       DEFAULT_THRESHOLD = 0.07;
+
+    /**
+     * Share of the disc that has to match for a pixel to count.
+     */
+    public static final double                       DEFAULT_MIN_SHARE = 0.1;
+    public static final int                          DEFAULT_RADIUS    = 10;
+    public static final String                       DEFAULT_STAGES    = "classify,filter,locate";
+
+    private final AtomicReference<TargetObservation> observation       = new AtomicReference<TargetObservation>(
+                                                                               TargetObservation.NONE);
+
+    // Settings, picked up from the next frame on
+    private int                                      target;
+    private double                                   threshold;
+    private double                                   min_share         = DEFAULT_MIN_SHARE;
+    private int                                      radius            = DEFAULT_RADIUS;
+    private DiscFilter.Shape                         shape             = DiscFilter.Shape.OCTAGON;
+
+    // Built from the target; null once it changes
+    private ColorClassifier                          classifier;
+
+    private final VisionPipeline                     pipeline          = new VisionPipeline(DEFAULT_STAGES);
+
+    /**
+     * The frame being processed, with the buffers of the processing thread.
+     */
+    private final VisionFrame                        frame             = new VisionFrame();
+
+    public ColorBlobTracker()
+    {
+        this(DEFAULT_TARGET, DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * @param target colour, 0xRRGGBB
+     * @param threshold distance to the target colour, with the RGB cube
+     *            scaled to 1, pixels have to be under
+     */
+    public ColorBlobTracker(int target, double threshold)
+    {
+        this.target = target;
+        this.threshold = threshold;
+    }
+
+    public synchronized void setTarget(int target, double threshold)
+    {
+        this.target = target;
+        this.threshold = threshold;
+        classifier = null;
+    }
+
+    public synchronized int getTarget()
+    {
+        return target;
+    }
+
+    public synchronized void setMinimumShare(double share)
+    {
+        min_share = share;
+    }
+
+    /**
+     * Radius and shape of the disc matching pixels are counted in, DISC
+     * being exact. A filter stage given a shape of its own keeps it.
+     */
+    public synchronized void setFilter(int radius, DiscFilter.Shape shape)
+    {
+        this.radius = radius;
+        this.shape = shape;
+    }
+
+    /**
+     * Replaces the stages frames go through, a comma separated list of
+     * names as taken by {@link VisionStages#create(String)}.
+     *
+     * @throws IllegalArgumentException for a stage there is none of
+     */
+    public void setStages(String stages)
+    {
+        pipeline.setStages(stages);
+    }
+
+    /**
+     * The pipeline, for its stages and their timings.
+     */
+    public VisionPipeline getPipeline()
+    {
+        return pipeline;
+    }
+
+    /**
+     * The result of the last frame processed.
+     */
+    public TargetObservation getObservation()
+    {
+        return observation.get();
+    }
+
+    /**
+     * Looks for the target in a ring slot and publishes the result.
+     */
+    public TargetObservation process(VideoFrameRing.Slot frame)
+    {
+        return process(frame.getPixels(), frame.getWidth(), frame.getHeight(), frame.getPixelFormat(),
+                frame.getFrameIndex());
+    }
+
+    public TargetObservation process(int[] pixels, int width, int height, PixelFormat format, int frameIndex)
+    {
+        long start = System.nanoTime();
+
+        VisionFrame f = frame;
+        f.setFrame(pixels, width, height, format, frameIndex);
+        synchronized(this)
+        {
+            if(classifier == null || classifier.getPixelFormat() != format)
+            {
+                classifier = new ColorClassifier(format);
+                classifier.addClass(target, threshold);
+            }
+            f.classifier = classifier;
+            f.radius = radius;
+            f.shape = shape;
+            f.minShare = min_share;
+        }
+
+        pipeline.run(f);
+
+        TargetObservation o = new TargetObservation(f.x, f.y, f.extent, f.found, frameIndex, start,
+                System.nanoTime());
+        observation.set(o);
+        return o;
+    }
+
+    /**
+     * The last frame processed, with what the stages made of it. Only for
+     * the processing thread, and overwritten by the next frame.
+     */
+    public VisionFrame getFrame()
+    {
+        return frame;
+    }
+}
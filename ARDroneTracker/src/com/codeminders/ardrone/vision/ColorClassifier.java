@@ -0,0 +1,245 @@
+package com.codeminders.ardrone.vision;
+
+import com.codeminders.ardrone.video.BufferedVideoImage.PixelFormat;
+
+/**
+ * Tells which of up to {@link #MAX_CLASSES} target colours a decoded pixel
+ * is close to, with one table lookup. A pixel matches a class when its
+ * distance to the class colour, over the RGB cube scaled to 1, is below the
+ * class threshold; the result has bit n set for every class n it matches.
+ *
+ * The table has an entry per 5 significant bits of each channel, 32K in
+ * all, and is rebuilt whenever a class changes. An entry holds the classes
+ * all pixels that fall into it match, and the classes only some of them do,
+ * for which those pixels are tested exactly. Only colours near a target's
+ * threshold are, and the results are the same as testing every pixel.
+ */
+public class ColorClassifier
+{
+    public static final int   MAX_CLASSES = 8;
+
+    private static final int  BITS        = 5;
+    private static final int  LEVELS      = 1 << BITS;
+
+    private final PixelFormat format;
+
+    /**
+     * How far the 5 bits of a channel are shifted up in a pixel byte.
+     */
+    private final int         shift;
+
+    private final int[]       colors      = new int[MAX_CLASSES];
+    private final double[]    thresholds  = new double[MAX_CLASSES];
+    private int               classes;
+
+    private volatile Table    table       = new Table(new byte[2 * LEVELS * LEVELS * LEVELS], new double[0]);
+
+    /**
+     * The lookup table, with pairs of the class bits matched by the whole
+     * entry and by part of it, and the classes the table was built for.
+     */
+    private static final class Table
+    {
+        final byte[]   entries;
+
+        /**
+         * Red, green and blue in 0 to 1 and the threshold of each class.
+         */
+        final double[] classes;
+
+        Table(byte[] entries, double[] classes)
+        {
+            this.entries = entries;
+            this.classes = classes;
+        }
+    }
+
+    public ColorClassifier(PixelFormat format)
+    {
+        this.format = format;
+        shift = format == PixelFormat.RGB565 ? 2 : 3;
+    }
+
+    public PixelFormat getPixelFormat()
+    {
+        return format;
+    }
+
+    /**
+     * Adds a target colour, 0xRRGGBB, returning its class number.
+     */
+    public synchronized int addClass(int rgb, double threshold)
+    {
+        if(classes == MAX_CLASSES)
+            throw new IllegalStateException("No more than " + MAX_CLASSES + " classes");
+
+        int n = classes++;
+        setClass(n, rgb, threshold);
+        return n;
+    }
+
+    /**
+     * Changes the target colour, 0xRRGGBB, and threshold of a class.
+     */
+    public synchronized void setClass(int n, int rgb, double threshold)
+    {
+        if(n < 0 || n >= classes)
+            throw new IllegalArgumentException("No class " + n);
+
+        colors[n] = rgb & 0xFFFFFF;
+        thresholds[n] = threshold;
+        rebuild();
+    }
+
+    public synchronized int getClassCount()
+    {
+        return classes;
+    }
+
+    private void rebuild()
+    {
+        // Lowest and highest byte value the pixels of an entry can have
+        int[] low = new int[LEVELS];
+        int[] high = new int[LEVELS];
+        int[] green_high = new int[LEVELS];
+        for(int q = 0; q < LEVELS; q++)
+        {
+            low[q] = q << shift;
+            if(format == PixelFormat.RGB565)
+            {
+                // Red and blue carry 5 bits, green 6 shifted up one less
+                high[q] = low[q];
+                green_high[q] = low[q] + 2;
+            } else
+            {
+                high[q] = low[q] + (1 << shift) - 1;
+                green_high[q] = high[q];
+            }
+        }
+
+        // Squared distances in pixel byte units, compared as
+        // sqrt(d2 / 255^2) / sqrt(3) < threshold
+        double[] limits = new double[classes];
+        double[] targets = new double[4 * classes];
+        for(int n = 0; n < classes; n++)
+        {
+            limits[n] = thresholds[n] * thresholds[n] * 3 * 255 * 255;
+            targets[4 * n] = ((colors[n] >> 16) & 0xFF) / 255.0;
+            targets[4 * n + 1] = ((colors[n] >> 8) & 0xFF) / 255.0;
+            targets[4 * n + 2] = (colors[n] & 0xFF) / 255.0;
+            targets[4 * n + 3] = thresholds[n];
+        }
+
+        byte[] entries = new byte[2 * LEVELS * LEVELS * LEVELS];
+        for(int r = 0; r < LEVELS; r++)
+        {
+            for(int g = 0; g < LEVELS; g++)
+            {
+                for(int b = 0; b < LEVELS; b++)
+                {
+                    int all = 0;
+                    int some = 0;
+                    for(int n = 0; n < classes; n++)
+                    {
+                        int tr = (colors[n] >> 16) & 0xFF;
+                        int tg = (colors[n] >> 8) & 0xFF;
+                        int tb = colors[n] & 0xFF;
+                        double near = sq(nearest(tr, low[r], high[r])) + sq(nearest(tg, low[g], green_high[g]))
+                                + sq(nearest(tb, low[b], high[b]));
+                        double far = sq(farthest(tr, low[r], high[r])) + sq(farthest(tg, low[g], green_high[g]))
+                                + sq(farthest(tb, low[b], high[b]));
+                        if(far < limits[n] - 1)
+                            all |= 1 << n;
+                        else if(near < limits[n] + 1)
+                            some |= 1 << n;
+                    }
+                    int i = (r << (2 * BITS)) | (g << BITS) | b;
+                    entries[2 * i] = (byte) all;
+                    entries[2 * i + 1] = (byte) some;
+                }
+            }
+        }
+        table = new Table(entries, targets);
+    }
+
+    private static double sq(double x)
+    {
+        return x * x;
+    }
+
+    /**
+     * Distance from v to the closest and the farthest value in low to high.
+     */
+    private static int nearest(int v, int low, int high)
+    {
+        return v < low ? low - v : v > high ? v - high : 0;
+    }
+
+    private static int farthest(int v, int low, int high)
+    {
+        return Math.max(Math.abs(v - low), Math.abs(v - high));
+    }
+
+    /**
+     * The classes of some that a pixel matches, tested the way the tracker
+     * always has.
+     */
+    private static int test(int pixel, int some, double[] classes)
+    {
+        double r = ((pixel >> 16) & 0xFF) / 255.0;
+        double g = ((pixel >> 8) & 0xFF) / 255.0;
+        double b = (pixel & 0xFF) / 255.0;
+
+        int bits = 0;
+        for(int n = 0; some != 0; n++, some >>>= 1)
+        {
+            if((some & 1) == 0)
+                continue;
+
+            int c = 4 * n;
+            double diff = Math.sqrt(sq(r - classes[c]) + sq(g - classes[c + 1]) + sq(b - classes[c + 2]))
+                    / Math.sqrt(3.0);
+            if(diff < classes[c + 3])
+                bits |= 1 << n;
+        }
+        return bits;
+    }
+
+    /**
+     * The classes a pixel of the decoder's output matches, as bits.
+     */
+    public int classify(int pixel)
+    {
+        Table t = table;
+        int i = 2 * index(pixel);
+        int bits = t.entries[i] & 0xFF;
+        int some = t.entries[i + 1] & 0xFF;
+        return some == 0 ? bits : bits | test(pixel, some, t.classes);
+    }
+
+    private int index(int pixel)
+    {
+        int s = shift;
+        return ((pixel >> (16 + s)) & (LEVELS - 1)) << (2 * BITS) | ((pixel >> (8 + s)) & (LEVELS - 1)) << BITS
+                | ((pixel >> s) & (LEVELS - 1));
+    }
+
+    /**
+     * Classifies count pixels from offset on into classes, one byte of
+     * class bits per pixel.
+     */
+    public void classify(int[] pixels, int offset, int count, byte[] classes)
+    {
+        Table t = table;
+        byte[] entries = t.entries;
+        int s = shift;
+        int mask = LEVELS - 1;
+        for(int i = 0; i < count; i++)
+        {
+            int p = pixels[offset + i];
+            int e = 2 * (((p >> (16 + s)) & mask) << (2 * BITS) | ((p >> (8 + s)) & mask) << BITS | ((p >> s) & mask));
+            int some = entries[e + 1] & 0xFF;
+            classes[i] = (byte) (some == 0 ? entries[e] : entries[e] | test(p, some, t.classes));
+        }
+    }
+}
@@ -0,0 +1,331 @@
+package com.codeminders.ardrone.vision;
+
+/**
+ * Counts the set pixels of a mask in a disc around every pixel, the way the
+ * target detection smooths the pixels that matched the target colour. Pixels
+ * outside the image repeat the nearest border pixel.
+ *
+ * The mask is padded and summed once per frame into integral tables, after
+ * which {@link Shape#BOX} and {@link Shape#OCTAGON} cost the same few table
+ * lookups per pixel whatever the radius. {@link Shape#DISC} is the exact
+ * disc, one lookup per row of it, and gives the results of the original
+ * convolution.
+ */
+public class DiscFilter
+{
+    public enum Shape
+    {
+        /**
+         * The square around the disc.
+         */
+        BOX,
+
+        /**
+         * The square with its corners cut off at 45 degrees, as close to the
+         * disc's area as it gets.
+         */
+        OCTAGON,
+
+        /**
+         * The pixels at most the radius away from the centre.
+         */
+        DISC
+    }
+
+    private final int   width;
+    private final int   height;
+    private final int   radius;
+    private final Shape shape;
+
+    /**
+     * Size of the padded mask, and of a table row, which starts with an
+     * empty column.
+     */
+    private final int   padded_width;
+    private final int   padded_height;
+    private final int   stride;
+
+    /**
+     * Octagon: |x| + |y| <= diagonal, and half the height of its middle band
+     * of full rows.
+     */
+    private final int   diagonal;
+    private final int   band;
+
+    /**
+     * Disc: half the width of each of its rows.
+     */
+    private final int[] spans;
+
+    /**
+     * Pixels in the shape.
+     */
+    private final int   area;
+
+    /**
+     * The tables start with an empty row, and only the octagon needs all of
+     * them. rows sums each padded row up to a column, sums the rectangle
+     * above and left of it, and left and right add up the row sums up
+     * diagonally towards the upper left and upper right respectively.
+     */
+    private final int[] rows;
+    private final int[] sums;
+    private final int[] left;
+    private final int[] right;
+
+    public DiscFilter(int width, int height, int radius, Shape shape)
+    {
+        if(width <= 0 || height <= 0 || radius < 0)
+            throw new IllegalArgumentException("Bad filter size " + width + "x" + height + ", radius " + radius);
+        if((2 * radius + 1) * (2 * radius + 1) > Short.MAX_VALUE)
+            throw new IllegalArgumentException("Counts over a radius of " + radius + " do not fit in a short");
+
+        this.width = width;
+        this.height = height;
+        this.radius = radius;
+        this.shape = shape;
+
+        padded_width = width + 2 * radius;
+        padded_height = height + 2 * radius;
+        stride = padded_width + 1;
+
+        spans = new int[2 * radius + 1];
+        int disc_area = 0;
+        for(int dy = -radius; dy <= radius; dy++)
+        {
+            int w = 0;
+            while((w + 1) * (w + 1) + dy * dy <= radius * radius)
+                w++;
+            spans[dy + radius] = w;
+            disc_area += 2 * w + 1;
+        }
+
+        // The diagonal cut that leaves the octagon closest to the disc
+        int best = 2 * radius;
+        for(int d = 2 * radius - 1; d >= radius; d--)
+        {
+            if(Math.abs(octagonArea(radius, d) - disc_area) < Math.abs(octagonArea(radius, best) - disc_area))
+                best = d;
+        }
+        diagonal = best;
+        band = diagonal - radius;
+
+        switch(shape)
+        {
+        case BOX:
+            area = (2 * radius + 1) * (2 * radius + 1);
+            break;
+        case OCTAGON:
+            area = octagonArea(radius, diagonal);
+            break;
+        default:
+            area = disc_area;
+            break;
+        }
+
+        int size = (padded_height + 1) * stride;
+        rows = new int[size];
+        sums = shape == Shape.DISC ? null : new int[size];
+        left = shape == Shape.OCTAGON ? new int[size] : null;
+        right = shape == Shape.OCTAGON ? new int[size] : null;
+    }
+
+    private static int octagonArea(int radius, int diagonal)
+    {
+        int area = 0;
+        for(int dy = -radius; dy <= radius; dy++)
+            for(int dx = -radius; dx <= radius; dx++)
+                if(Math.abs(dx) + Math.abs(dy) <= diagonal)
+                    area++;
+        return area;
+    }
+
+    public Shape getShape()
+    {
+        return shape;
+    }
+
+    /**
+     * Number of pixels averaged over.
+     */
+    public int getArea()
+    {
+        return area;
+    }
+
+    /**
+     * The smallest count whose share of the area is at least the threshold.
+     */
+    public int getMinimumCount(double threshold)
+    {
+        int min = 0;
+        while(min <= area && min / (double) area < threshold)
+            min++;
+        return min;
+    }
+
+    /**
+     * Fills out, row after row, with the number of set mask pixels in the
+     * shape around each pixel, or 0 where their share of the area is below
+     * the threshold.
+     */
+    public void filter(BitMask mask, short[] out, double threshold)
+    {
+        if(mask.getWidth() != width || mask.getHeight() != height)
+            throw new IllegalArgumentException("Mask is " + mask.getWidth() + "x" + mask.getHeight() + ", not "
+                    + width + "x" + height);
+
+        int min = getMinimumCount(threshold);
+        switch(shape)
+        {
+        case BOX:
+            sumRows(mask);
+            sumRectangles();
+            filterBox(out, min);
+            break;
+        case OCTAGON:
+            sumRows(mask);
+            sumRectangles();
+            sumDiagonals();
+            filterOctagon(out, min);
+            break;
+        default:
+            sumRows(mask);
+            filterDisc(out, min);
+            break;
+        }
+    }
+
+    private void sumRows(BitMask mask)
+    {
+        long[] words = mask.getWords();
+        int mask_stride = mask.getStride();
+        for(int y = 0; y < padded_height; y++)
+        {
+            int src = Math.max(0, Math.min(height - 1, y - radius)) * mask_stride;
+            int row = (y + 1) * stride;
+            int sum = 0;
+            int x = 0;
+
+            int edge = (int) words[src] & 1;
+            for(; x < radius; x++)
+                rows[row + x + 1] = sum += edge;
+            for(int w = 0; w < mask_stride; w++)
+            {
+                long bits = words[src + w];
+                int end = Math.min(64, width - (w << 6));
+                if(bits == 0)
+                {
+                    // Most of the mask is empty
+                    for(int b = 0; b < end; b++, x++)
+                        rows[row + x + 1] = sum;
+                    continue;
+                }
+                for(int b = 0; b < end; b++, x++)
+                {
+                    sum += (int) (bits >>> b) & 1;
+                    rows[row + x + 1] = sum;
+                }
+            }
+            edge = (int) (words[src + mask_stride - 1] >>> (width - 1)) & 1;
+            for(; x < padded_width; x++)
+                rows[row + x + 1] = sum += edge;
+        }
+    }
+
+    private void sumRectangles()
+    {
+        for(int p = stride; p < rows.length; p++)
+            sums[p] = sums[p - stride] + rows[p];
+    }
+
+    private void sumDiagonals()
+    {
+        for(int y = 1; y <= padded_height; y++)
+        {
+            int row = y * stride;
+            int above = row - stride;
+
+            right[row] = rows[row];
+            for(int x = 1; x <= padded_width; x++)
+                right[row + x] = rows[row + x] + right[above + x - 1];
+
+            // Beyond the last column a row sum stays the whole row's
+            for(int x = 0; x < padded_width; x++)
+                left[row + x] = rows[row + x] + left[above + x + 1];
+            left[row + padded_width] = rows[row + padded_width] + left[above + padded_width];
+        }
+    }
+
+
+    private void filterBox(short[] out, int min)
+    {
+        int size = 2 * radius + 1;
+        for(int j = 0; j < height; j++)
+        {
+            int dst = j * width;
+            int top = j * stride;
+            int bottom = (j + size) * stride;
+            for(int i = 0; i < width; i++)
+            {
+                int sum = sums[bottom + i + size] - sums[bottom + i] - sums[top + i + size] + sums[top + i];
+                out[dst + i] = (short) (sum < min ? 0 : sum);
+            }
+        }
+    }
+
+    private void filterOctagon(short[] out, int min)
+    {
+        int size = 2 * radius + 1;
+        int n = radius - band;
+        for(int j = 0; j < height; j++)
+        {
+            int dst = j * width;
+            int cy = j + radius;
+
+            // Table rows of the centre row's neighbours, one up for the empty
+            // row the tables start with
+            int top = (cy - radius) * stride;
+            int band_top = (cy - band) * stride;
+            int band_bottom = (cy + band + 1) * stride;
+            int bottom = (cy + radius + 1) * stride;
+
+            for(int i = 0; i < width; i++)
+            {
+                int cx = i + radius;
+                int sum = sums[band_bottom + i + size] - sums[band_bottom + i] - sums[band_top + i + size]
+                        + sums[band_top + i];
+                if(n > 0)
+                {
+                    // Rows above the band end further in the lower the
+                    // row, and the ones below the other way round
+                    sum += right[band_top + cx + radius] - right[top + cx + radius - n];
+                    sum -= left[band_top + cx - radius + 1] - left[top + cx - radius + 1 + n];
+                    sum += left[bottom + cx + band + 1] - left[band_bottom + cx + radius + 1];
+                    sum -= right[bottom + cx - band] - right[band_bottom + cx - radius];
+                }
+                out[dst + i] = (short) (sum < min ? 0 : sum);
+            }
+        }
+    }
+
+    private void filterDisc(short[] out, int min)
+    {
+        for(int j = 0; j < height; j++)
+        {
+            int dst = j * width;
+            for(int i = 0; i < width; i++)
+            {
+                int cx = i + radius;
+                int row = (j + 1) * stride;
+                int sum = 0;
+                for(int dy = 0; dy < spans.length; dy++, row += stride)
+                {
+                    int w = spans[dy];
+                    sum += rows[row + cx + w + 1] - rows[row + cx - w];
+                }
+                out[dst + i] = (short) (sum < min ? 0 : sum);
+            }
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.codeminders.ardrone.vision;
+
+/**
+ * Where a {@link ColorBlobTracker} saw its target in one frame. Observations
+ * never change once made, so they can be handed between threads as they
+ * are.
+ */
+public final class TargetObservation
+{
+    /**
+     * Before any frame has been processed.
+     */
+    public static final TargetObservation NONE = new TargetObservation(Double.NaN, Double.NaN, 1, false, -1, 0, 0);
+
+    private final double  x;
+    private final double  y;
+    private final double  extent;
+    private final boolean found;
+    private final int     frame_index;
+    private final long    start_time;
+    private final long    end_time;
+
+    public TargetObservation(double x, double y, double extent, boolean found, int frameIndex, long startTime,
+            long endTime)
+    {
+        this.x = x;
+        this.y = y;
+        this.extent = extent;
+        this.found = found;
+        frame_index = frameIndex;
+        start_time = startTime;
+        end_time = endTime;
+    }
+
+    /**
+     * Centre of the target in pixels, NaN when nothing in the frame matched.
+     */
+    public double getX()
+    {
+        return x;
+    }
+
+    public double getY()
+    {
+        return y;
+    }
+
+    /**
+     * A measure of the target's size in pixels, growing with the square root
+     * of the matching area; at least 1.
+     */
+    public double getExtent()
+    {
+        return extent;
+    }
+
+    public boolean isFound()
+    {
+        return found;
+    }
+
+    /**
+     * Index of the frame in the video stream, as decoded.
+     */
+    public int getFrameIndex()
+    {
+        return frame_index;
+    }
+
+    /**
+     * {@link System#nanoTime()} when processing of the frame started and
+     * ended.
+     */
+    public long getStartTime()
+    {
+        return start_time;
+    }
+
+    public long getEndTime()
+    {
+        return end_time;
+    }
+
+    @Override
+    public String toString()
+    {
+        return found ? String.format("target at %.1f, %.1f, extent %.1f in frame %d", x, y, extent, frame_index)
+                : "no target in frame " + frame_index;
+    }
+}
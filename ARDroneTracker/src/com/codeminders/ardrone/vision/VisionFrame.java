@@ -0,0 +1,212 @@
+package com.codeminders.ardrone.vision;
+
+import java.awt.image.BufferedImage;
+
+import com.codeminders.ardrone.video.BufferedVideoImage.PixelFormat;
+
+/**
+ * A video frame on its way through a {@link VisionPipeline}, with the
+ * buffers its stages share. The buffers are kept from one frame to the next
+ * and only replaced when the frame size changes. Stages of other packages,
+ * named in pipeline settings by class, use the accessors.
+ */
+public class VisionFrame
+{
+    // The frame, not to be changed by stages
+    int[]            pixels;
+    int              width;
+    int              height;
+    PixelFormat      format;
+    int              frameIndex;
+
+    // Settings of the tracker running the pipeline
+    ColorClassifier  classifier;
+    int              radius;
+    DiscFilter.Shape shape;
+    double           minShare;
+
+    /**
+     * Pixels that matched the target colour.
+     */
+    BitMask          mask;
+
+    /**
+     * Matching pixels around each pixel, row after row, and the size of the
+     * area they were counted in; only once filtered.
+     */
+    short[]          counts;
+    int              area;
+    boolean          filtered;
+
+    // Results
+    double           x;
+    double           y;
+    double           extent;
+    boolean          found;
+    BufferedImage    output;
+
+    /**
+     * Starts on a frame, clearing the results of the last one.
+     */
+    void setFrame(int[] pixels, int width, int height, PixelFormat format, int frameIndex)
+    {
+        if(mask == null || this.width != width || this.height != height)
+        {
+            mask = new BitMask(width, height);
+            counts = new short[width * height];
+        }
+
+        this.pixels = pixels;
+        this.width = width;
+        this.height = height;
+        this.format = format;
+        this.frameIndex = frameIndex;
+
+        area = 0;
+        filtered = false;
+        x = Double.NaN;
+        y = Double.NaN;
+        extent = 1;
+        found = false;
+        output = null;
+    }
+
+    /**
+     * The pixels of the frame, row after row, in its pixel format. Stages
+     * must not change them.
+     */
+    public int[] getPixels()
+    {
+        return pixels;
+    }
+
+    public int getWidth()
+    {
+        return width;
+    }
+
+    public int getHeight()
+    {
+        return height;
+    }
+
+    public PixelFormat getPixelFormat()
+    {
+        return format;
+    }
+
+    public int getFrameIndex()
+    {
+        return frameIndex;
+    }
+
+    /**
+     * Classifier for the target colour in the frame's pixel format.
+     */
+    public ColorClassifier getClassifier()
+    {
+        return classifier;
+    }
+
+    /**
+     * Radius and shape of the disc matching pixels are counted in.
+     */
+    public int getRadius()
+    {
+        return radius;
+    }
+
+    public DiscFilter.Shape getShape()
+    {
+        return shape;
+    }
+
+    /**
+     * Share of the disc that has to match for a pixel to count.
+     */
+    public double getMinimumShare()
+    {
+        return minShare;
+    }
+
+    public BitMask getMask()
+    {
+        return mask;
+    }
+
+    /**
+     * Matching pixels around each pixel, row after row, once filtered.
+     */
+    public short[] getCounts()
+    {
+        return counts;
+    }
+
+    public boolean isFiltered()
+    {
+        return filtered;
+    }
+
+    /**
+     * Size of the area counts were taken in, 0 until filtered.
+     */
+    public int getArea()
+    {
+        return area;
+    }
+
+    /**
+     * Marks the counts as filled in, over an area of the given size.
+     */
+    public void setFiltered(int area)
+    {
+        this.area = area;
+        filtered = true;
+    }
+
+    public double getX()
+    {
+        return x;
+    }
+
+    public double getY()
+    {
+        return y;
+    }
+
+    public double getExtent()
+    {
+        return extent;
+    }
+
+    public boolean isFound()
+    {
+        return found;
+    }
+
+    /**
+     * Sets where the target is, see {@link TargetObservation}.
+     */
+    public void setTarget(double x, double y, double extent, boolean found)
+    {
+        this.x = x;
+        this.y = y;
+        this.extent = extent;
+        this.found = found;
+    }
+
+    public void setOutput(BufferedImage output)
+    {
+        this.output = output;
+    }
+
+    /**
+     * The frame as shown with what was found in it, if a stage drew one. The
+     * visualise stage draws the next frame into another image, so this one
+     * can be handed to another thread, e.g. for painting.
+     */
+    public BufferedImage getOutput()
+    {
+        return output;
+    }
+}
@@ -0,0 +1,214 @@
+package com.codeminders.ardrone.vision;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs {@link VisionStage}s one after the other over a frame and keeps a
+ * histogram of how long each stage takes. The stages are given as a comma
+ * separated list of names, see {@link VisionStages#create(String)}, and can
+ * be swapped or reordered while frames are being processed; the change
+ * applies from the next frame on.
+ */
+public class VisionPipeline
+{
+    /**
+     * Width of a histogram bucket, 10 microseconds, and the number of
+     * buckets; longer times go into the last one.
+     */
+    public static final int BUCKET_NS = 10000;
+    public static final int BUCKETS   = 10000;
+
+    /**
+     * How long a stage has taken so far.
+     */
+    public static final class Timing
+    {
+        private final String name;
+        private final int[]  histogram = new int[BUCKETS];
+        private long         count;
+        private long         total;
+        private long         max;
+
+        private Timing(String name)
+        {
+            this.name = name;
+        }
+
+        private void record(long ns)
+        {
+            histogram[(int) Math.min(ns / BUCKET_NS, BUCKETS - 1)]++;
+            count++;
+            total += ns;
+            if(ns > max)
+                max = ns;
+        }
+
+        private void reset()
+        {
+            for(int i = 0; i < BUCKETS; i++)
+                histogram[i] = 0;
+            count = 0;
+            total = 0;
+            max = 0;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        public long getCount()
+        {
+            return count;
+        }
+
+        /**
+         * Average time in nanoseconds.
+         */
+        public double getMean()
+        {
+            long n = count;
+            return n == 0 ? 0 : total / (double) n;
+        }
+
+        /**
+         * Time in nanoseconds that the given share of runs, 0 to 1, took at
+         * most, to a bucket's width.
+         */
+        public long getPercentile(double share)
+        {
+            long rank = (long) Math.ceil(count * share);
+            long seen = 0;
+            for(int i = 0; i < BUCKETS; i++)
+            {
+                seen += histogram[i];
+                if(seen >= rank && seen > 0)
+                    return (i + 1L) * BUCKET_NS;
+            }
+            return 0;
+        }
+
+        public long getMax()
+        {
+            return max;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("%s %.2f ms (p99 %.2f)", name, getMean() / 1e6, getPercentile(0.99) / 1e6);
+        }
+    }
+
+    private static final class Step
+    {
+        final VisionStage stage;
+        final Timing      timing;
+
+        Step(VisionStage stage, Timing timing)
+        {
+            this.stage = stage;
+            this.timing = timing;
+        }
+    }
+
+    private volatile Step[] steps = new Step[0];
+    private String          stages = "";
+
+    public VisionPipeline(String stages)
+    {
+        setStages(stages);
+    }
+
+    /**
+     * Replaces the stages with the comma separated ones given. Stages kept
+     * from before keep their state and timings.
+     *
+     * @throws IllegalArgumentException for a stage there is none of, in
+     *             which case the stages stay as they were
+     */
+    public synchronized void setStages(String stages)
+    {
+        Step[] old = steps.clone();
+        List<Step> list = new ArrayList<Step>();
+        for(String name : stages.split(","))
+        {
+            name = name.trim();
+            if(name.length() == 0)
+                continue;
+
+            Step step = null;
+            for(int i = 0; i < old.length && step == null; i++)
+            {
+                if(old[i] != null && old[i].stage.getName().equals(name))
+                {
+                    step = old[i];
+                    old[i] = null;
+                }
+            }
+            if(step == null)
+            {
+                VisionStage stage = VisionStages.create(name);
+                step = new Step(stage, new Timing(stage.getName()));
+            }
+            list.add(step);
+        }
+
+        steps = list.toArray(new Step[list.size()]);
+        StringBuilder b = new StringBuilder();
+        for(Step s : steps)
+            b.append(b.length() > 0 ? "," : "").append(s.stage.getName());
+        this.stages = b.toString();
+    }
+
+    /**
+     * The stages run, as a comma separated list.
+     */
+    public synchronized String getStages()
+    {
+        return stages;
+    }
+
+    public void run(VisionFrame frame)
+    {
+        Step[] s = steps;
+        long start = System.nanoTime();
+        for(Step step : s)
+        {
+            step.stage.process(frame);
+            long now = System.nanoTime();
+            step.timing.record(now - start);
+            start = now;
+        }
+    }
+
+    /**
+     * Timings of the current stages, in order. They are updated as frames
+     * are processed, so figures read from them one after the other may
+     * include a frame more.
+     */
+    public Timing[] getTimings()
+    {
+        Step[] s = steps;
+        Timing[] timings = new Timing[s.length];
+        for(int i = 0; i < s.length; i++)
+            timings[i] = s[i].timing;
+        return timings;
+    }
+
+    public void resetTimings()
+    {
+        for(Step step : steps)
+            step.timing.reset();
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder b = new StringBuilder();
+        for(Timing t : getTimings())
+            b.append(b.length() > 0 ? ", " : "").append(t);
+        return b.toString();
+    }
+}
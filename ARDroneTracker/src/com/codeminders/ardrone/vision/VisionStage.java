@@ -0,0 +1,16 @@
+package com.codeminders.ardrone.vision;
+
+/**
+ * One step of target detection, run by a {@link VisionPipeline} on every
+ * frame. A stage reads and writes the buffers of the frame it is given and
+ * may keep state of its own; it is only ever run on one thread at a time.
+ */
+public interface VisionStage
+{
+    /**
+     * Name the stage is listed under in pipeline settings and timings.
+     */
+    String getName();
+
+    void process(VisionFrame frame);
+}
@@ -0,0 +1,267 @@
+package com.codeminders.ardrone.vision;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+
+/**
+ * The stages target detection is made of. By name:
+ *
+ * <ul>
+ * <li>classify: sets the mask pixels that match the target colour</li>
+ * <li>erode, dilate: shrink or grow the mask by a pixel; open, close: erode
+ * then dilate, and the other way round</li>
+ * <li>filter: counts the matching pixels around every pixel in the tracker's
+ * disc shape; filter:box, filter:octagon and filter:disc in that shape</li>
+ * <li>locate: weighs the target's centre by the counts, or by the mask if
+ * nothing filtered it</li>
+ * <li>visualise: draws the frame, the counts and the target</li>
+ * </ul>
+ *
+ * Any other name is taken for the class name of a stage, which is created
+ * with its public no argument constructor. Such stages go through the
+ * accessors of {@link VisionFrame}.
+ */
+public class VisionStages
+{
+    public static VisionStage create(String name)
+    {
+        if(name.equals("classify"))
+            return new Classify();
+        if(name.equals("erode") || name.equals("dilate") || name.equals("open") || name.equals("close"))
+            return new Morph(name);
+        if(name.equals("filter"))
+            return new Filter(name, null);
+        if(name.startsWith("filter:"))
+        {
+            try
+            {
+                return new Filter(name, DiscFilter.Shape.valueOf(name.substring(7).toUpperCase()));
+            } catch(IllegalArgumentException e)
+            {
+                throw new IllegalArgumentException("No filter shape " + name.substring(7));
+            }
+        }
+        if(name.equals("locate"))
+            return new Locate();
+        if(name.equals("visualise"))
+            return new Visualise();
+
+        try
+        {
+            return Class.forName(name).asSubclass(VisionStage.class).getConstructor().newInstance();
+        } catch(Exception e)
+        {
+            throw new IllegalArgumentException("No vision stage " + name, e);
+        }
+    }
+
+    private static final class Classify implements VisionStage
+    {
+        public String getName()
+        {
+            return "classify";
+        }
+
+        public void process(VisionFrame frame)
+        {
+            ColorClassifier c = frame.classifier;
+            int[] pixels = frame.pixels;
+            int width = frame.width;
+            long[] words = frame.mask.getWords();
+            int stride = frame.mask.getStride();
+            for(int j = 0; j < frame.height; j++)
+            {
+                int row = j * width;
+                for(int w = 0; w < stride; w++)
+                {
+                    long bits = 0;
+                    int end = Math.min(64, width - (w << 6));
+                    for(int b = 0; b < end; b++)
+                        bits |= (long) (c.classify(pixels[row + (w << 6) + b]) & 1) << b;
+                    words[j * stride + w] = bits;
+                }
+            }
+        }
+    }
+
+    private static final class Morph implements VisionStage
+    {
+        private final String name;
+
+        Morph(String name)
+        {
+            this.name = name;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        public void process(VisionFrame frame)
+        {
+            BitMask mask = frame.mask;
+            if(name.equals("erode") || name.equals("open"))
+                mask.erode(mask);
+            if(!name.equals("erode"))
+                mask.dilate(mask);
+            if(name.equals("close"))
+                mask.erode(mask);
+        }
+    }
+
+    private static final class Filter implements VisionStage
+    {
+        private final String           name;
+
+        /**
+         * The shape to use, or null for the tracker's.
+         */
+        private final DiscFilter.Shape shape;
+        private DiscFilter             filter;
+        private int                    width;
+        private int                    height;
+        private int                    radius;
+
+        Filter(String name, DiscFilter.Shape shape)
+        {
+            this.name = name;
+            this.shape = shape;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        public void process(VisionFrame frame)
+        {
+            DiscFilter.Shape s = shape != null ? shape : frame.shape;
+            if(filter == null || filter.getShape() != s || width != frame.width || height != frame.height
+                    || radius != frame.radius)
+            {
+                width = frame.width;
+                height = frame.height;
+                radius = frame.radius;
+                filter = new DiscFilter(width, height, radius, s);
+            }
+
+            filter.filter(frame.mask, frame.counts, frame.minShare);
+            frame.area = filter.getArea();
+            frame.filtered = true;
+        }
+    }
+
+    private static final class Locate implements VisionStage
+    {
+        public String getName()
+        {
+            return "locate";
+        }
+
+        public void process(VisionFrame frame)
+        {
+            double weight;
+            if(frame.filtered)
+            {
+                int width = frame.width;
+                short[] counts = frame.counts;
+                long sx = 0;
+                long sy = 0;
+                long total = 0;
+                for(int j = 0; j < frame.height; j++)
+                {
+                    int row = j * width;
+                    int row_total = 0;
+                    for(int i = 0; i < width; i++)
+                    {
+                        int n = counts[row + i];
+                        sx += i * n;
+                        row_total += n;
+                    }
+                    sy += (long) j * row_total;
+                    total += row_total;
+                }
+                frame.x = sx / (double) total;
+                frame.y = sy / (double) total;
+                weight = total / (double) frame.area;
+            } else
+            {
+                int count = frame.mask.count();
+                frame.x = frame.mask.sumX() / (double) count;
+                frame.y = frame.mask.sumY() / (double) count;
+                weight = count;
+            }
+
+            frame.extent = Math.max(1, 4 * Math.sqrt(weight));
+            frame.found = frame.extent > 4;
+        }
+    }
+
+    private static final class Visualise implements VisionStage
+    {
+        /**
+         * Drawn into in turn, so that the image handed out with the last
+         * frame is left alone while the next one is drawn. Only replaced when
+         * the frame size changes.
+         */
+        private final BufferedImage[] images = new BufferedImage[2];
+        private int                   current;
+
+        public String getName()
+        {
+            return "visualise";
+        }
+
+        public void process(VisionFrame frame)
+        {
+            int[] pixels = frame.pixels;
+            int width = frame.width;
+            int height = frame.height;
+            current ^= 1;
+            BufferedImage processedImage = images[current];
+            if(processedImage == null || processedImage.getWidth() != width || processedImage.getHeight() != height)
+            {
+                processedImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+                images[current] = processedImage;
+            }
+            int[] out = ((DataBufferInt) processedImage.getRaster().getDataBuffer()).getData();
+
+            double maxconv = 1.0;
+            if(frame.filtered)
+            {
+                short[] counts = frame.counts;
+                for(int k = 0; k < counts.length; ++k)
+                    maxconv = Math.max(maxconv, counts[k]);
+            }
+            for(int j = 0; j < height; ++j)
+            {
+                for(int i = 0; i < width; ++i)
+                {
+                    int p = pixels[j * width + i];
+                    double r = ((p >> 16) & 0xFF) / 255.0;
+                    double g = ((p >> 8) & 0xFF) / 255.0;
+                    double b = (p & 0xFF) / 255.0;
+                    double gray = Math.min(1.0, 0.21 * r + 0.71 * g + 0.07 * b);
+                    double val = frame.filtered ? frame.counts[j * width + i] / maxconv : frame.mask.get(i, j) ? 1
+                            : 0;
+                    int cc = Color.HSBtoRGB((float) val, (float) val, (float) gray);
+                    out[j * width + i] = cc;
+                }
+            }
+
+            double tgt_x = frame.x;
+            double tgt_y = frame.y;
+            double tgt_r = frame.extent;
+            Graphics2D g = processedImage.createGraphics();
+            g.setColor(Color.WHITE);
+            g.drawOval((int) Math.floor(tgt_x - tgt_r / 4), (int) Math.floor(tgt_y - tgt_r / 4),
+                    (int) Math.round(tgt_r / 2.0), (int) Math.round(tgt_r / 2.0));
+            g.dispose();
+
+            frame.output = processedImage;
+        }
+    }
+}